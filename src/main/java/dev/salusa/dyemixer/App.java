@@ -3,8 +3,69 @@
  */
 package dev.salusa.dyemixer;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
 public class App {
     public static void main(String[] args) {
+        if (Boolean.getBoolean("dyemixer.cds.training")) {
+            train();
+            return;
+        }
+        if (args.length > 0) {
+            System.exit(runCommand(args[0], Arrays.copyOfRange(args, 1, args.length)));
+        }
         final AppletFrame frame = new AppletFrame();
     }
+
+    /** Runs one of the command line tools instead of the mixer; returns the exit status. */
+    static int runCommand(String command, String[] args) {
+        try {
+            if (command.equals("import")) return CsvImport.run(args);
+            if (command.equals("palette")) return Palette.run(args);
+            if (command.equals("gamut")) return GamutCheck.run(args);
+            if (command.equals("recipes")) return ImageRecipes.run(args);
+            if (command.equals("tiedye")) return TieDyePreview.run(args);
+            if (command.equals("bleed")) return DyeBleed.run(args);
+            if (command.equals("cost")) return CostOptimizer.run(args);
+            if (command.equals("spread")) return RecipeSpread.run(args);
+        } catch (IOException e) {
+            System.err.println(command +": "+ e.getMessage());
+            return 1;
+        }
+        System.err.println("Unknown command "+ command +"; the commands are: import, palette, gamut, recipes, tiedye, bleed, cost, spread");
+        return 2;
+    }
+
+    /**
+     * Loads and initializes what startup needs without opening a window. The build runs this
+     * with -XX:DumpLoadedClassList to record the classes for the class data sharing archive,
+     * which works on a headless build machine where the real frame can't be shown.
+     */
+    static void train() {
+        Library library = Library.load();
+        DyeMixer.Light light = library.availablelights.elementAt(
+                DyeMixer.NumberFinder.findIndex(library.availablelights, library.defaultlightnumber));
+        DyeMixer.Canvas canvas = library.availablecanvases.elementAt(
+                DyeMixer.NumberFinder.findIndex(library.availablecanvases, library.defaultcanvasnumber));
+        DyeMixer.Dye dye = library.availabledyes.elementAt(
+                DyeMixer.NumberFinder.findIndex(library.availabledyes, library.defaultdyenumber));
+        MixEngine engine = new MixEngine();
+        engine.getMixedLight(light, canvas, MixEngine.flaglightwhite, new DyeMixer.Dye[] {dye}, new double[] {1.0}).getXY();
+        ClassLoader loader = App.class.getClassLoader();
+        List<Class<?>> roots = Arrays.<Class<?>>asList(DyeMixer.class, AppletFrame.class, SpectrumPlot.class,
+                DilutionStrip.class, Metrics.class);
+        try {
+            for (Class<?> root : roots) {
+                Class.forName(root.getName(), false, loader);
+                Class<?>[] inner = root.getDeclaredClasses();
+                for (int u = 0; (u < inner.length); u++) {
+                    Class.forName(inner[u].getName(), false, loader);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -3,11 +3,16 @@ package dev.salusa.dyemixer;
 import java.awt.*;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.time.Instant;
+import java.util.Optional;
 
 public class AppletFrame extends Frame {
+    final DyeMixer mixer;
+    boolean painted = false;
+
     public AppletFrame() {
-        DyeMixer mixer = new DyeMixer();
-        setSize(564, 414);
+        mixer = new DyeMixer();
+        setSize(564, 560);
         setTitle("DyeMixer v2.1.1 (Base version 1.1)");
         setLayout(new GridLayout(1,1));
         add(mixer);
@@ -15,6 +20,33 @@ public class AppletFrame extends Frame {
         setVisible(true);
     }
 
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (!painted) {
+            painted = true;
+            firstPainted();
+        }
+    }
+
+    // Records the time from process launch to the first paint. With -Ddyemixer.startup.exit=true
+    // it is printed and the program exits, which is what the startupBenchmark task measures.
+    void firstPainted() {
+        Optional<Instant> launched = ProcessHandle.current().info().startInstant();
+        if (!launched.isPresent()) return;
+        long millis = System.currentTimeMillis() - launched.get().toEpochMilli();
+        Metrics.record("startup.firstpaint", millis*1000000);
+        if (Boolean.getBoolean("dyemixer.startup.exit")) {
+            System.out.println("first paint after "+ millis +" ms");
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    mixer.destroy();
+                    System.exit(0);
+                }
+            });
+        }
+    }
+
     public class Listener implements WindowListener {
 
         @Override
@@ -23,6 +55,7 @@ public class AppletFrame extends Frame {
 
         @Override
         public void windowClosing(WindowEvent e) {
+            mixer.destroy();
             dispose();
         }
 
@@ -0,0 +1,285 @@
+package dev.salusa.dyemixer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * Mixes many recipes of one set of dyes under one light and canvas, for the tools that search
+ * the recipe space. Everything that doesn't depend on the amounts is done once: the XYZ weights
+ * of the canvased light (see MixEngine.getWeights()) and the dyes' absorbance, or K/S for the
+ * opaque fabric model, on a grid of step nm. A recipe then costs one multiply-add per dye and
+ * one exp() per grid point.
+ *
+ * Each grid point stands for the step nm around it: the weights are summed over them and the
+ * dyes sampled in the middle. With step 1 the results are those of MixEngine.getXYZ(). 5 nm,
+ * the usual step of spectrophotometers, is five times faster and off by about 0.3 deltaE on
+ * average, though by several for very deep shades, so searches should mix their final answers
+ * again at 1 nm. Instances are immutable and shared by the threads.
+ */
+class BatchMixer {
+
+    static final double ln10 = Math.log(10.0);
+
+    /** Recipes per task in forEachChunk. */
+    static final int chunksize = 4096;
+
+    final Dye[] dyes;
+    final int numpoints;
+    /** XYZ weights per grid point, indexed [x, y, z][point]. */
+    final double[][] weights;
+    /** Per dye and grid point: ln(10)*absorbance, or K/S for the opaque model. */
+    final double[][] coefficients;
+    final boolean kubelkamunk;
+    final double[] canvasks;
+    final double[] canvasreflectance;
+    final boolean combinedbright;
+
+    BatchMixer(MixEngine engine, Light source, Canvas canvas, int flags, Dye[] dyes, int step) {
+        this.dyes = dyes;
+        double[][] fine = engine.getWeights(source, canvas, flags);
+        int numfine = fine[0].length;
+        numpoints = (numfine + step - 1)/step;
+        weights = new double[3][numpoints];
+        for (int i = 0; (i < numfine); i++) {
+            int point = Math.min(numpoints - 1, (i + step/2)/step);
+            for (int c = 0; (c < 3); c++) weights[c][point] += fine[c][i];
+        }
+        kubelkamunk = (engine instanceof KubelkaMunkEngine);
+        coefficients = new double[dyes.length][numpoints];
+        for (int t = 0; (t < dyes.length); t++) {
+            double[] samples = kubelkamunk ? ((KubelkaMunkEngine)engine).getDyeKS(dyes[t])
+                    : dyes[t].getAbsorbanceSamples();
+            for (int p = 0; (p < numpoints); p++) {
+                coefficients[t][p] = kubelkamunk ? samples[p*step] : ln10*samples[p*step];
+            }
+        }
+        if (kubelkamunk) {
+            double[] ks = ((KubelkaMunkEngine)engine).getCanvasKS(canvas);
+            double[] reflectance = ((KubelkaMunkEngine)engine).getCanvasReflectance(canvas);
+            canvasks = new double[numpoints];
+            canvasreflectance = new double[numpoints];
+            for (int p = 0; (p < numpoints); p++) {
+                canvasks[p] = ks[p*step];
+                canvasreflectance[p] = reflectance[p*step];
+            }
+        } else {
+            canvasks = null;
+            canvasreflectance = null;
+        }
+        combinedbright = (flags & MixEngine.flagcombinedbright) != 0;
+    }
+
+    /**
+     * Mixes count recipes from recipe first. Recipe r is slots (dye, nominal amount) pairs at
+     * dyeindices[r*slots] and amounts[r*slots], dyes being indices into the dyes of this mixer;
+     * unused slots have amount 0. The scaled XYZ of recipe first+i go to xyz[3*i].
+     */
+    void mix(int[] dyeindices, double[] amounts, int slots, int first, int count, double[] xyz) {
+        double[] sum = new double[numpoints];
+        double[] strengths = new double[slots];
+        for (int r = first; (r < first + count); r++) {
+            for (int s = 0; (s < slots); s++) {
+                double amount = amounts[r*slots + s];
+                strengths[s] = (amount == 0) ? 0 : dyes[dyeindices[r*slots + s]].getStrength(amount);
+            }
+            if (kubelkamunk) {
+                System.arraycopy(canvasks, 0, sum, 0, numpoints);
+            } else {
+                Arrays.fill(sum, 0.0);
+            }
+            for (int s = 0; (s < slots); s++) {
+                if (strengths[s] == 0) continue;
+                double[] c = coefficients[dyeindices[r*slots + s]];
+                double strength = strengths[s];
+                for (int p = 0; (p < numpoints); p++) {
+                    sum[p] += c[p]*strength;
+                }
+            }
+            double x = 0, y = 0, z = 0;
+            double[] wx = weights[0], wy = weights[1], wz = weights[2];
+            for (int p = 0; (p < numpoints); p++) {
+                double f;
+                if (kubelkamunk) {
+                    f = KubelkaMunkEngine.reflectance(Math.max(0.0, sum[p]))/canvasreflectance[p];
+                } else {
+                    f = Math.exp(-sum[p]);
+                }
+                x += wx[p]*f;
+                y += wy[p]*f;
+                z += wz[p]*f;
+            }
+            int o = 3*(r - first);
+            xyz[o] = x;
+            xyz[o+1] = y;
+            xyz[o+2] = z;
+            if (combinedbright) {
+                double[] triple = {x, y, z};
+                MixEngine.normalize(triple);
+                System.arraycopy(triple, 0, xyz, o, 3);
+            }
+        }
+    }
+
+    /** Mixes one recipe given as an amount for each dye of this mixer; returns its scaled XYZ. */
+    double[] mix(double[] dyeamounts) {
+        int[] dyeindices = new int[dyeamounts.length];
+        for (int t = 0; (t < dyeindices.length); t++) dyeindices[t] = t;
+        double[] xyz = new double[3];
+        mix(dyeindices, dyeamounts, dyeamounts.length, 0, 1, xyz);
+        return xyz;
+    }
+
+    /**
+     * Draws count random recipes from recipe first into slots (dye, amount) pairs each, as for
+     * mix(): one to slots distinct dyes with amounts spread like the dye sliders up to
+     * maxamount, quantized like MixEngine amounts.
+     */
+    void drawRecipes(SplittableRandom random, int slots, double maxamount, int first, int count,
+                     int[] dyeindices, double[] amounts) {
+        int[] order = new int[dyes.length];
+        for (int t = 0; (t < order.length); t++) order[t] = t;
+        for (int r = first; (r < first + count); r++) {
+            int used = 1 + random.nextInt(slots);
+            // Partial shuffle for distinct dyes
+            for (int s = 0; (s < slots); s++) {
+                if (s >= used) {
+                    dyeindices[r*slots + s] = 0;
+                    amounts[r*slots + s] = 0;
+                    continue;
+                }
+                int u = s + random.nextInt(order.length - s);
+                int swap = order[s];
+                order[s] = order[u];
+                order[u] = swap;
+                double x = random.nextDouble();
+                double amount = Math.max(MixEngine.amountquantum, x*x*x*maxamount);
+                dyeindices[r*slots + s] = order[s];
+                amounts[r*slots + s] = MixEngine.quantize(amount)*MixEngine.amountquantum;
+            }
+        }
+    }
+
+    /**
+     * Draws and mixes numsamples random recipes, as drawRecipes(), into slots (dye, amount)
+     * pairs each and their CIELAB in lab, on numthreads threads. Each chunk draws from a stream
+     * seeded by seed and its first recipe, so the samples don't depend on the number of threads.
+     */
+    void sample(final long seed, final int slots, final double maxamount, int numsamples, int numthreads,
+                final int[] dyeindices, final double[] amounts, final float[] lab) throws ExecutionException {
+        forEachChunk(numsamples, numthreads, (first, count) -> {
+            SplittableRandom random = new SplittableRandom(seed*0x9E3779B97F4A7C15L + first);
+            drawRecipes(random, slots, maxamount, first, count, dyeindices, amounts);
+            double[] xyz = new double[3*count];
+            mix(dyeindices, amounts, slots, first, count, xyz);
+            double[] l = new double[3];
+            for (int r = first; (r < first + count); r++) {
+                CIELab.fromXYZ(xyz, 3*(r - first), l, 0);
+                lab[3*r] = (float)l[0];
+                lab[3*r+1] = (float)l[1];
+                lab[3*r+2] = (float)l[2];
+            }
+        });
+    }
+
+    /** A piece of work over the items [first, first+count). */
+    interface Chunk {
+        void run(int first, int count) throws Exception;
+    }
+
+    /** The threads of forEachChunk(), made on first use and kept; see getWorkers(). */
+    static ExecutorService workers;
+
+    /**
+     * The pool forEachChunk() runs on unless given another: daemon threads, made as needed and
+     * reused by later calls, so a tool or the applet doesn't start threads per batch. Threads
+     * idle for a minute end. It grows rather than queues, so a chunk may itself call
+     * forEachChunk().
+     */
+    static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "batch mixer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    /**
+     * Runs task over count items in chunks of chunksize on numthreads threads, or on this one if
+     * numthreads is 1, and returns when all are done. The chunks are the same whatever the
+     * number of threads, so a task may seed a random stream by its first item. The first
+     * exception is rethrown.
+     */
+    static void forEachChunk(int count, int numthreads, Chunk task) throws ExecutionException {
+        forEachChunk(getWorkers(), count, chunksize, numthreads, task);
+    }
+
+    /** As forEachChunk() with chunks of the given size, e.g. 1 for expensive items. */
+    static void forEachChunk(int count, int chunksize, int numthreads, Chunk task) throws ExecutionException {
+        forEachChunk(getWorkers(), count, chunksize, numthreads, task);
+    }
+
+    /**
+     * As forEachChunk() on the threads of pool. numthreads tasks are submitted, each taking
+     * chunks in turn until none are left, so the chunks of one call never wait behind each
+     * other in the pool's queue. After a failure the chunks not yet taken are dropped and the
+     * call returns once the running ones are done; an interrupt interrupts those too.
+     */
+    static void forEachChunk(ExecutorService pool, int count, final int chunksize, int numthreads,
+                             final Chunk task) throws ExecutionException {
+        final int numchunks = (count + chunksize - 1)/chunksize;
+        if ((numthreads <= 1) || (numchunks <= 1)) {
+            try {
+                for (int first = 0; (first < count); first += chunksize) {
+                    task.run(first, Math.min(chunksize, count - first));
+                }
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+            return;
+        }
+        final int n = count;
+        final AtomicInteger nextchunk = new AtomicInteger();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int t = 0; (t < Math.min(numthreads, numchunks)); t++) {
+            futures.add(pool.submit(() -> {
+                try {
+                    for (int c = nextchunk.getAndIncrement(); (c < numchunks); c = nextchunk.getAndIncrement()) {
+                        int first = c*chunksize;
+                        task.run(first, Math.min(chunksize, n - first));
+                    }
+                } catch (Exception e) {
+                    nextchunk.set(numchunks);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+        ExecutionException failure = null;
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e;
+            } catch (InterruptedException e) {
+                nextchunk.set(numchunks);
+                for (Future<Object> f : futures) f.cancel(true);
+                throw new ExecutionException(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,46 @@
+package dev.salusa.dyemixer;
+
+/**
+ * CIE 1976 L*a*b* of scaled XYZ, relative to the full scale D65 white that white adaptation
+ * goes to, and the color differences the tools use.
+ */
+class CIELab {
+
+    static final double[] white = ChromaticAdaptation.destinationwhite;
+
+    static final double epsilon = 216.0/24389.0;
+    static final double kappa = 24389.0/27.0;
+
+    static double f(double t) {
+        if (t > epsilon) return Math.cbrt(t);
+        return (kappa*t + 16.0)/116.0;
+    }
+
+    /** Converts the triple at xyz[xyzoffset] into lab[laboffset]. */
+    static void fromXYZ(double[] xyz, int xyzoffset, double[] lab, int laboffset) {
+        double fx = f(xyz[xyzoffset]/white[0]);
+        double fy = f(xyz[xyzoffset+1]/white[1]);
+        double fz = f(xyz[xyzoffset+2]/white[2]);
+        lab[laboffset] = 116.0*fy - 16.0;
+        lab[laboffset+1] = 500.0*(fx - fy);
+        lab[laboffset+2] = 200.0*(fy - fz);
+    }
+
+    static double[] fromXYZ(double[] xyz) {
+        double[] lab = new double[3];
+        fromXYZ(xyz, 0, lab, 0);
+        return lab;
+    }
+
+    /** The CIE 1976 difference, the distance in L*a*b*. */
+    static double deltaE(double[] lab1, int offset1, double[] lab2, int offset2) {
+        double dl = lab1[offset1] - lab2[offset2];
+        double da = lab1[offset1+1] - lab2[offset2+1];
+        double db = lab1[offset1+2] - lab2[offset2+2];
+        return Math.sqrt(dl*dl + da*da + db*db);
+    }
+
+    static double deltaE(double[] lab1, double[] lab2) {
+        return deltaE(lab1, 0, lab2, 0);
+    }
+}
@@ -0,0 +1,108 @@
+package dev.salusa.dyemixer;
+
+/**
+ * A von Kries chromatic adaptation transform: XYZ is taken to a cone-like response by matrix,
+ * each channel is scaled by destination white over source white there, and the result is taken
+ * back. The adaptation for one source white is a single 3x3 matrix,
+ *
+ *   A = inverse(M) * diag(M*destination / M*source) * M,
+ *
+ * and since linear sRGB is another matrix away, a Light adapted with it keeps the product
+ * xyz2srgb*A and converts every mix filtered from it with one multiply.
+ *
+ * xyzscaling, with M the identity, is the per-axis scaling the applet always did; Light handles
+ * it with its scales alone, so its results are unchanged.
+ */
+class ChromaticAdaptation {
+
+    /** Adapted white is full scale D65, as sRGB expects. */
+    static final double[] destinationwhite = {0.9505, 1.0000, 1.0890};
+
+    static final ChromaticAdaptation xyzscaling = new ChromaticAdaptation("XYZ scaling", new double[] {
+            1, 0, 0,
+            0, 1, 0,
+            0, 0, 1});
+    static final ChromaticAdaptation bradford = new ChromaticAdaptation("Bradford", new double[] {
+            0.8951, 0.2664, -0.1614,
+            -0.7502, 1.7135, 0.0367,
+            0.0389, -0.0685, 1.0296});
+    static final ChromaticAdaptation cat02 = new ChromaticAdaptation("CAT02", new double[] {
+            0.7328, 0.4296, -0.1624,
+            -0.7036, 1.6975, 0.0061,
+            0.0030, 0.0136, 0.9834});
+
+    /** In the order of their index in flags and recipes. */
+    static final ChromaticAdaptation[] adaptations = {xyzscaling, bradford, cat02};
+
+    final String name;
+    /** XYZ to cone response, row-major. */
+    final double[] cone;
+    final double[] inversecone;
+    /** The cone response of destinationwhite. */
+    final double[] destinationcone;
+
+    ChromaticAdaptation(String name, double[] cone) {
+        this.name = name;
+        this.cone = cone;
+        this.inversecone = invert(cone);
+        this.destinationcone = multiply(cone, destinationwhite);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getIndex() {
+        for (int t = 0; (t < adaptations.length); t++) {
+            if (adaptations[t] == this) return t;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the XYZ to XYZ matrix, row-major, that takes sourcewhite to destinationwhite, or
+     * null if sourcewhite has no cone response in some channel.
+     */
+    double[] getMatrix(double[] sourcewhite) {
+        double[] sourcecone = multiply(cone, sourcewhite);
+        double[] scaledcone = new double[9];
+        for (int r = 0; (r < 3); r++) {
+            if (sourcecone[r] <= 0) return null;
+            double gain = destinationcone[r]/sourcecone[r];
+            for (int c = 0; (c < 3); c++) {
+                scaledcone[3*r+c] = gain*cone[3*r+c];
+            }
+        }
+        return multiply3x3(inversecone, scaledcone);
+    }
+
+    /** Returns a*b for row-major 3x3 matrices. */
+    static double[] multiply3x3(double[] a, double[] b) {
+        double[] p = new double[9];
+        for (int r = 0; (r < 3); r++) {
+            for (int c = 0; (c < 3); c++) {
+                p[3*r+c] = a[3*r]*b[c] + a[3*r+1]*b[3+c] + a[3*r+2]*b[6+c];
+            }
+        }
+        return p;
+    }
+
+    /** Returns m*v for a row-major 3x3 matrix. */
+    static double[] multiply(double[] m, double[] v) {
+        return new double[] {
+                m[0]*v[0] + m[1]*v[1] + m[2]*v[2],
+                m[3]*v[0] + m[4]*v[1] + m[5]*v[2],
+                m[6]*v[0] + m[7]*v[1] + m[8]*v[2]};
+    }
+
+    static double[] invert(double[] m) {
+        double c00 = m[4]*m[8] - m[5]*m[7];
+        double c01 = m[5]*m[6] - m[3]*m[8];
+        double c02 = m[3]*m[7] - m[4]*m[6];
+        double invdet = 1.0/(m[0]*c00 + m[1]*c01 + m[2]*c02);
+        return new double[] {
+                c00*invdet, (m[2]*m[7] - m[1]*m[8])*invdet, (m[1]*m[5] - m[2]*m[4])*invdet,
+                c01*invdet, (m[0]*m[8] - m[2]*m[6])*invdet, (m[2]*m[3] - m[0]*m[5])*invdet,
+                c02*invdet, (m[1]*m[6] - m[0]*m[7])*invdet, (m[0]*m[4] - m[1]*m[3])*invdet};
+    }
+}
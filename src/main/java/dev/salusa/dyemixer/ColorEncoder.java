@@ -0,0 +1,215 @@
+package dev.salusa.dyemixer;
+
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * Turns XYZ triples into pixels of an RGB space for the batch and image renderers: 8 or 16 bit
+ * with the space's transfer curve, or linear floats. XYZ goes to linear RGB by one matrix,
+ * which for raw XYZ of a light also holds its chromatic adaptation and scales (see forLight()),
+ * and pixels are packed into primitive arrays, three values per pixel.
+ *
+ * Colors outside the space are clipped in the integer formats and left alone in linear float;
+ * either way the encode methods flag them and count them.
+ */
+class ColorEncoder {
+
+    static final int lutsize = 4096;
+
+    /** An RGB space with D65 white, the white that white adaptation goes to. */
+    static class RGBSpace {
+        final String name;
+        /** XYZ to linear RGB, row-major. */
+        final double[] matrix;
+        /** The exponent of a pure power curve, or 0 for the sRGB curve. */
+        final double gamma;
+
+        /** thresholds[k] is the smallest linear value that encodes to 8 bit k+1. */
+        final double[] thresholds = new double[255];
+        /** The 8 bit code at the start of each of lutsize equal steps of the linear range. */
+        final byte[] lut = new byte[lutsize];
+
+        RGBSpace(String name, double[] matrix, double gamma) {
+            this.name = name;
+            this.matrix = matrix;
+            this.gamma = gamma;
+            for (int k = 0; (k < thresholds.length); k++) {
+                thresholds[k] = untransfer((k + 0.5)/255.0);
+            }
+            int code = 0;
+            for (int i = 0; (i < lutsize); i++) {
+                while ((code < 255) && (i/(double)lutsize >= thresholds[code])) code++;
+                lut[i] = (byte)code;
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /** Encodes a linear value in 0..1. */
+        double transfer(double v) {
+            if (gamma != 0) return Math.pow(v, 1.0/gamma);
+            // As Light.sRGBCut
+            if (v <= 0.00304) return v*12.92;
+            return 1.055*Math.pow(v, 1.0/2.4) - 0.055;
+        }
+
+        double untransfer(double c) {
+            if (gamma != 0) return Math.pow(c, gamma);
+            if (c <= 0.00304*12.92) return c/12.92;
+            return Math.pow((c + 0.055)/1.055, 2.4);
+        }
+
+        /**
+         * Encodes a linear value to 8 bit without a pow(): the table gives the code at the start
+         * of the step v is in, and a step holds at most a few codes, only near black. Values
+         * within rounding of halfway between two codes may come out one off from quantize().
+         */
+        int quantize8(double v) {
+            if (v <= 0) return 0;
+            if (v >= 1) return 255;
+            int code = lut[(int)(v*lutsize)] & 0xff;
+            while ((code < 255) && (v >= thresholds[code])) code++;
+            return code;
+        }
+
+        /** The scaled XYZ of an 8 bit 0xRRGGBB color, the inverse of encoding it. */
+        double[] decode(int rgb) {
+            double[] linear = new double[3];
+            for (int c = 0; (c < 3); c++) {
+                linear[c] = untransfer(((rgb >> (16 - 8*c)) & 0xff)/255.0);
+            }
+            return ChromaticAdaptation.multiply(ChromaticAdaptation.invert(matrix), linear);
+        }
+    }
+
+    static final RGBSpace srgb = new RGBSpace("sRGB", Light.xyz2srgb, 0);
+    static final RGBSpace displayp3 = new RGBSpace("Display P3", new double[] {
+            2.4934969, -0.9313836, -0.4027108,
+            -0.8294890, 1.7626641, 0.0236247,
+            0.0358458, -0.0761724, 0.9568845}, 0);
+    static final RGBSpace adobergb = new RGBSpace("Adobe RGB (1998)", new double[] {
+            2.0413690, -0.5649464, -0.3446944,
+            -0.9692660, 1.8760108, 0.0415560,
+            0.0134474, -0.1183897, 1.0154096}, 563.0/256.0);
+
+    static final RGBSpace[] spaces = {srgb, displayp3, adobergb};
+
+    /** Returns the space with the given name, ignoring case, or null. */
+    static RGBSpace findSpace(String name) {
+        for (int t = 0; (t < spaces.length); t++) {
+            if (spaces[t].name.equalsIgnoreCase(name)) return spaces[t];
+        }
+        return null;
+    }
+
+    /**
+     * Linear values this far outside 0..1 are still in gamut; the four digit sRGB matrix takes
+     * full scale white to 1.0003.
+     */
+    static final double gamuttolerance = 1e-3;
+
+    final RGBSpace space;
+    /** XYZ to linear RGB of space, row-major. */
+    final double[] matrix;
+
+    /** An encoder for scaled XYZ, as from MixEngine.getXYZ() or Light.scaleXYZ(). */
+    ColorEncoder(RGBSpace space) {
+        this(space, space.matrix);
+    }
+
+    ColorEncoder(RGBSpace space, double[] matrix) {
+        this.space = space;
+        this.matrix = matrix;
+    }
+
+    /**
+     * An encoder for raw XYZ of light and the lights filtered from it, as from getXYZ() or
+     * getFilteredXYZSeries() before scaling; the adaptation and scales are fused into the matrix.
+     */
+    static ColorEncoder forLight(RGBSpace space, Light light) {
+        double[] fused = new double[9];
+        for (int c = 0; (c < 3); c++) {
+            double[] column = {0, 0, 0};
+            column[c] = 1.0;
+            light.scaleXYZ(column);
+            for (int r = 0; (r < 3); r++) {
+                fused[3*r+c] = space.matrix[3*r]*column[0] + space.matrix[3*r+1]*column[1]
+                        + space.matrix[3*r+2]*column[2];
+            }
+        }
+        return new ColorEncoder(space, fused);
+    }
+
+    /**
+     * Converts the count triples of xyz from xyzoffset to linear RGB in rgb from rgboffset.
+     * Sets outofgamut[i], if given, for every pixel outside the space; returns how many are.
+     */
+    int toLinear(double[] xyz, int xyzoffset, int count, double[] rgb, int rgboffset, boolean[] outofgamut) {
+        double[] m = matrix;
+        int numoutofgamut = 0;
+        for (int i = 0; (i < count); i++) {
+            int s = xyzoffset + 3*i, d = rgboffset + 3*i;
+            double x = xyz[s], y = xyz[s+1], z = xyz[s+2];
+            double r = m[0]*x + m[1]*y + m[2]*z;
+            double g = m[3]*x + m[4]*y + m[5]*z;
+            double b = m[6]*x + m[7]*y + m[8]*z;
+            rgb[d] = r;
+            rgb[d+1] = g;
+            rgb[d+2] = b;
+            boolean out = (r < -gamuttolerance) || (g < -gamuttolerance) || (b < -gamuttolerance)
+                    || (r > 1+gamuttolerance) || (g > 1+gamuttolerance) || (b > 1+gamuttolerance);
+            if (out) numoutofgamut++;
+            if (outofgamut != null) outofgamut[i] = out;
+        }
+        return numoutofgamut;
+    }
+
+    /** Encodes count pixels as linear floats into out from outoffset; see toLinear(). */
+    int encode(double[] xyz, int xyzoffset, int count, float[] out, int outoffset, boolean[] outofgamut) {
+        double[] rgb = new double[3*count];
+        int numoutofgamut = toLinear(xyz, xyzoffset, count, rgb, 0, outofgamut);
+        for (int t = 0; (t < rgb.length); t++) {
+            out[outoffset+t] = (float)rgb[t];
+        }
+        return numoutofgamut;
+    }
+
+    /** Encodes count pixels as 16 bit values (use & 0xffff) into out from outoffset. */
+    int encode(double[] xyz, int xyzoffset, int count, short[] out, int outoffset, boolean[] outofgamut) {
+        double[] rgb = new double[3*count];
+        int numoutofgamut = toLinear(xyz, xyzoffset, count, rgb, 0, outofgamut);
+        for (int t = 0; (t < rgb.length); t++) {
+            out[outoffset+t] = (short)quantize(rgb[t], 65535);
+        }
+        return numoutofgamut;
+    }
+
+    /** Encodes count pixels as 8 bit values (use & 0xff) into out from outoffset. */
+    int encode(double[] xyz, int xyzoffset, int count, byte[] out, int outoffset, boolean[] outofgamut) {
+        double[] rgb = new double[3*count];
+        int numoutofgamut = toLinear(xyz, xyzoffset, count, rgb, 0, outofgamut);
+        for (int t = 0; (t < rgb.length); t++) {
+            out[outoffset+t] = (byte)space.quantize8(rgb[t]);
+        }
+        return numoutofgamut;
+    }
+
+    /** Encodes count pixels as 0xRRGGBB, the layout of TYPE_INT_RGB images. */
+    int encode(double[] xyz, int xyzoffset, int count, int[] out, int outoffset, boolean[] outofgamut) {
+        double[] rgb = new double[3*count];
+        int numoutofgamut = toLinear(xyz, xyzoffset, count, rgb, 0, outofgamut);
+        for (int i = 0; (i < count); i++) {
+            out[outoffset+i] = (space.quantize8(rgb[3*i]) << 16) | (space.quantize8(rgb[3*i+1]) << 8)
+                    | space.quantize8(rgb[3*i+2]);
+        }
+        return numoutofgamut;
+    }
+
+    /** Clips a linear value, applies the transfer curve and rounds it to 0..max. */
+    int quantize(double v, int max) {
+        if (v <= 0) return 0;
+        if (v >= 1) return max;
+        return Math.round((float)(space.transfer(v)*max));
+    }
+}
@@ -0,0 +1,568 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.salusa.dyemixer.DyeMixer.Dye;
+
+/**
+ * Finds the cheapest recipe within a deltaE tolerance of a color:
+ *
+ *   dyemixer cost [--tolerance x] [--max-dyes n] [--batch x] [--max-amount x]
+ *                 [--costs n:x,...] [--stock n:x,...] [mix options] color...
+ *
+ * Dyes have a cost per unit of amount and a stock, from the library or the options; dyes
+ * without a cost aren't used, and a recipe may use at most stock/batch of a dye. A color is
+ * L*,a*,b* or an sRGB #rrggbb.
+ *
+ * This is a branch and bound over the subsets of up to max-dyes dyes. Every subset gets a lower
+ * bound on the cost of any recipe of its dyes that is close enough: a color within tolerance is
+ * at most so light in X, Y and Z, which takes a least mean absorbance over the light's weights
+ * (by Jensen's inequality, exp being convex), and the cheapest way to buy absorbance in the
+ * subset gives the bound. Subsets are then solved in order of their bound on all threads: the
+ * amounts are first fitted to the color by Levenberg-Marquardt, and if it is within tolerance,
+ * searched for the cost with the color kept within it. Once a thread reaches a subset whose
+ * bound is no less than the best cost found, it and all after it are pruned. The answer doesn't
+ * depend on the number of threads, as every subset with a bound below the answer's cost is
+ * solved.
+ *
+ * A color more than GamutHull.skipdistance beyond the tolerance outside the gamut of the dyes
+ * has no recipe and isn't searched. The search runs on a 5 nm BatchMixer; the answer is checked
+ * at 1 nm and its color refined if it drifted out of tolerance. The bound assumes the
+ * transmissive model and nonnegative XYZ weights, and is 0 otherwise, which leaves the order but
+ * prunes nothing.
+ */
+class CostOptimizer {
+
+    final BatchMixer mixer;
+    final BatchMixer finemixer;
+    /** The gamut of the dyes, or null to search every color. */
+    final GamutHull gamut;
+    final int maxdyes;
+    final double tolerance;
+    /** Per dye of the mixers: cost per unit of amount, and the most a recipe may use. */
+    final double[] costs;
+    final double[] caps;
+    /** Per dye and X, Y, Z: weighted mean absorbance (natural log) per unit of strength. */
+    final double[][] meanabsorbance;
+    /** Per dye: the most strength per unit of amount of its response. */
+    final double[] strengthratio;
+    final boolean bounded;
+
+    int numsolved;
+    int numpruned;
+    /** How far outside the gamut the last color was, if too far to search; 0 otherwise. */
+    double outside;
+
+    CostOptimizer(BatchMixer mixer, BatchMixer finemixer, GamutHull gamut, int maxdyes, double tolerance,
+                  double[] costs, double[] caps) {
+        this.mixer = mixer;
+        this.finemixer = finemixer;
+        this.gamut = gamut;
+        this.maxdyes = maxdyes;
+        this.tolerance = tolerance;
+        this.costs = costs;
+        this.caps = caps;
+        int numdyes = mixer.dyes.length;
+        boolean nonnegative = !mixer.kubelkamunk && !mixer.combinedbright;
+        for (int c = 0; (c < 3); c++) {
+            for (int p = 0; (p < mixer.numpoints); p++) nonnegative &= (mixer.weights[c][p] >= 0);
+        }
+        bounded = nonnegative;
+        meanabsorbance = new double[numdyes][3];
+        strengthratio = new double[numdyes];
+        for (int t = 0; (t < numdyes); t++) {
+            for (int c = 0; (c < 3); c++) {
+                double sum = 0, weight = 0;
+                for (int p = 0; (p < mixer.numpoints); p++) {
+                    sum += mixer.weights[c][p]*mixer.coefficients[t][p];
+                    weight += mixer.weights[c][p];
+                }
+                meanabsorbance[t][c] = (weight > 0) ? sum/weight : 0;
+            }
+            // Sampled on a fine geometric grid, with a margin for what falls between
+            double ratio = 0;
+            for (double a = MixEngine.amountquantum; (a <= caps[t]*1.0001); a *= 1.02) {
+                ratio = Math.max(ratio, mixer.dyes[t].getStrength(a)/a);
+            }
+            strengthratio[t] = 1.01*Math.max(ratio, mixer.dyes[t].getStrength(caps[t])/caps[t]);
+        }
+    }
+
+    /** A recipe found: the dyes as indices into the mixers' dyes, their amounts, cost and color. */
+    static class Candidate {
+        final int[] dyes;
+        final double[] amounts;
+        final double cost;
+        final double[] lab;
+        final double deltae;
+        /** The position of its subset in the order they were solved, for ties. */
+        final int order;
+
+        Candidate(int[] dyes, double[] amounts, double cost, double[] lab, double deltae, int order) {
+            this.dyes = dyes;
+            this.amounts = amounts;
+            this.cost = cost;
+            this.lab = lab;
+            this.deltae = deltae;
+            this.order = order;
+        }
+
+        boolean isBetterThan(Candidate other) {
+            return (other == null) || (cost < other.cost) || ((cost == other.cost) && (order < other.order));
+        }
+    }
+
+    /** The least mean absorbance (natural log) in X, Y and Z that a color within tolerance takes. */
+    double[] getRequiredAbsorbance(double[] target) {
+        double[] required = new double[3];
+        if (!bounded) return required;
+        double[] canvas = mixer.mix(new double[mixer.dyes.length]);
+        double fy = (target[0] + 16.0)/116.0;
+        // The largest f(X/Xw), f(Y/Yw) and f(Z/Zw) in the tolerance ball around target
+        double[] f = {
+            fy + target[1]/500.0 + tolerance*Math.hypot(1/116.0, 1/500.0),
+            fy + tolerance/116.0,
+            fy - target[2]/200.0 + tolerance*Math.hypot(1/116.0, 1/200.0)
+        };
+        for (int c = 0; (c < 3); c++) {
+            double t = (f[c] > 6.0/29.0) ? f[c]*f[c]*f[c] : (116.0*f[c] - 16.0)/CIELab.kappa;
+            double max = t*CIELab.white[c];
+            if ((max > 0) && (canvas[c] > max)) required[c] = Math.log(canvas[c]/max);
+        }
+        return required;
+    }
+
+    /** The lower bound of the cost of a recipe of dyes; infinite if they can't get dark enough. */
+    double getBound(int[] dyes, double[] required) {
+        double bound = 0;
+        for (int c = 0; (c < 3); c++) {
+            if (required[c] == 0) continue;
+            double cheapest = Double.POSITIVE_INFINITY;
+            double most = 0;
+            for (int d : dyes) {
+                double absorbance = meanabsorbance[d][c]*strengthratio[d];
+                most += absorbance*caps[d];
+                if (absorbance > 0) cheapest = Math.min(cheapest, costs[d]/absorbance);
+            }
+            if (most < required[c]) return Double.POSITIVE_INFINITY;
+            bound = Math.max(bound, required[c]*cheapest);
+        }
+        return bound;
+    }
+
+    /** All subsets of one to maxdyes of the dyes with a cost and stock. */
+    List<int[]> getSubsets() {
+        List<Integer> usable = new ArrayList<Integer>();
+        for (int t = 0; (t < costs.length); t++) {
+            if ((costs[t] >= 0) && (caps[t] >= MixEngine.amountquantum)) usable.add(t);
+        }
+        List<int[]> subsets = new ArrayList<int[]>();
+        addSubsets(usable, 0, new int[0], subsets);
+        return subsets;
+    }
+
+    void addSubsets(List<Integer> usable, int from, int[] prefix, List<int[]> subsets) {
+        if (prefix.length == maxdyes) return;
+        for (int i = from; (i < usable.size()); i++) {
+            int[] subset = Arrays.copyOf(prefix, prefix.length + 1);
+            subset[prefix.length] = usable.get(i);
+            subsets.add(subset);
+            addSubsets(usable, i + 1, subset, subsets);
+        }
+    }
+
+    /** The cheapest recipe within tolerance of target, or null if there is none. */
+    Candidate solve(final double[] target, int numthreads) throws ExecutionException {
+        List<int[]> all = getSubsets();
+        final int n = all.size();
+        outside = (gamut == null) ? 0 : gamut.getDistanceOutside(target);
+        if (outside > tolerance + GamutHull.skipdistance) {
+            numsolved = 0;
+            numpruned = n;
+            return null;
+        }
+        outside = 0;
+        final double[] required = getRequiredAbsorbance(target);
+        final double[] bounds = new double[n];
+        Integer[] order = new Integer[n];
+        for (int k = 0; (k < n); k++) {
+            bounds[k] = getBound(all.get(k), required);
+            order[k] = k;
+        }
+        Arrays.sort(order, (k1, k2) -> Double.compare(bounds[k1], bounds[k2]));
+        final int[][] subsets = new int[n][];
+        final double[] sortedbounds = new double[n];
+        for (int k = 0; (k < n); k++) {
+            subsets[k] = all.get(order[k]);
+            sortedbounds[k] = bounds[order[k]];
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger solved = new AtomicInteger();
+        final AtomicLong bestcost = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+        final Candidate[] best = new Candidate[1];
+        // One chunk per thread, each taking subsets in order until the bound passes the best
+        BatchMixer.forEachChunk(numthreads, 1, numthreads, (first, count) -> {
+            while (true) {
+                int k = next.getAndIncrement();
+                if ((k >= n) || (sortedbounds[k] >= Double.longBitsToDouble(bestcost.get()))) break;
+                solved.incrementAndGet();
+                Candidate candidate = solveSubset(subsets[k], target, required, k);
+                if (candidate == null) continue;
+                synchronized (best) {
+                    if (candidate.isBetterThan(best[0])) {
+                        best[0] = candidate;
+                        bestcost.set(Double.doubleToLongBits(candidate.cost));
+                    }
+                }
+            }
+        });
+        numsolved = solved.get();
+        numpruned = n - numsolved;
+        return (best[0] == null) ? null : polish(best[0], target);
+    }
+
+    /** The cheapest recipe of exactly these dyes within tolerance of target, or null. */
+    Candidate solveSubset(int[] dyes, double[] target, double[] required, int order) {
+        int count = dyes.length;
+        double[] a = new double[count];
+        // Start with the dyes sharing the darkening equally
+        double need = 0;
+        for (int c = 0; (c < 3); c++) {
+            double total = 0;
+            for (int d : dyes) total += meanabsorbance[d][c]*strengthratio[d];
+            if (total > 0) need = Math.max(need, required[c]/total);
+        }
+        for (int s = 0; (s < count); s++) {
+            a[s] = Math.min(caps[dyes[s]], Math.max(10*MixEngine.amountquantum, need));
+        }
+        double error = fitColor(mixer, dyes, a, target);
+        double limit = tolerance*tolerance;
+        if (error > limit) return null;
+        searchCost(dyes, a, target, limit);
+        return toCandidate(mixer, dyes, a, target, order);
+    }
+
+    Candidate toCandidate(BatchMixer m, int[] dyes, double[] a, double[] target, int order) {
+        double cost = 0;
+        for (int s = 0; (s < dyes.length); s++) cost += costs[dyes[s]]*a[s];
+        double[] lab = RecipeSolver.getLab(m, dyes, a);
+        return new Candidate(dyes, a, cost, lab, CIELab.deltaE(lab, target), order);
+    }
+
+    /** Checks candidate at 1 nm and rounded like the sliders, nudged back within tolerance if need be. */
+    Candidate polish(Candidate candidate, double[] target) {
+        double[] a = candidate.amounts.clone();
+        double limit = tolerance*tolerance;
+        round(candidate.dyes, a);
+        if (RecipeSolver.getError(finemixer, candidate.dyes, a, target) > limit) {
+            searchColor(finemixer, candidate.dyes, a, target, 1.02);
+            round(candidate.dyes, a);
+        }
+        return toCandidate(finemixer, candidate.dyes, a, target, candidate.order);
+    }
+
+    void round(int[] dyes, double[] a) {
+        for (int s = 0; (s < a.length); s++) {
+            long steps = Math.max(1, MixEngine.quantize(a[s]));
+            while ((steps > 1) && (steps*MixEngine.amountquantum > caps[dyes[s]])) steps--;
+            a[s] = steps*MixEngine.amountquantum;
+        }
+    }
+
+    double clamp(int dye, double amount) {
+        return Math.max(MixEngine.amountquantum, Math.min(caps[dye], amount));
+    }
+
+    /**
+     * Levenberg-Marquardt on the logarithms of the amounts for the color nearest target, within
+     * each dye's cap, with a forward difference Jacobian. Stops when well within tolerance or
+     * when it stalls, which on an infeasible subset is soon. Returns the squared deltaE.
+     */
+    double fitColor(BatchMixer m, int[] dyes, double[] a, double[] target) {
+        int n = dyes.length;
+        double[] residual = getResidual(m, dyes, a, target);
+        double error = dot(residual, residual);
+        double lambda = 1e-3;
+        double[][] jacobian = new double[n][];
+        double[] trial = new double[n];
+        for (int iteration = 0; (iteration < 40) && (error > 0.01*tolerance*tolerance); iteration++) {
+            for (int s = 0; (s < n); s++) {
+                System.arraycopy(a, 0, trial, 0, n);
+                double h = 1e-4;
+                trial[s] = a[s]*Math.exp(h);
+                double[] r = getResidual(m, dyes, trial, target);
+                jacobian[s] = new double[3];
+                for (int c = 0; (c < 3); c++) jacobian[s][c] = (r[c] - residual[c])/h;
+            }
+            boolean improved = false;
+            while (!improved && (lambda < 1e6)) {
+                // (J'J + lambda diag(J'J)) step = -J'r
+                double[][] normal = new double[n][n + 1];
+                for (int i = 0; (i < n); i++) {
+                    for (int j = 0; (j < n); j++) normal[i][j] = dot(jacobian[i], jacobian[j]);
+                    normal[i][i] *= 1 + lambda;
+                    normal[i][i] += 1e-12;
+                    normal[i][n] = -dot(jacobian[i], residual);
+                }
+                double[] step = solveLinear(normal);
+                for (int s = 0; (s < n); s++) {
+                    trial[s] = clamp(dyes[s], a[s]*Math.exp(Math.max(-3, Math.min(3, step[s]))));
+                }
+                double[] r = getResidual(m, dyes, trial, target);
+                double e = dot(r, r);
+                if (e < error) {
+                    improved = true;
+                    boolean stalled = (e > 0.98*error);
+                    error = e;
+                    residual = r;
+                    System.arraycopy(trial, 0, a, 0, n);
+                    lambda = Math.max(1e-7, lambda/3);
+                    if (stalled && (error > 4*tolerance*tolerance)) return error;
+                } else {
+                    lambda *= 4;
+                }
+            }
+            if (!improved) break;
+        }
+        return error;
+    }
+
+    static double[] getResidual(BatchMixer m, int[] dyes, double[] a, double[] target) {
+        double[] lab = RecipeSolver.getLab(m, dyes, a);
+        for (int c = 0; (c < 3); c++) lab[c] -= target[c];
+        return lab;
+    }
+
+    static double dot(double[] u, double[] v) {
+        double sum = 0;
+        for (int c = 0; (c < u.length); c++) sum += u[c]*v[c];
+        return sum;
+    }
+
+    /** Gaussian elimination with partial pivoting of an n by n+1 augmented matrix. */
+    static double[] solveLinear(double[][] m) {
+        int n = m.length;
+        for (int i = 0; (i < n); i++) {
+            int pivot = i;
+            for (int j = i + 1; (j < n); j++) {
+                if (Math.abs(m[j][i]) > Math.abs(m[pivot][i])) pivot = j;
+            }
+            double[] swap = m[i];
+            m[i] = m[pivot];
+            m[pivot] = swap;
+            for (int j = i + 1; (j < n); j++) {
+                double f = m[j][i]/m[i][i];
+                for (int k = i; (k <= n); k++) m[j][k] -= f*m[i][k];
+            }
+        }
+        double[] x = new double[n];
+        for (int i = n - 1; (i >= 0); i--) {
+            double sum = m[i][n];
+            for (int k = i + 1; (k < n); k++) sum -= m[i][k]*x[k];
+            x[i] = sum/m[i][i];
+        }
+        return x;
+    }
+
+    /**
+     * Pattern search on the amounts for the color nearest target, as RecipeSolver.refine() but
+     * within each dye's cap. Returns the squared deltaE.
+     */
+    double searchColor(BatchMixer m, int[] dyes, double[] a, double[] target, double factor) {
+        double error = RecipeSolver.getError(m, dyes, a, target);
+        double[] trial = new double[a.length];
+        while (factor > 1.0005) {
+            boolean improved = false;
+            for (int s = 0; (s <= a.length); s++) {
+                for (int direction = 0; (direction < 2); direction++) {
+                    double f = (direction == 0) ? factor : 1.0/factor;
+                    for (int u = 0; (u < a.length); u++) {
+                        trial[u] = ((s == a.length) || (s == u)) ? clamp(dyes[u], a[u]*f) : a[u];
+                    }
+                    double e = RecipeSolver.getError(m, dyes, trial, target);
+                    if (e < error) {
+                        error = e;
+                        System.arraycopy(trial, 0, a, 0, a.length);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+            if (!improved) factor = Math.sqrt(factor);
+        }
+        return error;
+    }
+
+    /**
+     * Pattern search on the amounts for the least cost with the color within limit, a squared
+     * deltaE: each amount down, and each pair traded one down and the other up.
+     */
+    void searchCost(int[] dyes, double[] a, double[] target, double limit) {
+        double[] trial = new double[a.length];
+        double cost = 0;
+        for (int s = 0; (s < a.length); s++) cost += costs[dyes[s]]*a[s];
+        double factor = 1.5;
+        while (factor > 1.0005) {
+            boolean improved = false;
+            for (int down = 0; (down < a.length) && !improved; down++) {
+                for (int up = -1; (up < a.length) && !improved; up++) {
+                    if (up == down) continue;
+                    System.arraycopy(a, 0, trial, 0, a.length);
+                    trial[down] = clamp(dyes[down], a[down]/factor);
+                    if (up >= 0) trial[up] = clamp(dyes[up], a[up]*factor);
+                    double c = 0;
+                    for (int s = 0; (s < a.length); s++) c += costs[dyes[s]]*trial[s];
+                    if (c >= cost) continue;
+                    if (RecipeSolver.getError(mixer, dyes, trial, target) > limit) continue;
+                    cost = c;
+                    System.arraycopy(trial, 0, a, 0, a.length);
+                    improved = true;
+                }
+            }
+            if (!improved) factor = Math.sqrt(factor);
+        }
+    }
+
+    static int run(String[] args) throws IOException {
+        MixOptions options = new MixOptions();
+        double tolerance = 1.0;
+        int maxdyes = 3;
+        double batch = 1.0;
+        double maxamount = DyeMixer.maxdyeamount;
+        String costlist = null;
+        String stocklist = null;
+        List<String> colors = new ArrayList<String>();
+        List<double[]> targets = new ArrayList<double[]>();
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--tolerance") && hasvalue) {
+                    tolerance = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--max-dyes") && hasvalue) {
+                    maxdyes = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--batch") && hasvalue) {
+                    batch = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--max-amount") && hasvalue) {
+                    maxamount = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--costs") && hasvalue) {
+                    costlist = args[++t];
+                } else if (arg.equals("--stock") && hasvalue) {
+                    stocklist = args[++t];
+                } else if (arg.startsWith("--")) {
+                    return usage("Unknown option "+ arg);
+                } else {
+                    colors.add(arg);
+                    targets.add(GamutCheck.parseColor(arg));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if (colors.isEmpty()) return usage(null);
+        if (!(tolerance > 0) || (maxdyes < 1) || !(batch > 0) || !(maxamount > 0)) return usage("Out of range");
+        options.resolve();
+        Dye[] dyes = options.dyes;
+        double[] costs = new double[dyes.length];
+        double[] stock = new double[dyes.length];
+        for (int t = 0; (t < dyes.length); t++) {
+            costs[t] = dyes[t].cost;
+            stock[t] = dyes[t].stock;
+        }
+        try {
+            if (costlist != null) setValues(costlist, dyes, costs);
+            if (stocklist != null) setValues(stocklist, dyes, stock);
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        double[] caps = new double[dyes.length];
+        boolean anycost = false;
+        for (int t = 0; (t < dyes.length); t++) {
+            caps[t] = Math.min(maxamount, stock[t]/batch);
+            anycost |= (costs[t] >= 0);
+        }
+        if (!anycost) return usage("No dye has a cost; give some with --costs or in the library");
+
+        MixEngine engine = options.newEngine();
+        int flags = options.getFlags();
+        maxdyes = Math.min(maxdyes, dyes.length);
+        GamutHull gamut;
+        try {
+            // All the dyes up to the largest amount: a superset of what the costs and stock allow
+            gamut = engine.getGamut(options.light, options.canvas, flags, dyes, maxdyes, maxamount,
+                    GamutHull.defaultnumsamples, 5, options.numthreads);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        CostOptimizer optimizer = new CostOptimizer(
+                new BatchMixer(engine, options.light, options.canvas, flags, dyes, 5),
+                new BatchMixer(engine, options.light, options.canvas, flags, dyes, 1),
+                gamut, maxdyes, tolerance, costs, caps);
+        System.out.println("# cheapest recipes of up to "+ optimizer.maxdyes +" dyes within deltaE "+ tolerance
+                +", batch "+ batch +"; "+ options.describe());
+        for (int k = 0; (k < colors.size()); k++) {
+            long start = System.nanoTime();
+            Candidate candidate;
+            try {
+                candidate = optimizer.solve(targets.get(k), options.numthreads);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            long elapsed = (System.nanoTime() - start)/1000000;
+            StringBuilder line = new StringBuilder(colors.get(k));
+            if (optimizer.outside > 0) {
+                line.append(String.format(Locale.ROOT, "  no recipe: outside the gamut by %.2f", optimizer.outside));
+            } else if (candidate == null) {
+                line.append("  no recipe within tolerance");
+            } else {
+                line.append(String.format(Locale.ROOT, "  cost %.4f  deltaE %.2f ", candidate.cost*batch, candidate.deltae));
+                for (int s = 0; (s < candidate.dyes.length); s++) {
+                    Dye dye = dyes[candidate.dyes[s]];
+                    line.append(String.format(Locale.ROOT, " %d:%.3f (%s)", dye.getNumber(), candidate.amounts[s], dye.getName()));
+                }
+            }
+            line.append(String.format(Locale.ROOT, "  [%d subsets solved, %d pruned, %d ms]",
+                    optimizer.numsolved, optimizer.numpruned, elapsed));
+            System.out.println(line);
+        }
+        return 0;
+    }
+
+    /** Sets values from "number:value,..." for the dyes with those numbers. */
+    static void setValues(String list, Dye[] dyes, double[] values) {
+        for (String item : list.split(",")) {
+            String[] parts = item.split(":");
+            if (parts.length != 2) throw new IllegalArgumentException("Expecting number:value, not "+ item);
+            int number = Integer.parseInt(parts[0].trim());
+            double value = Double.parseDouble(parts[1].trim());
+            boolean found = false;
+            for (int t = 0; (t < dyes.length); t++) {
+                if (dyes[t].getNumber() == number) {
+                    values[t] = value;
+                    found = true;
+                }
+            }
+            if (!found) throw new IllegalArgumentException("No dye "+ number +" among the dyes");
+        }
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: cost [--tolerance x] [--max-dyes n] [--batch x] [--max-amount x]");
+        System.err.println("            [--costs n:x,...] [--stock n:x,...]");
+        System.err.println("            "+ MixOptions.usage.replace("\n", "\n            "));
+        System.err.println("            color...   (L*,a*,b* or #rrggbb)");
+        return 2;
+    }
+}
@@ -0,0 +1,256 @@
+package dev.salusa.dyemixer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.EvenlySampledSpectrum;
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * Imports spectrophotometer exports, one "wavelength,value" CSV file per dye or canvas, into a
+ * library file in the LibrarySnapshot format, e.g. for the user library directory:
+ *
+ *   dyemixer import [--canvas] [--values reflectance|transmittance|absorbance]
+ *                   [--category name] [--first-number n] [--threads n] out.bin csv-or-dir...
+ *
+ * Lines that don't start with two numbers (headers, comments) are skipped. Values may be
+ * separated by ",", ";" or tabs; with ";" or tabs a decimal comma is accepted too. Reflectance
+ * and transmittance above 1 are taken as percentages. Each spectrum is resampled to the 1 nm
+ * engine grid; dyes are clipped and normalized like data.txt dyes, canvases converted to
+ * absorbance.
+ *
+ * Files are read by a pool of threads with a bounded number in flight, and only the resampled
+ * grid is kept per file, so memory doesn't depend on the size of the exports. Entities are
+ * numbered from --first-number in file name order whatever order the threads finish in.
+ */
+class CsvImport {
+
+    static final int valuesreflectance = 0;
+    static final int valuestransmittance = 1;
+    static final int valuesabsorbance = 2;
+
+    /** Keeps measured zero reflectance from becoming infinite absorbance. */
+    static final double minreflectance = 1e-4;
+
+    static final int numgridsamples = Light.cieend - Light.ciestart + 1;
+
+    boolean canvas = false;
+    int values = -1;
+    String category = "imported";
+    int firstnumber = 100000;
+    int numthreads = Runtime.getRuntime().availableProcessors();
+
+    static int run(String[] args) throws IOException {
+        CsvImport csvimport = new CsvImport();
+        List<Path> inputs = new ArrayList<Path>();
+        Path output = null;
+        for (int t = 0; (t < args.length); t++) {
+            String arg = args[t];
+            if (arg.equals("--canvas")) {
+                csvimport.canvas = true;
+            } else if (arg.equals("--dye")) {
+                csvimport.canvas = false;
+            } else if (arg.equals("--values") && (t+1 < args.length)) {
+                String kind = args[++t];
+                if (kind.equals("reflectance")) csvimport.values = valuesreflectance;
+                else if (kind.equals("transmittance")) csvimport.values = valuestransmittance;
+                else if (kind.equals("absorbance")) csvimport.values = valuesabsorbance;
+                else return usage("Unknown kind of values "+ kind);
+            } else if (arg.equals("--category") && (t+1 < args.length)) {
+                csvimport.category = args[++t];
+            } else if (arg.equals("--first-number") && (t+1 < args.length)) {
+                csvimport.firstnumber = Integer.parseInt(args[++t]);
+            } else if (arg.equals("--threads") && (t+1 < args.length)) {
+                csvimport.numthreads = Math.max(1, Integer.parseInt(args[++t]));
+            } else if (arg.startsWith("--")) {
+                return usage("Unknown option "+ arg);
+            } else if (output == null) {
+                output = Paths.get(arg);
+            } else {
+                inputs.add(Paths.get(arg));
+            }
+        }
+        if ((output == null) || inputs.isEmpty()) return usage(null);
+        if (csvimport.values < 0) {
+            // Dye exports are usually absorbance, fabric measurements reflectance
+            csvimport.values = csvimport.canvas ? valuesreflectance : valuesabsorbance;
+        }
+
+        long start = System.nanoTime();
+        List<Path> files = listFiles(inputs);
+        Library library = csvimport.importFiles(files);
+        Path dir = output.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        try (OutputStream out = Files.newOutputStream(output)) {
+            LibrarySnapshot.write(library, out);
+        }
+        for (int t = 0; (t < library.errors.size()); t++) {
+            System.err.println(library.errors.elementAt(t));
+        }
+        int count = csvimport.canvas ? library.availablecanvases.size() : library.availabledyes.size();
+        System.out.println("Imported "+ count +" "+ (csvimport.canvas ? "canvases" : "dyes") +" from "
+                + files.size() +" files into "+ output +" in "+ (System.nanoTime() - start)/1000000 +" ms"
+                + (library.errors.isEmpty() ? "" : ", "+ library.errors.size() +" skipped"));
+        return library.errors.isEmpty() ? 0 : 1;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: import [--dye|--canvas] [--values reflectance|transmittance|absorbance]");
+        System.err.println("              [--category name] [--first-number n] [--threads n]");
+        System.err.println("              <output.bin> <csv file or directory>...");
+        return 2;
+    }
+
+    /** The CSV files named or contained (not recursively) in inputs, sorted by path. */
+    static List<Path> listFiles(List<Path> inputs) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> stream = Files.list(input)) {
+                    stream.filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")).forEach(files::add);
+                }
+            } else {
+                files.add(input);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    Library importFiles(List<Path> files) throws IOException {
+        Library library = new Library();
+        ExecutorService pool = Executors.newFixedThreadPool(numthreads);
+        try {
+            // At most a few files per thread are in flight; results are taken in file order
+            int maxinflight = 4*numthreads;
+            ArrayDeque<Future<float[]>> inflight = new ArrayDeque<Future<float[]>>();
+            int next = 0;
+            int done = 0;
+            while (done < files.size()) {
+                while ((next < files.size()) && (inflight.size() < maxinflight)) {
+                    final Path file = files.get(next++);
+                    inflight.add(pool.submit(() -> readGrid(file)));
+                }
+                Path file = files.get(done);
+                try {
+                    add(library, file, inflight.remove().get(), firstnumber + done);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    library.errors.addElement("Skipped "+ file +": "
+                            + ((cause instanceof IOException) ? cause.getMessage() : cause.toString()));
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                done++;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return library;
+    }
+
+    void add(Library library, Path file, float[] grid, int number) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        EvenlySampledSpectrum spectrum = new EvenlySampledSpectrum(grid, Light.ciestart, 1);
+        if (canvas) {
+            library.availablecanvases.addElement(Canvas.fromAbsorbance(category +", "+ name, spectrum, number));
+        } else {
+            library.availabledyes.addElement(new Dye(name, "?", category, "?", spectrum, number));
+        }
+    }
+
+    /** Reads one export and returns its absorbance on the engine grid. */
+    float[] readGrid(Path file) throws IOException {
+        double[] wavelens = new double[512];
+        double[] samples = new double[512];
+        int numsamples = 0;
+        double max = 0;
+        boolean sorted = true;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                double[] pair = parsePair(line);
+                if (pair == null) continue;
+                if (numsamples == wavelens.length) {
+                    wavelens = Arrays.copyOf(wavelens, 2*numsamples);
+                    samples = Arrays.copyOf(samples, 2*numsamples);
+                }
+                if ((numsamples > 0) && (pair[0] <= wavelens[numsamples-1])) sorted = false;
+                wavelens[numsamples] = pair[0];
+                samples[numsamples] = pair[1];
+                if (pair[1] > max) max = pair[1];
+                numsamples++;
+            }
+        }
+        if (numsamples == 0) throw new IOException("no wavelength,value lines");
+        if (!sorted) throw new IOException("wavelengths must be increasing");
+
+        double scale = ((values != valuesabsorbance) && (max > 1.5)) ? 0.01 : 1.0;
+        float[] grid = new float[numgridsamples];
+        int u = 0;
+        for (int t = 0; (t < numgridsamples); t++) {
+            double wavelen = Light.ciestart + t;
+            while ((u < numsamples-1) && (wavelens[u+1] <= wavelen)) u++;
+            double value;
+            if ((wavelen <= wavelens[0]) || (numsamples == 1)) {
+                value = samples[0];
+            } else if (u >= numsamples-1) {
+                value = samples[numsamples-1];
+            } else {
+                double fract = (wavelen - wavelens[u])/(wavelens[u+1] - wavelens[u]);
+                value = samples[u] + fract*(samples[u+1] - samples[u]);
+            }
+            if (values != valuesabsorbance) {
+                value = -Math.log10(Math.max(value*scale, minreflectance));
+            }
+            grid[t] = (float)value;
+        }
+        if (!canvas) {
+            EvenlySampledSpectrum spectrum = new EvenlySampledSpectrum(grid, Light.ciestart, 1);
+            spectrum.clipNegatives();
+            spectrum.normalizeAbsorbance();
+        }
+        return grid;
+    }
+
+    /** Returns {wavelength, value} or null if the line isn't a data line. */
+    static double[] parsePair(String line) {
+        line = line.trim();
+        if ((line.length() == 0) || !(Character.isDigit(line.charAt(0)) || (line.charAt(0) == '.'))) {
+            return null;
+        }
+        String[] fields;
+        if ((line.indexOf(';') >= 0) || (line.indexOf('\t') >= 0)) {
+            fields = line.replace(',', '.').split("[;\t]");
+        } else {
+            fields = line.split(",");
+        }
+        if (fields.length < 2) return null;
+        try {
+            return new double[] {Double.parseDouble(fields[0].trim()), Double.parseDouble(fields[1].trim())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
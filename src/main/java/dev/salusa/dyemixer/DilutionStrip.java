@@ -0,0 +1,66 @@
+package dev.salusa.dyemixer;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+
+/** Shows one recipe at a range of strengths, weakest on the left. */
+class DilutionStrip extends Component {
+
+    private static final long serialVersionUID = 1L;
+
+    Color[] colors = new Color[0];
+    double firststrength;
+    double strengthstep;
+
+    Dimension preferreddimension = new Dimension(300, 23);
+
+    DilutionStrip() {
+        setName("DilutionStrip");
+    }
+
+    /** Sets the colors of the steps at firststrength, firststrength+strengthstep, ... */
+    public void setColors(Color[] colors, double firststrength, double strengthstep) {
+        this.colors = colors;
+        this.firststrength = firststrength;
+        this.strengthstep = strengthstep;
+        repaint();
+    }
+
+    public void paint(Graphics g) {
+        int width = getSize().width - 4;
+        int height = getSize().height - 4;
+        if ((colors.length == 0) || (width <= 0) || (height <= 0)) return;
+        g.setColor(Color.lightGray);
+        g.draw3DRect(1, 0, width + 1, height + 1, false);
+        for (int k = 0; (k < colors.length); k++) {
+            int x0 = 2 + k*width/colors.length;
+            int x1 = 2 + (k + 1)*width/colors.length;
+            g.setColor(colors[k]);
+            g.fillRect(x0, 1, x1 - x0, height);
+        }
+        // Mark the step closest to the recipe as entered
+        int unit = (int)Math.round((1.0 - firststrength)/strengthstep);
+        if ((unit >= 0) && (unit < colors.length)) {
+            int x0 = 2 + unit*width/colors.length;
+            int x1 = 2 + (unit + 1)*width/colors.length;
+            g.setColor(colors[unit].darker());
+            g.drawRect(x0, 1, x1 - x0 - 1, height - 1);
+        }
+        g.setColor(colors[colors.length - 1].brighter());
+        String last = "" + Math.round((firststrength + strengthstep*(colors.length - 1))*10)/10.0 + "x";
+        int ascent = g.getFontMetrics().getAscent() - g.getFontMetrics().getDescent();
+        g.drawString(last, width - g.getFontMetrics().stringWidth(last), (getSize().height + ascent)/2);
+        g.setColor(colors[0].darker());
+        g.drawString("" + firststrength + "x", 4, (getSize().height + ascent)/2);
+    }
+
+    public Dimension getMinimumSize() {
+        return new Dimension(64, 23);
+    }
+
+    public Dimension getPreferredSize() {
+        return preferreddimension;
+    }
+}
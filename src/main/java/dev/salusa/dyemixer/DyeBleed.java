@@ -0,0 +1,514 @@
+package dev.salusa.dyemixer;
+
+import java.awt.Canvas;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Frame;
+import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Simulates dyes bleeding into each other on wet fabric:
+ *
+ *   dyemixer bleed --dyes n,n,... [--bleed d] [--fix k] [--steps n] [--every n] [--max-amount x]
+ *                  [--step nm] [--view] [mix options] pattern.png... [framedir]
+ *
+ * Each dye has a field of free dye, which diffuses, and of dye fixed to the fabric, which
+ * doesn't. A step moves a fraction d, at most 0.25, of each cell's free dye difference to its
+ * four neighbours (an explicit Jacobi stencil, no flux across the edges), then fixes a fraction
+ * k of what is free. The patterns give the starting amounts as for the tiedye command, three
+ * dyes to a pattern. Every so many steps a frame of free plus fixed dye is rendered to
+ * framedir, so the bleed can be watched as it goes; with --view it is also shown in a window,
+ * whose title has the time per step and per frame, and framedir may be left out.
+ *
+ * The grid is cut into stripes of rows, one per thread, that a pool keeps stepping; only the
+ * rows at the stripe edges are shared, and those are read from the previous step's field. To
+ * render, amounts are rounded to 64 levels per dye on the slider's cube root scale and each
+ * distinct combination is mixed once, as in TieDyePreview, through a cache that is cleared
+ * between frames when it grows past maxcachesize.
+ */
+class DyeBleed {
+
+    static final int levels = 64;
+    /**
+     * Free dye below this is dropped. The front of a bleed is otherwise a tail of ever smaller
+     * amounts that soon become subnormal floats, which are many times slower to compute with.
+     */
+    static final float tiny = 1e-20f;
+
+    final int width;
+    final int height;
+    final int numdyes;
+    float[][] free;
+    float[][] next;
+    final float[][] fixed;
+    float diffusion = 0.2f;
+    float fixrate = 0.01f;
+    int stepsdone = 0;
+
+    final int numthreads;
+    final ExecutorService pool;
+
+    BatchMixer mixer;
+    final ColorEncoder encoder = new ColorEncoder(ColorEncoder.srgb);
+    double maxamount = DyeMixer.maxdyeamount;
+    /** sRGB per combination of levels, 6 bits per dye. */
+    final Map<Long, Integer> cache = new ConcurrentHashMap<Long, Integer>();
+    /**
+     * The cache is cleared before a frame once it holds more than this. With many dyes the bleed
+     * front keeps making new combinations, and the old ones are mostly gone from the fabric.
+     */
+    static final int maxcachesize = 1 << 17;
+
+    DyeBleed(int width, int height, int numdyes, int numthreads) {
+        this.width = width;
+        this.height = height;
+        this.numdyes = numdyes;
+        this.numthreads = numthreads;
+        free = new float[numdyes][width*height];
+        next = new float[numdyes][width*height];
+        fixed = new float[numdyes][width*height];
+        pool = Executors.newFixedThreadPool(numthreads);
+    }
+
+    void close() {
+        pool.shutdownNow();
+    }
+
+    /** Runs task(first row, end row) on a stripe of rows per thread and waits for them all. */
+    void forEachStripe(final StripeTask task) throws ExecutionException {
+        int numstripes = Math.min(numthreads, height);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int s = 0; (s < numstripes); s++) {
+            final int from = (int)((long)height*s/numstripes);
+            final int to = (int)((long)height*(s + 1)/numstripes);
+            tasks.add(() -> {
+                task.run(from, to);
+                return null;
+            });
+        }
+        try {
+            if (numstripes == 1) {
+                tasks.get(0).call();
+                return;
+            }
+            for (Future<Object> future : pool.invokeAll(tasks)) future.get();
+        } catch (ExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    interface StripeTask {
+        void run(int from, int to) throws Exception;
+    }
+
+    /** Advances the simulation numsteps steps. */
+    void step(int numsteps) throws ExecutionException {
+        for (int n = 0; (n < numsteps); n++) {
+            forEachStripe((from, to) -> {
+                for (int d = 0; (d < numdyes); d++) {
+                    for (int y = from; (y < to); y++) stepRow(free[d], next[d], fixed[d], y);
+                }
+            });
+            float[][] swap = free;
+            free = next;
+            next = swap;
+            stepsdone++;
+        }
+    }
+
+    void stepRow(float[] c, float[] out, float[] f, int y) {
+        int w = width;
+        int row = y*w;
+        int up = (y > 0) ? row - w : row;
+        int down = (y < height - 1) ? row + w : row;
+        float dc = diffusion, keep = 1 - fixrate, k = fixrate;
+        // The edge columns are their own left or right neighbour; the rest has no branches
+        stepCell(c, out, f, row, row, Math.min(row + 1, row + w - 1), up, down, dc, keep, k);
+        for (int x = 1; (x < w - 1); x++) {
+            int i = row + x;
+            float v = c[i];
+            float u = v + dc*(c[i-1] + c[i+1] + c[up + x] + c[down + x] - 4*v);
+            u = (u < tiny) ? 0 : u;
+            out[i] = u*keep;
+            f[i] += u*k;
+        }
+        if (w > 1) stepCell(c, out, f, row + w - 1, row + w - 2, row + w - 1, up + w - 1, down + w - 1, dc, keep, k);
+    }
+
+    static void stepCell(float[] c, float[] out, float[] f, int i, int left, int right, int up, int down,
+                         float dc, float keep, float k) {
+        float v = c[i];
+        float u = v + dc*(c[left] + c[right] + c[up] + c[down] - 4*v);
+        u = (u < tiny) ? 0 : u;
+        out[i] = u*keep;
+        f[i] += u*k;
+    }
+
+    /** Sets dyes first to first+2 from the red, green and blue of pattern pixels, as tiedye. */
+    void setPattern(int first, int[] argb) {
+        for (int d = first; (d < Math.min(numdyes, first + 3)); d++) {
+            int shift = 16 - 8*(d - first);
+            float scale = (float)(maxamount/255.0);
+            for (int i = 0; (i < argb.length); i++) {
+                boolean opaque = (argb[i] >>> 24) >= 128;
+                free[d][i] = opaque ? ((argb[i] >> shift) & 0xff)*scale : 0;
+                fixed[d][i] = 0;
+            }
+        }
+    }
+
+    /** levelthresholds[l] is the smallest amount of level l+1. */
+    float[] levelthresholds;
+    /** The level at the start of each of levellutsize equal steps up to maxamount. */
+    byte[] levellut;
+    static final int levellutsize = 4096;
+
+    /** Sets up the tables for toLevel(); maxamount must be set. */
+    void prepareLevels() {
+        levelthresholds = new float[levels - 1];
+        for (int l = 0; (l < levels - 1); l++) {
+            levelthresholds[l] = (float)fromLevel(l, maxamount, 0.5);
+        }
+        levellut = new byte[levellutsize];
+        int level = 0;
+        for (int i = 0; (i < levellutsize); i++) {
+            while ((level < levels - 1) && (i*maxamount/levellutsize >= levelthresholds[level])) level++;
+            levellut[i] = (byte)level;
+        }
+    }
+
+    /** The nearest level on the cube root scale; a table lookup, as ColorEncoder.quantize8(). */
+    int toLevel(float amount) {
+        if (!(amount > 0)) return 0;
+        int i = (int)(amount*(levellutsize/maxamount));
+        if (i >= levellutsize) return levels - 1;
+        int level = levellut[i];
+        while ((level < levels - 1) && (amount >= levelthresholds[level])) level++;
+        return level;
+    }
+
+    static double fromLevel(int level, double maxamount, double offset) {
+        double x = (level + offset)/(levels - 1);
+        return x*x*x*maxamount;
+    }
+
+    /** Renders free plus fixed dye as sRGB into rgb. */
+    void render(final int[] rgb) throws ExecutionException {
+        if (levellut == null) prepareLevels();
+        if (cache.size() > maxcachesize) cache.clear();
+        forEachStripe((from, to) -> {
+            LevelTable stripecolors = new LevelTable();
+            long[] keys = new long[width];
+            long[] missing = new long[64];
+            for (int y = from; (y < to); y++) {
+                int row = y*width;
+                int nummissing = 0;
+                for (int x = 0; (x < width); x++) {
+                    long key = 0;
+                    for (int d = 0; (d < numdyes); d++) {
+                        key = (key << 6) | toLevel(free[d][row + x] + fixed[d][row + x]);
+                    }
+                    keys[x] = key;
+                    if (((x > 0) && (key == keys[x-1])) || stripecolors.contains(key)) continue;
+                    Integer color = cache.get(key);
+                    stripecolors.put(key, (color == null) ? -1 : color);
+                    if (color == null) {
+                        if (nummissing == missing.length) missing = Arrays.copyOf(missing, 2*nummissing);
+                        missing[nummissing++] = key;
+                    }
+                }
+                if (nummissing > 0) mixLevels(missing, nummissing, stripecolors);
+                int lastcolor = 0;
+                for (int x = 0; (x < width); x++) {
+                    if ((x == 0) || (keys[x] != keys[x-1])) lastcolor = stripecolors.get(keys[x]);
+                    rgb[row + x] = lastcolor;
+                }
+            }
+        });
+    }
+
+    /** Mixes and encodes count level combinations in one batch. */
+    void mixLevels(long[] keys, int count, LevelTable colors) {
+        int[] dyeindices = new int[count*numdyes];
+        double[] amounts = new double[count*numdyes];
+        for (int r = 0; (r < count); r++) {
+            long key = keys[r];
+            for (int d = numdyes - 1; (d >= 0); d--) {
+                dyeindices[r*numdyes + d] = d;
+                amounts[r*numdyes + d] = fromLevel((int)(key & (levels - 1)), maxamount, 0);
+                key >>= 6;
+            }
+        }
+        double[] xyz = new double[3*count];
+        mixer.mix(dyeindices, amounts, numdyes, 0, count, xyz);
+        int[] encoded = new int[count];
+        encoder.encode(xyz, 0, count, encoded, 0, null);
+        for (int r = 0; (r < count); r++) {
+            colors.put(keys[r], encoded[r]);
+            cache.put(keys[r], encoded[r]);
+        }
+    }
+
+    /** An open addressing map from level combinations to colors, for one thread. */
+    static class LevelTable {
+        /** Keys plus one, so that 0 is free. */
+        long[] keys = new long[1024];
+        int[] values = new int[1024];
+        int size = 0;
+
+        int find(long key) {
+            int mask = keys.length - 1;
+            int i = (int)((key*0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while ((keys[i] != 0) && (keys[i] != key + 1)) i = (i + 1) & mask;
+            return i;
+        }
+
+        boolean contains(long key) {
+            return keys[find(key)] != 0;
+        }
+
+        int get(long key) {
+            return values[find(key)];
+        }
+
+        void put(long key, int value) {
+            int i = find(key);
+            if (keys[i] == 0) {
+                if (2*(size + 1) > keys.length) {
+                    long[] oldkeys = keys;
+                    int[] oldvalues = values;
+                    keys = new long[2*oldkeys.length];
+                    values = new int[2*oldkeys.length];
+                    for (int j = 0; (j < oldkeys.length); j++) {
+                        if (oldkeys[j] == 0) continue;
+                        int k = find(oldkeys[j] - 1);
+                        keys[k] = oldkeys[j];
+                        values[k] = oldvalues[j];
+                    }
+                    i = find(key);
+                }
+                keys[i] = key + 1;
+                size++;
+            }
+            values[i] = value;
+        }
+    }
+
+    /**
+     * Shows the frames as they are rendered. The simulation renders into the image not shown
+     * and then flips, so a paint never sees a frame half rendered.
+     */
+    static class View extends Canvas {
+
+        private static final long serialVersionUID = 1L;
+
+        final BufferedImage[] images = new BufferedImage[2];
+        int shown = 0;
+        Frame window;
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        View(int width, int height) {
+            for (int t = 0; (t < 2); t++) images[t] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            setName("DyeBleed");
+        }
+
+        /** Opens a window with the view; closing it counts down closed. */
+        void open(String title) {
+            window = new Frame(title);
+            window.add(this);
+            window.addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) {
+                    window.dispose();
+                    closed.countDown();
+                }
+            });
+            window.pack();
+            window.setVisible(true);
+        }
+
+        boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+
+        /** The image to render the next frame into. */
+        synchronized BufferedImage getBack() {
+            return images[1 - shown];
+        }
+
+        /** Shows the image last rendered into, with status in the title. */
+        void flip(final String status) {
+            synchronized (this) {
+                shown = 1 - shown;
+            }
+            repaint();
+            EventQueue.invokeLater(() -> window.setTitle("Dye bleed: "+ status));
+        }
+
+        public Dimension getPreferredSize() {
+            return new Dimension(images[0].getWidth(), images[0].getHeight());
+        }
+
+        public void update(Graphics g) {
+            paint(g);
+        }
+
+        public synchronized void paint(Graphics g) {
+            g.drawImage(images[shown], 0, 0, null);
+        }
+    }
+
+    static int run(String[] args) throws IOException {
+        MixOptions options = new MixOptions();
+        float diffusion = 0.2f;
+        float fixrate = 0.01f;
+        int numsteps = 200;
+        int every = 20;
+        int step = 5;
+        double maxamount = DyeMixer.maxdyeamount;
+        boolean viewing = false;
+        List<Path> paths = new ArrayList<Path>();
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--bleed") && hasvalue) {
+                    diffusion = Float.parseFloat(args[++t]);
+                } else if (arg.equals("--fix") && hasvalue) {
+                    fixrate = Float.parseFloat(args[++t]);
+                } else if (arg.equals("--steps") && hasvalue) {
+                    numsteps = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--every") && hasvalue) {
+                    every = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-amount") && hasvalue) {
+                    maxamount = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--step") && hasvalue) {
+                    step = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--view")) {
+                    viewing = true;
+                } else if (arg.startsWith("--")) {
+                    return usage("Unknown option "+ arg);
+                } else {
+                    paths.add(Paths.get(arg));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if ((options.dyenumbers == null) || (options.dyenumbers.length > 10)) {
+            return usage("--dyes takes one to ten dyes");
+        }
+        int numpatterns = (options.dyenumbers.length + 2)/3;
+        if ((paths.size() != numpatterns + 1) && (!viewing || (paths.size() != numpatterns))) {
+            return usage(options.dyenumbers.length +" dyes take "+ numpatterns +" patterns and a frame directory");
+        }
+        if (viewing && GraphicsEnvironment.isHeadless()) return usage("--view needs a display");
+        if (!(diffusion >= 0) || (diffusion > 0.25f) || !(fixrate >= 0) || (fixrate > 1) || (numsteps < 0)
+                || (every < 1) || (step < 1) || !(maxamount > 0)) {
+            return usage("Out of range");
+        }
+        options.resolve();
+        Path framedir = (paths.size() > numpatterns) ? paths.get(numpatterns) : null;
+        if (framedir != null) Files.createDirectories(framedir);
+
+        DyeBleed bleed = null;
+        try {
+            for (int p = 0; (p < numpatterns); p++) {
+                try (PngRowReader reader = new PngRowReader(paths.get(p))) {
+                    if (bleed == null) {
+                        if ((long)reader.width*reader.height > Integer.MAX_VALUE/4) throw new IOException("Pattern too large");
+                        bleed = new DyeBleed(reader.width, reader.height, options.dyes.length, options.numthreads);
+                        bleed.diffusion = diffusion;
+                        bleed.fixrate = fixrate;
+                        bleed.maxamount = maxamount;
+                    } else if ((reader.width != bleed.width) || (reader.height != bleed.height)) {
+                        throw new IOException(paths.get(p) +" isn't the size of "+ paths.get(0));
+                    }
+                    int[] argb = new int[reader.width*reader.height];
+                    reader.readRows(argb, reader.height);
+                    bleed.setPattern(3*p, argb);
+                }
+            }
+            bleed.mixer = new BatchMixer(options.newEngine(), options.light, options.canvas, options.getFlags(),
+                    options.dyes, step);
+            View view = null;
+            BufferedImage image = null;
+            if (viewing) {
+                view = new View(bleed.width, bleed.height);
+                view.open("Dye bleed");
+            } else {
+                image = new BufferedImage(bleed.width, bleed.height, BufferedImage.TYPE_INT_RGB);
+            }
+            double steptime = 0;
+            while (true) {
+                if (view != null) image = view.getBack();
+                int[] rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+                long start = System.nanoTime();
+                bleed.render(rgb);
+                long rendered = System.nanoTime();
+                String name = String.format(Locale.ROOT, "frame-%05d.png", bleed.stepsdone);
+                if (framedir != null) ImageIO.write(image, "png", framedir.resolve(name).toFile());
+                System.out.println(String.format(Locale.ROOT, "%s  rendered in %d ms on %d threads, %d mixes cached",
+                        name, (rendered - start)/1000000, bleed.numthreads, bleed.cache.size()));
+                if (view != null) {
+                    view.flip(String.format(Locale.ROOT, "step %d, %.1f ms per step, %d ms per frame on %d threads",
+                            bleed.stepsdone, steptime, (rendered - start)/1000000, bleed.numthreads));
+                    if (view.isClosed()) break;
+                }
+                if (bleed.stepsdone >= numsteps) break;
+                int n = Math.min(every, numsteps - bleed.stepsdone);
+                start = System.nanoTime();
+                bleed.step(n);
+                steptime = (System.nanoTime() - start)/1e6/n;
+                System.out.println(String.format(Locale.ROOT, "%d steps of %dx%d, %d dyes on %d threads: %.1f ms per step",
+                        n, bleed.width, bleed.height, bleed.numdyes, bleed.numthreads, steptime));
+            }
+            // The last frame stays up until the window is closed
+            if (view != null) view.closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            if (bleed != null) bleed.close();
+        }
+        return 0;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: bleed --dyes n,n,... [--bleed d] [--fix k] [--steps n] [--every n]");
+        System.err.println("             [--max-amount x] [--step nm] [--view]");
+        System.err.println("             "+ MixOptions.usage.replace("\n", "\n             "));
+        System.err.println("             pattern.png... [framedir]   (a pattern per three dyes; framedir is");
+        System.err.println("             required without --view)");
+        return 2;
+    }
+}
@@ -5,6 +5,10 @@ package dev.salusa.dyemixer;
 
 import java.applet.Applet;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.Vector;
 import java.net.URL;
 import java.io.BufferedReader;
@@ -13,12 +17,20 @@ import java.io.StreamTokenizer;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.InputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import java.awt.Button;
 import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Frame;
 import java.awt.Graphics;
 import java.awt.GridBagConstraints;
@@ -31,6 +43,8 @@ import java.awt.Scrollbar;
 import java.awt.TextField;
 import java.awt.Window;
 import java.awt.color.ColorSpace;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
 import java.awt.event.ItemEvent;
@@ -290,281 +304,6 @@ public class DyeMixer extends Panel {
         static final int ciestart = 360; // step = 1 nm
         static final int cieend = 830;
 
-        static double getCIEX(int wavelen) {
-            if (wavelen < ciestart) return 0.0;
-            if (wavelen >= (cie2degx.length+ciestart)) return 0.0;
-            return cie2degx[wavelen-ciestart];
-        }
-
-        static double getCIEY(int wavelen) {
-            if (wavelen < ciestart) return 0.0;
-            if (wavelen >= (cie2degy.length+ciestart)) return 0.0;
-            return cie2degy[wavelen-ciestart];
-        }
-
-        static double getCIEZ(int wavelen) {
-            if (wavelen < ciestart) return 0.0;
-            if (wavelen >= (cie2degz.length+ciestart)) return 0.0;
-            return cie2degz[wavelen-ciestart];
-        }
-
-        static final double[] cie2degx = {
-                0.0001299, 0.000145847, 0.000163802, 0.000184004, 0.00020669,
-                0.0002321, 0.000260728, 0.000293075, 0.000329388, 0.000369914,
-                0.0004149, 0.000464159, 0.000518986, 0.000581854, 0.000655235,
-                0.0007416, 0.00084503, 0.000964527, 0.001094949, 0.001231154,
-                0.001368, 0.00150205, 0.001642328, 0.001802382, 0.001995757,
-                0.002236, 0.002535385, 0.002892603, 0.003300829, 0.003753236,
-                0.004243, 0.004762389, 0.005330048, 0.005978712, 0.006741117,
-                0.00765, 0.008751373, 0.01002888, 0.0114217, 0.01286901,
-                0.01431, 0.01570443, 0.01714744, 0.01878122, 0.02074801,
-                0.02319, 0.02620736, 0.02978248, 0.03388092, 0.03846824,
-                0.04351, 0.0489956, 0.0550226, 0.0617188, 0.069212,
-                0.07763, 0.08695811, 0.09717672, 0.1084063, 0.1207672,
-                0.13438, 0.1493582, 0.1653957, 0.1819831, 0.198611,
-                0.21477, 0.2301868, 0.2448797, 0.2587773, 0.2718079,
-                0.2839, 0.2949438, 0.3048965, 0.3137873, 0.3216454,
-                0.3285, 0.3343513, 0.3392101, 0.3431213, 0.3461296,
-                0.34828, 0.3495999, 0.3501474, 0.350013, 0.349287,
-                0.34806, 0.3463733, 0.3442624, 0.3418088, 0.3390941,
-                0.3362, 0.3331977, 0.3300411, 0.3266357, 0.3228868,
-                0.3187, 0.3140251, 0.308884, 0.3032904, 0.2972579,
-                0.2908, 0.2839701, 0.2767214, 0.2689178, 0.2604227,
-                0.2511, 0.2408475, 0.2298512, 0.2184072, 0.2068115,
-                0.19536, 0.1842136, 0.1733273, 0.1626881, 0.1522833,
-                0.1421, 0.1321786, 0.1225696, 0.1132752, 0.1042979,
-                0.09564, 0.08729955, 0.07930804, 0.07171776, 0.06458099,
-                0.05795001, 0.05186211, 0.04628152, 0.04115088, 0.03641283,
-                0.03201, 0.0279172, 0.0241444, 0.020687, 0.0175404,
-                0.0147, 0.01216179, 0.00991996, 0.00796724, 0.006296346,
-                0.0049, 0.003777173, 0.00294532, 0.00242488, 0.002236293,
-                0.0024, 0.00292552, 0.00383656, 0.00517484, 0.00698208,
-                0.0093, 0.01214949, 0.01553588, 0.01947752, 0.02399277,
-                0.0291, 0.03481485, 0.04112016, 0.04798504, 0.05537861,
-                0.06327, 0.07163501, 0.08046224, 0.08973996, 0.09945645,
-                0.1096, 0.1201674, 0.1311145, 0.1423679, 0.1538542,
-                0.1655, 0.1772571, 0.18914, 0.2011694, 0.2133658,
-                0.2257499, 0.2383209, 0.2510668, 0.2639922, 0.2771017,
-                0.2904, 0.3038912, 0.3175726, 0.3314384, 0.3454828,
-                0.3597, 0.3740839, 0.3886396, 0.4033784, 0.4183115,
-                0.4334499, 0.4487953, 0.464336, 0.480064, 0.4959713,
-                0.5120501, 0.5282959, 0.5446916, 0.5612094, 0.5778215,
-                0.5945, 0.6112209, 0.6279758, 0.6447602, 0.6615697,
-                0.6784, 0.6952392, 0.7120586, 0.7288284, 0.7455188,
-                0.7621, 0.7785432, 0.7948256, 0.8109264, 0.8268248,
-                0.8425, 0.8579325, 0.8730816, 0.8878944, 0.9023181,
-                0.9163, 0.9297995, 0.9427984, 0.9552776, 0.9672179,
-                0.9786, 0.9893856, 0.9995488, 1.0090892, 1.0180064,
-                1.0263, 1.0339827, 1.040986, 1.047188, 1.0524667,
-                1.0567, 1.0597944, 1.0617992, 1.0628068, 1.0629096,
-                1.0622, 1.0607352, 1.0584436, 1.0552244, 1.0509768,
-                1.0456, 1.0390369, 1.0313608, 1.0226662, 1.0130477,
-                1.0026, 0.9913675, 0.9793314, 0.9664916, 0.9528479,
-                0.9384, 0.923194, 0.907244, 0.890502, 0.87292,
-                0.8544499, 0.835084, 0.814946, 0.794186, 0.772954,
-                0.7514, 0.7295836, 0.7075888, 0.6856022, 0.6638104,
-                0.6424, 0.6215149, 0.6011138, 0.5811052, 0.5613977,
-                0.5419, 0.5225995, 0.5035464, 0.4847436, 0.4661939,
-                0.4479, 0.4298613, 0.412098, 0.394644, 0.3775333,
-                0.3608, 0.3444563, 0.3285168, 0.3130192, 0.2980011,
-                0.2835, 0.2695448, 0.2561184, 0.2431896, 0.2307272,
-                0.2187, 0.2070971, 0.1959232, 0.1851708, 0.1748323,
-                0.1649, 0.1553667, 0.14623, 0.13749, 0.1291467,
-                0.1212, 0.1136397, 0.106465, 0.09969044, 0.09333061,
-                0.0874, 0.08190096, 0.07680428, 0.07207712, 0.06768664,
-                0.0636, 0.05980685, 0.05628216, 0.05297104, 0.04981861,
-                0.04677, 0.04378405, 0.04087536, 0.03807264, 0.03540461,
-                0.0329, 0.03056419, 0.02838056, 0.02634484, 0.02445275,
-                0.0227, 0.02108429, 0.01959988, 0.01823732, 0.01698717,
-                0.01584, 0.01479064, 0.01383132, 0.01294868, 0.0121292,
-                0.01135916, 0.01062935, 0.009938846, 0.009288422, 0.008678854,
-                0.008110916, 0.007582388, 0.007088746, 0.006627313, 0.006195408,
-                0.005790346, 0.005409826, 0.005052583, 0.004717512, 0.004403507,
-                0.004109457, 0.003833913, 0.003575748, 0.003334342, 0.003109075,
-                0.002899327, 0.002704348, 0.00252302, 0.002354168, 0.002196616,
-                0.00204919, 0.00191096, 0.001781438, 0.00166011, 0.001546459,
-                0.001439971, 0.001340042, 0.001246275, 0.001158471, 0.00107643,
-                0.000999949, 0.000928736, 0.000862433, 0.00080075, 0.000743396,
-                0.000690079, 0.000640516, 0.000594502, 0.000551865, 0.000512429,
-                0.000476021, 0.000442454, 0.000411512, 0.000382981, 0.000356649,
-                0.000332301, 0.000309759, 0.000288887, 0.000269539, 0.000251568,
-                0.000234826, 0.000219171, 0.000204526, 0.000190841, 0.000178065,
-                0.000166151, 0.000155024, 0.000144622, 0.00013491, 0.000125852,
-                0.000117413, 0.000109552, 0.000102225, 9.53945E-05, 8.90239E-05,
-                8.30753E-05, 7.75127E-05, 7.2313E-05, 6.74578E-05, 6.29284E-05,
-                5.87065E-05, 5.47703E-05, 5.10992E-05, 4.76765E-05, 4.44857E-05,
-                4.15099E-05, 3.87332E-05, 3.6142E-05, 3.37235E-05, 3.14649E-05,
-                2.93533E-05, 2.73757E-05, 2.55243E-05, 2.37938E-05, 2.21787E-05,
-                2.06738E-05, 1.92723E-05, 1.79664E-05, 1.67499E-05, 1.56165E-05,
-                1.45598E-05, 1.35739E-05, 1.26544E-05, 1.17972E-05, 1.09984E-05,
-                1.0254E-05, 9.55965E-06, 8.91204E-06, 8.30836E-06, 7.74577E-06,
-                7.22146E-06, 6.73248E-06, 6.27642E-06, 5.8513E-06, 5.45512E-06,
-                5.08587E-06, 4.74147E-06, 4.42024E-06, 4.12078E-06, 3.84172E-06,
-                3.58165E-06, 3.33913E-06, 3.11295E-06, 2.90212E-06, 2.70565E-06,
-                2.52253E-06, 2.35173E-06, 2.19242E-06, 2.0439E-06, 1.9055E-06,
-                1.77651E-06, 1.65622E-06, 1.54402E-06, 1.43944E-06, 1.34198E-06,
-                1.25114E-06
-        };
-
-        static final double[] cie2degy = {
-                0.000003917, 4.39358E-06, 4.9296E-06, 5.53214E-06, 6.20825E-06,
-                0.000006965, 7.81322E-06, 8.76734E-06, 9.83984E-06, 1.10432E-05,
-                0.00001239, 1.38864E-05, 1.55573E-05, 1.7443E-05, 1.95838E-05,
-                0.00002202, 2.48397E-05, 2.80413E-05, 3.1531E-05, 3.52152E-05,
-                0.000039, 4.28264E-05, 4.69146E-05, 5.15896E-05, 5.71764E-05,
-                0.000064, 7.23442E-05, 8.22122E-05, 9.35082E-05, 0.000106136,
-                0.00012, 0.000134984, 0.000151492, 0.000170208, 0.000191816,
-                0.000217, 0.000246907, 0.00028124, 0.00031852, 0.000357267,
-                0.000396, 0.000433715, 0.000473024, 0.000517876, 0.000572219,
-                0.00064, 0.00072456, 0.0008255, 0.00094116, 0.00106988,
-                0.00121, 0.001362091, 0.001530752, 0.001720368, 0.001935323,
-                0.00218, 0.0024548, 0.002764, 0.0031178, 0.0035264,
-                0.004, 0.00454624, 0.00515932, 0.00582928, 0.00654616,
-                0.0073, 0.008086507, 0.00890872, 0.00976768, 0.01066443,
-                0.0116, 0.01257317, 0.01358272, 0.01462968, 0.01571509,
-                0.01684, 0.01800736, 0.01921448, 0.02045392, 0.02171824,
-                0.023, 0.02429461, 0.02561024, 0.02695857, 0.02835125,
-                0.0298, 0.03131083, 0.03288368, 0.03452112, 0.03622571,
-                0.038, 0.03984667, 0.041768, 0.043766, 0.04584267,
-                0.048, 0.05024368, 0.05257304, 0.05498056, 0.05745872,
-                0.06, 0.06260197, 0.06527752, 0.06804208, 0.07091109,
-                0.0739, 0.077016, 0.0802664, 0.0836668, 0.0872328,
-                0.09098, 0.09491755, 0.09904584, 0.1033674, 0.1078846,
-                0.1126, 0.117532, 0.1226744, 0.1279928, 0.1334528,
-                0.13902, 0.1446764, 0.1504693, 0.1564619, 0.1627177,
-                0.1693, 0.1762431, 0.1835581, 0.1912735, 0.199418,
-                0.20802, 0.2171199, 0.2267345, 0.2368571, 0.2474812,
-                0.2586, 0.2701849, 0.2822939, 0.2950505, 0.308578,
-                0.323, 0.3384021, 0.3546858, 0.3716986, 0.3892875,
-                0.4073, 0.4256299, 0.4443096, 0.4633944, 0.4829395,
-                0.503, 0.5235693, 0.544512, 0.56569, 0.5869653,
-                0.6082, 0.6293456, 0.6503068, 0.6708752, 0.6908424,
-                0.71, 0.7281852, 0.7454636, 0.7619694, 0.7778368,
-                0.7932, 0.8081104, 0.8224962, 0.8363068, 0.8494916,
-                0.862, 0.8738108, 0.8849624, 0.8954936, 0.9054432,
-                0.9148501, 0.9237348, 0.9320924, 0.9399226, 0.9472252,
-                0.954, 0.9602561, 0.9660074, 0.9712606, 0.9760225,
-                0.9803, 0.9840924, 0.9874182, 0.9903128, 0.9928116,
-                0.9949501, 0.9967108, 0.9980983, 0.999112, 0.9997482,
-                1, 0.9998567, 0.9993046, 0.9983255, 0.9968987,
-                0.995, 0.9926005, 0.9897426, 0.9864444, 0.9827241,
-                0.9786, 0.9740837, 0.9691712, 0.9638568, 0.9581349,
-                0.952, 0.9454504, 0.9384992, 0.9311628, 0.9234576,
-                0.9154, 0.9070064, 0.8982772, 0.8892048, 0.8797816,
-                0.87, 0.8598613, 0.849392, 0.838622, 0.8275813,
-                0.8163, 0.8047947, 0.793082, 0.781192, 0.7691547,
-                0.757, 0.7447541, 0.7324224, 0.7200036, 0.7074965,
-                0.6949, 0.6822192, 0.6694716, 0.6566744, 0.6438448,
-                0.631, 0.6181555, 0.6053144, 0.5924756, 0.5796379,
-                0.5668, 0.5539611, 0.5411372, 0.5283528, 0.5156323,
-                0.503, 0.4904688, 0.4780304, 0.4656776, 0.4534032,
-                0.4412, 0.42908, 0.417036, 0.405032, 0.393032,
-                0.381, 0.3689184, 0.3568272, 0.3447768, 0.3328176,
-                0.321, 0.3093381, 0.2978504, 0.2865936, 0.2756245,
-                0.265, 0.2547632, 0.2448896, 0.2353344, 0.2260528,
-                0.217, 0.2081616, 0.1995488, 0.1911552, 0.1829744,
-                0.175, 0.1672235, 0.1596464, 0.1522776, 0.1451259,
-                0.1382, 0.1315003, 0.1250248, 0.1187792, 0.1127691,
-                0.107, 0.1014762, 0.09618864, 0.09112296, 0.08626485,
-                0.0816, 0.07712064, 0.07282552, 0.06871008, 0.06476976,
-                0.061, 0.05739621, 0.05395504, 0.05067376, 0.04754965,
-                0.04458, 0.04175872, 0.03908496, 0.03656384, 0.03420048,
-                0.032, 0.02996261, 0.02807664, 0.02632936, 0.02470805,
-                0.0232, 0.02180077, 0.02050112, 0.01928108, 0.01812069,
-                0.017, 0.01590379, 0.01483718, 0.01381068, 0.01283478,
-                0.01192, 0.01106831, 0.01027339, 0.009533311, 0.008846157,
-                0.00821, 0.007623781, 0.007085424, 0.006591476, 0.006138485,
-                0.005723, 0.005343059, 0.004995796, 0.004676404, 0.004380075,
-                0.004102, 0.003838453, 0.003589099, 0.003354219, 0.003134093,
-                0.002929, 0.002738139, 0.002559876, 0.002393244, 0.002237275,
-                0.002091, 0.001953587, 0.00182458, 0.00170358, 0.001590187,
-                0.001484, 0.001384496, 0.001291268, 0.001204092, 0.001122744,
-                0.001047, 0.00097659, 0.000911109, 0.000850133, 0.000793238,
-                0.00074, 0.000690083, 0.00064331, 0.000599496, 0.000558455,
-                0.00052, 0.000483914, 0.000450053, 0.000418345, 0.000388718,
-                0.0003611, 0.000335384, 0.00031144, 0.000289166, 0.000268454,
-                0.0002492, 0.000231302, 0.000214686, 0.000199288, 0.000185048,
-                0.0001719, 0.000159778, 0.000148604, 0.000138302, 0.000128793,
-                0.00012, 0.00011186, 0.000104322, 9.73356E-05, 9.08459E-05,
-                0.0000848, 7.91467E-05, 0.000073858, 0.000068916, 6.43027E-05,
-                0.00006, 5.59819E-05, 5.22256E-05, 4.87184E-05, 4.54475E-05,
-                0.0000424, 3.9561E-05, 3.69151E-05, 3.44487E-05, 3.21482E-05,
-                0.00003, 2.79913E-05, 2.61136E-05, 2.43602E-05, 2.27246E-05,
-                0.0000212, 1.97786E-05, 1.84529E-05, 1.72169E-05, 1.60646E-05,
-                0.00001499, 1.39873E-05, 1.30516E-05, 1.21782E-05, 1.13625E-05,
-                0.0000106, 9.88588E-06, 9.2173E-06, 8.59236E-06, 8.00913E-06,
-                7.4657E-06, 6.95957E-06, 6.488E-06, 6.0487E-06, 5.6394E-06,
-                5.2578E-06, 4.90177E-06, 4.56972E-06, 4.26019E-06, 3.97174E-06,
-                3.7029E-06, 3.45216E-06, 3.2183E-06, 3.0003E-06, 2.79714E-06,
-                2.6078E-06, 2.43122E-06, 2.26653E-06, 2.11301E-06, 1.96994E-06,
-                1.8366E-06, 1.71223E-06, 1.59623E-06, 1.48809E-06, 1.38731E-06,
-                1.2934E-06, 1.20582E-06, 1.12414E-06, 1.04801E-06, 9.77058E-07,
-                9.1093E-07, 8.49251E-07, 7.91721E-07, 7.3809E-07, 6.8811E-07,
-                6.4153E-07, 5.9809E-07, 5.57575E-07, 5.19808E-07, 4.84612E-07,
-                4.5181E-07
-        };
-
-        static final double[] cie2degz = {
-                0.0006061, 0.000680879, 0.000765146, 0.000860012, 0.000966593,
-                0.001086, 0.001220586, 0.001372729, 0.001543579, 0.001734286,
-                0.001946, 0.002177777, 0.002435809, 0.002731953, 0.003078064,
-                0.003486, 0.003975227, 0.00454088, 0.00515832, 0.005802907,
-                0.006450001, 0.007083216, 0.007745488, 0.008501152, 0.009414544,
-                0.01054999, 0.0119658, 0.01365587, 0.01558805, 0.01773015,
-                0.02005001, 0.02251136, 0.02520288, 0.02827972, 0.03189704,
-                0.03621, 0.04143771, 0.04750372, 0.05411988, 0.06099803,
-                0.06785001, 0.07448632, 0.08136156, 0.08915364, 0.09854048,
-                0.1102, 0.1246133, 0.1417017, 0.1613035, 0.1832568,
-                0.2074, 0.2336921, 0.2626114, 0.2947746, 0.3307985,
-                0.3713, 0.4162091, 0.4654642, 0.5196948, 0.5795303,
-                0.6456, 0.7184838, 0.7967133, 0.8778459, 0.959439,
-                1.0390501, 1.1153673, 1.1884971, 1.2581233, 1.3239296,
-                1.3856, 1.4426352, 1.4948035, 1.5421903, 1.5848807,
-                1.62296, 1.6564048, 1.6852959, 1.7098745, 1.7303821,
-                1.74706, 1.7600446, 1.7696233, 1.7762637, 1.7804334,
-                1.7826, 1.7829682, 1.7816998, 1.7791982, 1.7758671,
-                1.77211, 1.7682589, 1.764039, 1.7589438, 1.7524663,
-                1.7441, 1.7335595, 1.7208581, 1.7059369, 1.6887372,
-                1.6692, 1.6475287, 1.6234127, 1.5960223, 1.564528,
-                1.5281, 1.4861114, 1.4395215, 1.3898799, 1.3387362,
-                1.28764, 1.2374223, 1.1878243, 1.1387611, 1.090148,
-                1.0419, 0.9941976, 0.9473473, 0.9014531, 0.8566193,
-                0.8129501, 0.7705173, 0.7294448, 0.6899136, 0.6521049,
-                0.6162, 0.5823286, 0.5504162, 0.5203376, 0.4919673,
-                0.46518, 0.4399246, 0.4161836, 0.3938822, 0.3729459,
-                0.3533, 0.3348578, 0.3175521, 0.3013375, 0.2861686,
-                0.272, 0.2588171, 0.2464838, 0.2347718, 0.2234533,
-                0.2123, 0.2011692, 0.1901196, 0.1792254, 0.1685608,
-                0.1582, 0.1481383, 0.1383758, 0.1289942, 0.1200751,
-                0.1117, 0.1039048, 0.09666748, 0.08998272, 0.08384531,
-                0.07824999, 0.07320899, 0.06867816, 0.06456784, 0.06078835,
-                0.05725001, 0.05390435, 0.05074664, 0.04775276, 0.04489859,
-                0.04216, 0.03950728, 0.03693564, 0.03445836, 0.03208872,
-                0.02984, 0.02771181, 0.02569444, 0.02378716, 0.02198925,
-                0.0203, 0.01871805, 0.01724036, 0.01586364, 0.01458461,
-                0.0134, 0.01230723, 0.01130188, 0.01037792, 0.009529306,
-                0.008749999, 0.0080352, 0.0073816, 0.0067854, 0.0062428,
-                0.005749999, 0.0053036, 0.0048998, 0.0045342, 0.0042024,
-                0.0039, 0.0036232, 0.0033706, 0.0031414, 0.0029348,
-                0.002749999, 0.0025852, 0.0024386, 0.0023094, 0.0021968,
-                0.0021, 0.002017733, 0.0019482, 0.0018898, 0.001840933,
-                0.0018, 0.001766267, 0.0017378, 0.0017112, 0.001683067,
-                0.001650001, 0.001610133, 0.0015644, 0.0015136, 0.001458533,
-                0.0014, 0.001336667, 0.00127, 0.001205, 0.001146667,
-                0.0011, 0.0010688, 0.0010494, 0.0010356, 0.0010212,
-                0.001, 0.00096864, 0.00092992, 0.00088688, 0.00084256,
-                0.0008, 0.00076096, 0.00072368, 0.00068592, 0.00064544,
-                0.0006, 0.000547867, 0.0004916, 0.0004354, 0.000383467,
-                0.00034, 0.000307253, 0.00028316, 0.00026544, 0.000251813,
-                0.00024, 0.000229547, 0.00022064, 0.00021196, 0.000202187,
-                0.00019, 0.000174213, 0.00015564, 0.00013596, 0.000116853,
-                0.0001, 8.61333E-05, 0.0000746, 0.000065, 5.69333E-05,
-                5E-05, 0.00004416, 0.00003948, 0.00003572, 0.00003264,
-                0.00003, 2.76533E-05, 0.00002556, 0.00002364, 2.18133E-05,
-                0.00002, 1.81333E-05, 0.0000162, 0.0000142, 1.21333E-05,
-                0.00001, 7.73333E-06, 0.0000054, 0.0000032, 1.33333E-06
-        };
-
         static Light whitewl = new WhiteLightWL();
         static Light whitef = new WhiteLightF();
 
@@ -594,6 +333,7 @@ public class DyeMixer extends Panel {
                 }
                 setName("reference, flat over wavelen");
                 normalize();
+                setNumber(-1);
             }
         }
 
@@ -612,6 +352,7 @@ public class DyeMixer extends Panel {
                 }
                 setName("reference, flat over frequency");
                 normalize();
+                setNumber(-2);
             }
         }
 
@@ -622,6 +363,20 @@ public class DyeMixer extends Panel {
         double[] powerspectrum;
         String name;
         double xscale = 1.0, yscale = 1.0, zscale = 1.0;
+        // The observer whose matching functions turn the spectrum into XYZ
+        Observer observer = Observer.cie1931;
+        // Set by normalizeWhite() with a chromatic adaptation transform: the XYZ to XYZ
+        // matrix, applied before the scales, and the same fused with xyz2srgb. Shared by copies.
+        double[] adaptation, rgbmatrix;
+
+        Observer getObserver() {
+            return observer;
+        }
+
+        // Changes the observer; the scales are left alone, so normalize again
+        void setObserver(Observer observer) {
+            this.observer = observer;
+        }
 
         String getName() {
             return name;
@@ -643,9 +398,42 @@ public class DyeMixer extends Panel {
             newlight.xscale = xscale;
             newlight.yscale = yscale;
             newlight.zscale = zscale;
+            newlight.observer = observer;
+            newlight.adaptation = adaptation;
+            newlight.rgbmatrix = rgbmatrix;
             return newlight;
         }
 
+        // Return the scaled XYZ of this light filtered by the given absorbance (one value per nm
+        // from ciestart) at firststrength, firststrength+strengthstep, ... for numsteps steps.
+        // Beer-Lambert makes every step a power of the same transmittance, so each wavelength
+        // needs two pow() calls and then one multiply per step, no matter how many steps.
+        // Result is indexed [step][x, y, z].
+        double[][] getFilteredXYZSeries(double[] absorbance, double firststrength,
+                                         double strengthstep, int numsteps) {
+            double[] x = new double[numsteps];
+            double[] y = new double[numsteps];
+            double[] z = new double[numsteps];
+            double[] ciex = observer.x, ciey = observer.y, ciez = observer.z;
+            for(int wl = ciestart; (wl <= cieend); wl++) {
+                double a = absorbance[wl-ciestart];
+                double power = getPowerSpectrum(wl)*Math.pow(10.0, -a*firststrength);
+                double steptransmittance = Math.pow(10.0, -a*strengthstep);
+                double cx = ciex[wl-ciestart], cy = ciey[wl-ciestart], cz = ciez[wl-ciestart];
+                for (int k = 0; (k < numsteps); k++) {
+                    x[k] += cx*power;
+                    y[k] += cy*power;
+                    z[k] += cz*power;
+                    power *= steptransmittance;
+                }
+            }
+            double[][] xyz = new double[numsteps][];
+            for (int k = 0; (k < numsteps); k++) {
+                xyz[k] = scaleXYZ(new double[] {x[k], y[k], z[k]});
+            }
+            return xyz;
+        }
+
         // Filter this light
         void filter(Absorber absorber, double strength) {
             if (absorber == null) return;
@@ -664,6 +452,9 @@ public class DyeMixer extends Panel {
             newlight.xscale = xscale;
             newlight.yscale = yscale;
             newlight.zscale = zscale;
+            newlight.observer = observer;
+            newlight.adaptation = adaptation;
+            newlight.rgbmatrix = rgbmatrix;
             return newlight;
         }
 
@@ -686,9 +477,9 @@ public class DyeMixer extends Panel {
         double[] getXY() {
             double x = 0, y = 0, z = 0;
             for(int wl = ciestart; (wl <= cieend); wl++) {
-                x += getCIEX(wl)*getPowerSpectrum(wl);
-                y += getCIEY(wl)*getPowerSpectrum(wl);
-                z += getCIEZ(wl)*getPowerSpectrum(wl);
+                x += observer.x[wl-ciestart]*getPowerSpectrum(wl);
+                y += observer.y[wl-ciestart]*getPowerSpectrum(wl);
+                z += observer.z[wl-ciestart]*getPowerSpectrum(wl);
             }
             double invall = 1.0/(x+y+z);
             return new double[] {x*invall, y*invall};
@@ -697,7 +488,7 @@ public class DyeMixer extends Panel {
         double getX() {
             double x = 0;
             for (int wl = ciestart; (wl <= cieend); wl++) {
-                x += getCIEX(wl)*getPowerSpectrum(wl);
+                x += observer.x[wl-ciestart]*getPowerSpectrum(wl);
             }
             return x;
         }
@@ -705,7 +496,7 @@ public class DyeMixer extends Panel {
         double getY() {
             double y = 0;
             for (int wl = ciestart; (wl <= cieend); wl++) {
-                y += getCIEY(wl)*getPowerSpectrum(wl);
+                y += observer.y[wl-ciestart]*getPowerSpectrum(wl);
             }
             return y;
         }
@@ -713,7 +504,7 @@ public class DyeMixer extends Panel {
         double getZ() {
             double z = 0;
             for (int wl = ciestart; (wl <= cieend); wl++) {
-                z += getCIEZ(wl)*getPowerSpectrum(wl);
+                z += observer.z[wl-ciestart]*getPowerSpectrum(wl);
             }
             return z;
         }
@@ -724,13 +515,33 @@ public class DyeMixer extends Panel {
             xyz[1] = 0;
             xyz[2] = 0;
             for(int wl = ciestart; (wl <= cieend); wl++) {
-                xyz[0] += getCIEX(wl)*getPowerSpectrum(wl);
-                xyz[1] += getCIEY(wl)*getPowerSpectrum(wl);
-                xyz[2] += getCIEZ(wl)*getPowerSpectrum(wl);
+                xyz[0] += observer.x[wl-ciestart]*getPowerSpectrum(wl);
+                xyz[1] += observer.y[wl-ciestart]*getPowerSpectrum(wl);
+                xyz[2] += observer.z[wl-ciestart]*getPowerSpectrum(wl);
+            }
+            return xyz;
+        }
+
+        // Adapts and scales xyz in place and returns it
+        double[] scaleXYZ(double[] xyz) {
+            if (adaptation != null) {
+                double x = xyz[0], y = xyz[1], z = xyz[2];
+                xyz[0] = adaptation[0]*x + adaptation[1]*y + adaptation[2]*z;
+                xyz[1] = adaptation[3]*x + adaptation[4]*y + adaptation[5]*z;
+                xyz[2] = adaptation[6]*x + adaptation[7]*y + adaptation[8]*z;
             }
+            xyz[0] *= xscale;
+            xyz[1] *= yscale;
+            xyz[2] *= zscale;
             return xyz;
         }
 
+        // The matrix of xyz2sRGBUncut, row-major
+        static final double[] xyz2srgb = {
+                3.2410, -1.5374, -0.4986,
+                -0.9692, 1.8760, 0.0416,
+                0.0556, -0.2040, 1.0570};
+
         double[] xyz2sRGBUncut(double[] xyz) {
             double[] rgb = new double[3];
             rgb[0] = 3.2410*xyz[0] - 1.5374*xyz[1] - 0.4986*xyz[2];
@@ -751,20 +562,27 @@ public class DyeMixer extends Panel {
             return cutrgb;
         }
 
-        int[] getsRGB() {
+        // Linear sRGB of the scaled XYZ; one matrix multiply when adapted, as the scales are
+        // then the same on all axes
+        double[] getsRGBUncut() {
             double[] xyz = getXYZ();
+            if (rgbmatrix != null) {
+                double[] rgb = ChromaticAdaptation.multiply(rgbmatrix, xyz);
+                for (int t = 0; (t < 3); t++) rgb[t] *= xscale;
+                return rgb;
+            }
             xyz[0] *= xscale;
             xyz[1] *= yscale;
             xyz[2] *= zscale;
-            return sRGBCut(xyz2sRGBUncut(xyz));
+            return xyz2sRGBUncut(xyz);
+        }
+
+        int[] getsRGB() {
+            return sRGBCut(getsRGBUncut());
         }
 
         void normalize() {
-            double[] xyz = getXYZ();
-            xyz[0] *= xscale;
-            xyz[1] *= yscale;
-            xyz[2] *= zscale;
-            double[] rgb = xyz2sRGBUncut(xyz);
+            double[] rgb = getsRGBUncut();
             double max = rgb[0];
             if (rgb[1] > max) max = rgb[1];
             if (rgb[2] > max) max = rgb[2];
@@ -776,8 +594,29 @@ public class DyeMixer extends Panel {
             }
         }
 
+        // Adapts to fullscale white with a chromatic adaptation transform; xyzscaling is the
+        // same as normalizeWhite()
+        void normalizeWhite(ChromaticAdaptation transform) {
+            if (transform == ChromaticAdaptation.xyzscaling) {
+                normalizeWhite();
+                return;
+            }
+            double[] matrix = transform.getMatrix(getXYZ());
+            if (matrix == null) {
+                normalizeWhite();
+                return;
+            }
+            adaptation = matrix;
+            rgbmatrix = ChromaticAdaptation.multiply3x3(xyz2srgb, matrix);
+            xscale = 1.0;
+            yscale = 1.0;
+            zscale = 1.0;
+        }
+
         void normalizeWhite() {
             double[] xyz = getXYZ();
+            adaptation = null;
+            rgbmatrix = null;
             // fullscale white is encoded as xyz={0.9505, 1, 1.0890)
             if (xyz[0] > 0) xscale = 0.9505/xyz[0]; else xscale = 1.0;
             if (xyz[1] > 0) yscale = 1.0000/xyz[1]; else yscale = 1.0;
@@ -830,17 +669,18 @@ public class DyeMixer extends Panel {
             }
             setName("reference, blackbody, "+ (int)t +" K");
             normalize();
-            setNumber(0);
+            // Generated lights get negative numbers so recipes can refer to them
+            setNumber(-(int)t);
         }
     }
 
-    private static interface Absorber {
+    static interface Absorber {
         // All wavelengths are in nm.
         // absorbance = -log10(out/in)
         public double getAbsorbance(double wavelen);
     }
 
-    private static class Canvas implements Absorber, Sortable, HasNumber {
+    static class Canvas implements Absorber, Sortable, HasNumber {
         int number;
         public void setNumber(int number) { this.number = number; }
         public int getNumber() { return number; }
@@ -870,6 +710,14 @@ public class DyeMixer extends Panel {
             this.name = name;
             setNumber(0);
         }
+
+        static Canvas fromAbsorbance(String name, Spectrum absorbancespectrum, int number) {
+            Canvas canvas = new Canvas();
+            canvas.name = name;
+            canvas.absorbancespectrum = absorbancespectrum;
+            canvas.setNumber(number);
+            return canvas;
+        }
     }
 
     static class Dye implements Absorber, Sortable, HasNumber {
@@ -888,10 +736,45 @@ public class DyeMixer extends Panel {
             return absorbancespectrum.get(wavelen);
         }
 
+        // Absorbance sampled once per nm from Light.ciestart, computed on first use
+        double[] absorbancesamples;
+        double[] getAbsorbanceSamples() {
+            if (absorbancesamples == null) {
+                double[] samples = new double[Light.cieend-Light.ciestart+1];
+                for (int wl = Light.ciestart; (wl <= Light.cieend); wl++) {
+                    samples[wl-Light.ciestart] = getAbsorbance(wl);
+                }
+                absorbancesamples = samples;
+            }
+            return absorbancesamples;
+        }
+
         String name;
         String ci;
         String family;
         String mixture;
+        // Price per unit of amount, NaN if unknown
+        double cost = Double.NaN;
+        // Amount in stock, in the units of the amounts
+        double stock = Double.POSITIVE_INFINITY;
+
+        // Maps the nominal amount to the strength of the absorbance; null for linear dyes
+        ResponseCurve response;
+
+        double getStrength(double amount) {
+            if (response == null) return amount;
+            return response.getStrength(amount);
+        }
+
+        // Returns a copy that shares the spectrum but has the given response
+        Dye withResponse(ResponseCurve response) {
+            Dye dye = new Dye(name, ci, family, mixture, absorbancespectrum, number);
+            dye.absorbancesamples = absorbancesamples;
+            dye.response = response;
+            dye.cost = cost;
+            dye.stock = stock;
+            return dye;
+        }
 
         public String getName() {
             return name;
@@ -930,152 +813,441 @@ public class DyeMixer extends Panel {
                         2);
     }
 
-    static final int nummixeddyes = 8;
-
-    Vector availablecanvases;
-    Canvas[] generatedcanvases = {
-            new Canvas(),
-    };
-
-    Vector availabledyes;
-    Dye[] generateddyes = {
-            Dye.blank,
-            Dye.black
-    };
-
-    Vector availablelights;
-    Light[] generatedlights = {
-            Light.d65(),
-            new Light(800),
-            new Light(900),
-            new Light(1000),
-            new Light(1100),
-            new Light(1200),
-            new Light(1300),
-            new Light(1400),
-            new Light(1500),
-            new Light(1600),
-            new Light(1700),
-            new Light(1800),
-            new Light(1900),
-            new Light(2000),
-            new Light(2100),
-            new Light(2200),
-            new Light(2300),
-            new Light(2400),
-            new Light(2500),
-            new Light(2600),
-            new Light(2700),
-            new Light(2800),
-            new Light(2900),
-            new Light(3000),
-            new Light(3100),
-            new Light(3200),
-            new Light(3300),
-            new Light(3400),
-            new Light(3500),
-            new Light(3600),
-            new Light(3700),
-            new Light(3800),
-            new Light(3900),
-            new Light(4000),
-            new Light(4100),
-            new Light(4200),
-            new Light(4300),
-            new Light(4400),
-            new Light(4500),
-            new Light(4600),
-            new Light(4700),
-            new Light(4800),
-            new Light(4900),
-            new Light(5000),
-            new Light(5100),
-            new Light(5200),
-            new Light(5300),
-            new Light(5400),
-            new Light(5500),
-            new Light(5750),
-            new Light(6000),
-            new Light(6250),
-            new Light(6500),
-            new Light(6750),
-            new Light(7000),
-            new Light(7250),
-            new Light(7500),
-            new Light(7750),
-            new Light(8000),
-            new Light(8250),
-            new Light(8500),
-            new Light(8750),
-            new Light(9000),
-            new Light(9250),
-            new Light(9500),
-            new Light(9750),
-            new Light(10000),
-            new Light(10500),
-            new Light(11000),
-            new Light(11500),
-            new Light(12000),
-            new Light(12500),
-            new Light(13000),
-            new Light(14000),
-            new Light(15000),
-            new Light(17500),
-            new Light(20000),
-            new Light(25000),
-            new Light(30000),
-            new Light(35000),
-            new Light(40000),
-            new Light(60000),
-            new Light(100000),
-            Light.whitef,
-            Light.whitewl
-    };
+    // Dye rows shown at startup, and the most a recipe may recall
+    static final int initialnummixeddyes = 8;
+    static final int maxnummixeddyes = 64;
 
-    void set2ui_Swatch(int t) {
-        Light light = canvasedlight.getFiltered((Dye)(availabledyes.elementAt(set_indexdyes[t])),
-                set_dyeamounts[t]);
-        ui_dyeswatches[t].setLight(light);
+    Vector<Canvas> availablecanvases;
+    Vector<Dye> availabledyes;
+    Vector<Light> availablelights;
+
+    // Remembers which listener caused the following recomputes, for Metrics
+    void trigger(Object listener) {
+        recomputetrigger = listener.getClass().getSimpleName();
     }
 
-    void set2ui_CombinedSwatch() {
-        Light combinedlight = canvasedlight.getCopy();
+    // Switches to the engine for a model; each keeps its own cache
+    void setModel(int model) {
+        if (model == set_model) return;
+        set_model = model;
+        mixengine = (model == modelkubelkamunk) ? new KubelkaMunkEngine() : new MixEngine();
+    }
+
+    int getMixFlags() {
+        int flags = 0;
+        if (set_lightwhite) flags |= MixEngine.flaglightwhite;
+        if (set_canvaswhite) flags |= MixEngine.flagcanvaswhite;
+        if (set_canvasbright) flags |= MixEngine.flagcanvasbright;
+        if (set_combinedbright) flags |= MixEngine.flagcombinedbright;
+        flags = MixEngine.withAdaptation(flags, ChromaticAdaptation.adaptations[set_adaptation]);
+        return MixEngine.withObserver(flags, Observer.observers[set_observer]);
+    }
+
+    Dye[] getEnabledDyes() {
+        int numenabled = 0;
         for (int t = 0; (t < nummixeddyes); t++) {
-            if (set_dyeenables[t]) {
-                combinedlight.filter((Dye)(availabledyes.elementAt(set_indexdyes[t])), set_dyeamounts[t]);
-            }
+            if (set_dyeenables[t]) numenabled++;
+        }
+        Dye[] dyes = new Dye[numenabled];
+        int u = 0;
+        for (int t = 0; (t < nummixeddyes); t++) {
+            if (set_dyeenables[t]) dyes[u++] = availabledyes.elementAt(set_indexdyes[t]);
+        }
+        return dyes;
+    }
+
+    double[] getEnabledAmounts() {
+        int numenabled = 0;
+        for (int t = 0; (t < nummixeddyes); t++) {
+            if (set_dyeenables[t]) numenabled++;
         }
-        if (set_combinedbright) {
-            combinedlight.normalize();
+        double[] amounts = new double[numenabled];
+        int u = 0;
+        for (int t = 0; (t < nummixeddyes); t++) {
+            if (set_dyeenables[t]) amounts[u++] = set_dyeamounts[t];
         }
+        return amounts;
+    }
+
+    void set2ui_Swatch(int t) {
+        // Disabled rows keep their swatch, so a dye can be looked at before it goes into the mix
+        Metrics.Timer timer = Metrics.startRecompute("set2ui_Swatch", recomputetrigger);
+        Light light = mixengine.getMixedLight(availablelights.elementAt(set_indexlight),
+                availablecanvases.elementAt(set_indexcanvas),
+                getMixFlags() & ~MixEngine.flagcombinedbright,
+                new Dye[] {availabledyes.elementAt(set_indexdyes[t])},
+                new double[] {set_dyeamounts[t]});
+        ui_dyeswatches[t].setLight(light);
+        timer.stop();
+    }
+
+    void set2ui_CombinedSwatch() {
+        Metrics.Timer timer = Metrics.startRecompute("set2ui_CombinedSwatch", recomputetrigger);
+        Light combinedlight = mixengine.getMixedLight(availablelights.elementAt(set_indexlight),
+                availablecanvases.elementAt(set_indexcanvas),
+                getMixFlags(), getEnabledDyes(), getEnabledAmounts());
         ui_combinedswatch.setLight(combinedlight);
+        set2ui_Strip();
+        set2ui_Plot();
+        set2ui_Spread();
+        timer.stop();
     }
 
-    void set2ui_CanvasSwatch() {
-        canvasedlight = light.getCopy();
-        canvasedlight.filter((Canvas)(availablecanvases.elementAt(set_indexcanvas)), 1.0);
-        if (set_canvaswhite) {
-            canvasedlight.normalizeWhite();
+    /**
+     * Estimates on spreadworker how far the mix strays when its amounts are measured with the
+     * chosen error, and shows it when done unless the mix has changed since. Only the settings
+     * are taken here; the BatchMixer is built on spreadworker and mixes on spreadpool, so a
+     * slider drag doesn't wait for either.
+     */
+    void set2ui_Spread() {
+        final int generation = ++spreadgeneration;
+        final double error = measuringerrors[set_measuringerror];
+        final Dye[] dyes = getEnabledDyes();
+        if ((error == 0) || (dyes.length == 0)) {
+            ui_spread.setText("");
+            return;
         }
-        if (set_canvasbright) {
-            canvasedlight.normalize();
+        final MixEngine engine = mixengine;
+        final Light light = availablelights.elementAt(set_indexlight);
+        final Canvas canvas = availablecanvases.elementAt(set_indexcanvas);
+        final int flags = getMixFlags();
+        final double[] amounts = getEnabledAmounts();
+        if (spreadworker == null) {
+            spreadworker = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "recipe spread");
+                thread.setDaemon(true);
+                return thread;
+            });
+            spreadpool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "recipe spread mixer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        final ExecutorService worker = spreadworker;
+        final ExecutorService pool = spreadpool;
+        worker.execute(() -> {
+            // Slider drags queue up many; only the latest is worth mixing
+            if (generation != spreadgeneration) return;
+            String text;
+            try {
+                BatchMixer mixer = new BatchMixer(engine, light, canvas, flags, dyes, 5);
+                RecipeSpread.Result result = new RecipeSpread(RecipeSpread.normal, error, 0).estimate(pool, mixer,
+                        amounts, RecipeSpread.defaultnumvariants, RecipeSpread.defaultseed,
+                        Runtime.getRuntime().availableProcessors());
+                text = result.describe();
+            } catch (ExecutionException | RejectedExecutionException e) {
+                // destroy() stopping the estimate isn't worth reporting
+                if (worker.isShutdown()) return;
+                Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+                text = "Could not estimate: "+ cause;
+            }
+            final String spread = text;
+            EventQueue.invokeLater(() -> {
+                if (generation == spreadgeneration) ui_spread.setText(spread);
+            });
+        });
+    }
+
+    void set2ui_Strip() {
+        Metrics.Timer timer = Metrics.startRecompute("set2ui_Strip", recomputetrigger);
+        double step = (maxdilution-mindilution)/(numdilutionsteps-1);
+        double[][] xyz = mixengine.getDilutionSeries(canvasedlight,
+                availablecanvases.elementAt(set_indexcanvas),
+                getEnabledDyes(), getEnabledAmounts(), mindilution, step, numdilutionsteps);
+        Color[] colors = new Color[numdilutionsteps];
+        for (int k = 0; (k < numdilutionsteps); k++) {
+            double[] rgb = canvasedlight.xyz2sRGBUncut(xyz[k]);
+            if (set_combinedbright) {
+                double max = Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+                if (max > 0) {
+                    for (int u = 0; (u < 3); u++) rgb[u] /= max;
+                }
+            }
+            int[] cutrgb = canvasedlight.sRGBCut(rgb);
+            colors[k] = new Color(cutrgb[0], cutrgb[1], cutrgb[2]);
         }
+        ui_strip.setColors(colors, mindilution, step);
+        timer.stop();
+    }
+
+    void set2ui_Plot() {
+        Metrics.Timer timer = Metrics.startRecompute("set2ui_Plot", recomputetrigger);
+        Dye[] dyes = getEnabledDyes();
+        ui_plot.setDyes(dyes);
+        ui_plot.setTransmittance(mixengine.getTransmittance(
+                availablecanvases.elementAt(set_indexcanvas), dyes, getEnabledAmounts()));
+        timer.stop();
+    }
+
+    void set2ui_CanvasSwatch() {
+        Metrics.Timer timer = Metrics.startRecompute("set2ui_CanvasSwatch", recomputetrigger);
+        canvasedlight = mixengine.getCanvasedLight(availablelights.elementAt(set_indexlight),
+                availablecanvases.elementAt(set_indexcanvas), getMixFlags());
+        ui_plot.setCanvas(availablecanvases.elementAt(set_indexcanvas));
         ui_canvasswatch.setLight(canvasedlight);
         for (int t = 0; (t < nummixeddyes); t++) {
             set2ui_Swatch(t);
         }
         set2ui_CombinedSwatch();
+        timer.stop();
     }
 
     void set2ui_AllSwatches() {
-        light = ((Light)(availablelights.elementAt(set_indexlight))).getCopy();
-        if (set_lightwhite) {
-            light.normalizeWhite();
-        } else {
-            light.normalize();
-        }
+        Metrics.Timer timer = Metrics.startRecompute("set2ui_AllSwatches", recomputetrigger);
+        light = mixengine.getLight(availablelights.elementAt(set_indexlight), getMixFlags());
         ui_lightswatch.setLight(light);
+        ui_plot.setLight(availablelights.elementAt(set_indexlight));
         set2ui_CanvasSwatch();
+        timer.stop();
+    }
+
+    Recipe set2recipe(String name) {
+        Recipe recipe = new Recipe(name, nummixeddyes);
+        recipe.lightnumber = availablelights.elementAt(set_indexlight).getNumber();
+        recipe.canvasnumber = availablecanvases.elementAt(set_indexcanvas).getNumber();
+        recipe.lightwhite = set_lightwhite;
+        recipe.canvaswhite = set_canvaswhite;
+        recipe.canvasbright = set_canvasbright;
+        recipe.combinedbright = set_combinedbright;
+        recipe.kubelkamunk = (set_model == modelkubelkamunk);
+        recipe.observer1964 = (Observer.observers[set_observer] == Observer.cie1964);
+        recipe.adaptation = set_adaptation;
+        for (int t = 0; (t < nummixeddyes); t++) {
+            recipe.dyenumbers[t] = availabledyes.elementAt(set_indexdyes[t]).getNumber();
+            recipe.amounts[t] = set_dyeamounts[t];
+            recipe.enables[t] = set_dyeenables[t];
+        }
+        recipe.rgb = ui_combinedswatch.color.getRGB() & 0xffffff;
+        return recipe;
+    }
+
+    // Returns null on success, otherwise why the recipe could not be recalled
+    String recipe2set(Recipe recipe) {
+        int indexlight = NumberFinder.findIndex(availablelights, recipe.lightnumber);
+        if (indexlight < 0) return "Unknown light number "+ recipe.lightnumber;
+        int indexcanvas = NumberFinder.findIndex(availablecanvases, recipe.canvasnumber);
+        if (indexcanvas < 0) return "Unknown canvas number "+ recipe.canvasnumber;
+        if (recipe.adaptation >= ChromaticAdaptation.adaptations.length) {
+            return "Unknown chromatic adaptation "+ recipe.adaptation;
+        }
+        int numdyes = Math.min(recipe.getNumDyes(), maxnummixeddyes);
+        int[] indexdyes = new int[numdyes];
+        for (int t = 0; (t < numdyes); t++) {
+            indexdyes[t] = NumberFinder.findIndex(availabledyes, recipe.dyenumbers[t]);
+            if (indexdyes[t] < 0) return "Unknown dye number "+ recipe.dyenumbers[t];
+        }
+        set_indexlight = indexlight;
+        set_indexcanvas = indexcanvas;
+        set_lightwhite = recipe.lightwhite;
+        set_canvaswhite = recipe.canvaswhite;
+        set_canvasbright = recipe.canvasbright;
+        set_combinedbright = recipe.combinedbright;
+        setModel(recipe.kubelkamunk ? modelkubelkamunk : modelbeerlambert);
+        set_observer = (recipe.observer1964 ? Observer.cie1964 : Observer.cie1931).getIndex();
+        set_adaptation = recipe.adaptation;
+        while (nummixeddyes > Math.max(numdyes, 1)) {
+            removeDyeRow();
+        }
+        while (nummixeddyes < numdyes) {
+            addDyeRow(indexdyes[nummixeddyes], recipe.amounts[nummixeddyes], recipe.enables[nummixeddyes]);
+        }
+        for (int t = 0; (t < nummixeddyes); t++) {
+            if (t < numdyes) {
+                set_indexdyes[t] = indexdyes[t];
+                set_dyeamounts[t] = recipe.amounts[t];
+                set_dyeenables[t] = recipe.enables[t];
+            } else {
+                set_dyeenables[t] = false;
+            }
+        }
+        validateDyeRows();
+        set2ui_LightChoice();
+        set2ui_CanvasChoice();
+        set2ui_DyeChoices();
+        ui_lightwhite.setState(set_lightwhite);
+        ui_canvaswhite.setState(set_canvaswhite);
+        ui_canvasbright.setState(set_canvasbright);
+        ui_combinedbright.setState(set_combinedbright);
+        ui_model.select(set_model);
+        ui_observer.select(set_observer);
+        ui_adaptation.select(set_adaptation);
+        for (int t = 0; (t < nummixeddyes); t++) {
+            ui_dyeenables[t].setState(set_dyeenables[t]);
+            set2ui_DyeSlider(t);
+            set2ui_DyeAmount(t);
+        }
+        set2ui_AllSwatches();
+        if (numdyes < recipe.getNumDyes()) return "Only the first "+ numdyes +" dyes were recalled";
+        return null;
+    }
+
+    // Swaps in a reloaded library, keeping the selections that still exist
+    void library2set(Library library) {
+        int lightnumber = availablelights.elementAt(set_indexlight).getNumber();
+        int canvasnumber = availablecanvases.elementAt(set_indexcanvas).getNumber();
+        int[] dyenumbers = new int[nummixeddyes];
+        for (int t = 0; (t < nummixeddyes); t++) {
+            dyenumbers[t] = availabledyes.elementAt(set_indexdyes[t]).getNumber();
+        }
+        updateChoice(ui_light, availablelights, library.availablelights);
+        updateChoice(ui_canvas, availablecanvases, library.availablecanvases);
+        for (int t = 0; (t < nummixeddyes); t++) {
+            updateChoice(ui_dyes[t], availabledyes, library.availabledyes);
+        }
+        availablelights = library.availablelights;
+        availablecanvases = library.availablecanvases;
+        availabledyes = library.availabledyes;
+        set_indexlight = findIndexOrDefault(availablelights, lightnumber, library.defaultlightnumber);
+        set_indexcanvas = findIndexOrDefault(availablecanvases, canvasnumber, library.defaultcanvasnumber);
+        for (int t = 0; (t < nummixeddyes); t++) {
+            set_indexdyes[t] = findIndexOrDefault(availabledyes, dyenumbers[t], library.defaultdyenumber);
+        }
+        set2ui_LightChoice();
+        set2ui_CanvasChoice();
+        set2ui_DyeChoices();
+        // Reloaded entities keep their numbers, so cached mixes may be stale
+        mixengine.clear();
+        ui_plot.clearCache();
+        set2ui_AllSwatches();
+        ui_recipestatus.setText(getLibraryStatus(library, "Reloaded user library"));
+    }
+
+    static int findIndexOrDefault(Vector<? extends HasNumber> v, int number, int defaultnumber) {
+        int index = NumberFinder.findIndex(v, number);
+        if (index < 0) index = NumberFinder.findIndex(v, defaultnumber);
+        if (index < 0) index = 0;
+        return index;
+    }
+
+    static String getLibraryStatus(Library library, String message) {
+        if (library.errors.isEmpty()) return message;
+        return message +", "+ library.errors.size() +" problem(s): "+ library.errors.elementAt(0);
+    }
+
+    static String getEntityName(Object entity) {
+        if (entity instanceof Light) return ((Light)entity).getName();
+        if (entity instanceof Canvas) return ((Canvas)entity).getName();
+        return ((Dye)entity).getName();
+    }
+
+    // Edits choice from listing oldlist to listing newlist. Both are sorted, so usually only the
+    // entities that were added or removed need touching; otherwise it is refilled.
+    static void updateChoice(Choice choice, Vector<? extends HasNumber> oldlist, Vector<? extends HasNumber> newlist) {
+        if (oldlist == newlist) return;
+        Set<HasNumber> oldset = Collections.newSetFromMap(new IdentityHashMap<HasNumber, Boolean>());
+        Set<HasNumber> newset = Collections.newSetFromMap(new IdentityHashMap<HasNumber, Boolean>());
+        oldset.addAll(oldlist);
+        newset.addAll(newlist);
+        // choice holds newlist[0..j) followed by oldlist[i..)
+        int i = 0, j = 0;
+        while ((i < oldlist.size()) || (j < newlist.size())) {
+            Object o = (i < oldlist.size()) ? oldlist.elementAt(i) : null;
+            Object n = (j < newlist.size()) ? newlist.elementAt(j) : null;
+            if ((o != null) && (o == n)) {
+                i++;
+                j++;
+            } else if ((o != null) && !newset.contains(o)) {
+                choice.remove(j);
+                i++;
+            } else if ((n != null) && !oldset.contains(n)) {
+                choice.insert(getEntityName(n), j);
+                j++;
+            } else {
+                choice.removeAll();
+                for (int u = 0; (u < newlist.size()); u++) {
+                    choice.add(getEntityName(newlist.elementAt(u)));
+                }
+                return;
+            }
+        }
+    }
+
+    RecipeStore getRecipeStore() throws IOException {
+        if (recipestore == null) {
+            recipestore = new RecipeStore(RecipeStore.getDefaultDirectory());
+        }
+        return recipestore;
+    }
+
+    // Appends a dye row with its components and listeners; returns its index. The other rows and
+    // the rest of the layout are left alone, see validateDyeRows().
+    int addDyeRow(int indexdye, double amount, boolean enable) {
+        int t = nummixeddyes;
+        if (t == set_dyeamounts.length) {
+            int capacity = 2*t;
+            set_dyeamounts = Arrays.copyOf(set_dyeamounts, capacity);
+            set_indexdyes = Arrays.copyOf(set_indexdyes, capacity);
+            set_dyeenables = Arrays.copyOf(set_dyeenables, capacity);
+            ui_dyeenables = Arrays.copyOf(ui_dyeenables, capacity);
+            ui_dyes = Arrays.copyOf(ui_dyes, capacity);
+            ui_dyeamounts = Arrays.copyOf(ui_dyeamounts, capacity);
+            ui_dyeswatches = Arrays.copyOf(ui_dyeswatches, capacity);
+            ui_dyesliders = Arrays.copyOf(ui_dyesliders, capacity);
+            listen_dyesliders = Arrays.copyOf(listen_dyesliders, capacity);
+            listen_dyeamounts = Arrays.copyOf(listen_dyeamounts, capacity);
+        }
+        set_indexdyes[t] = indexdye;
+        set_dyeamounts[t] = amount;
+        set_dyeenables[t] = enable;
+
+        GridBagConstraints c = new GridBagConstraints();
+        c.gridx = 0;
+        c.weightx = 1.0;
+        c.weighty = 1.0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+
+        ui_dyechoicepanel.add(ui_dyes[t] = new Choice());
+        ((GridBagLayout)(ui_dyechoicepanel.getLayout())).setConstraints(ui_dyes[t], c);
+        for (int u = 0; (u < availabledyes.size()); u++) {
+            ui_dyes[t].add(availabledyes.elementAt(u).getName());
+        }
+        ui_dyes[t].select(indexdye);
+
+        ui_dyeenablepanel.add(ui_dyeenables[t] = new Checkbox("", enable));
+        ((GridBagLayout)(ui_dyeenablepanel.getLayout())).setConstraints(ui_dyeenables[t], c);
+
+        ui_dyeamountpanel.add(ui_dyeamounts[t] = new TextField(""+amount, 3));
+        ((GridBagLayout)(ui_dyeamountpanel.getLayout())).setConstraints(ui_dyeamounts[t], c);
+
+        ui_dyesliderpanel.add(ui_dyesliders[t] = new Scrollbar(Scrollbar.HORIZONTAL, dyeAmountToSlider(amount), 5, 0, maxdyeslider+5));
+        ui_dyesliders[t].setBackground(backgroundcolor);
+        ((GridBagLayout)(ui_dyesliderpanel.getLayout())).setConstraints(ui_dyesliders[t], c);
+
+        ui_dyeswatchpanel.add(ui_dyeswatches[t] = new Swatch());
+        ((GridBagLayout)(ui_dyeswatchpanel.getLayout())).setConstraints(ui_dyeswatches[t], c);
+
+        ui_dyeenables[t].addItemListener(new DyeEnableListener(t));
+        ui_dyes[t].addItemListener(new DyeChoiceListener(t));
+        ui_dyeamounts[t].addTextListener(listen_dyeamounts[t] = new DyeAmountListener(t));
+        ui_dyesliders[t].addAdjustmentListener(listen_dyesliders[t] = new DyeSliderListener(t));
+        nummixeddyes++;
+        return t;
+    }
+
+    // Removes the last dye row
+    void removeDyeRow() {
+        int t = --nummixeddyes;
+        ui_dyeenablepanel.remove(ui_dyeenables[t]);
+        ui_dyechoicepanel.remove(ui_dyes[t]);
+        ui_dyesliderpanel.remove(ui_dyesliders[t]);
+        ui_dyeamountpanel.remove(ui_dyeamounts[t]);
+        ui_dyeswatchpanel.remove(ui_dyeswatches[t]);
+        ui_dyeenables[t] = null;
+        ui_dyes[t] = null;
+        ui_dyesliders[t] = null;
+        ui_dyeamounts[t] = null;
+        ui_dyeswatches[t] = null;
+        listen_dyesliders[t] = null;
+        listen_dyeamounts[t] = null;
+        set_dyeenables[t] = false;
+    }
+
+    // Lays out the dye columns again after rows were added or removed
+    void validateDyeRows() {
+        Container dyes = ui_dyechoicepanel.getParent();
+        dyes.invalidate();
+        dyes.validate();
     }
 
     void set2ui_DyeSlider(int t) {
@@ -1107,9 +1279,78 @@ public class DyeMixer extends Panel {
     // itself need not publicly implement these interfaces.  Listening
     // to these events is an implementation detail.
 
+    // Listens to userlibrary, on its watcher thread
+    class UserLibraryListener implements UserLibrary.Listener {
+        public void libraryChanged(final Library library) {
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    trigger(UserLibraryListener.this);
+                    library2set(library);
+                }
+            });
+        }
+    }
+
+    // Listens to ui_recipesave
+    class RecipeSaveListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            trigger(this);
+            String name = ui_recipename.getText().trim();
+            if (name.length() == 0) {
+                ui_recipestatus.setText("Enter a name first");
+                return;
+            }
+            try {
+                getRecipeStore().save(set2recipe(name));
+                ui_recipestatus.setText("Saved");
+            } catch (IOException ex) {
+                ui_recipestatus.setText("Could not save: "+ ex.getMessage());
+            }
+        }
+    }
+
+    // Listens to ui_reciperecall
+    class RecipeRecallListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            trigger(this);
+            String name = ui_recipename.getText().trim();
+            try {
+                Recipe recipe = getRecipeStore().get(name);
+                if (recipe == null) {
+                    ui_recipestatus.setText("No recipe named \""+ name +"\"");
+                    return;
+                }
+                String problem = recipe2set(recipe);
+                ui_recipestatus.setText((problem == null) ? "Recalled" : problem);
+            } catch (IOException ex) {
+                ui_recipestatus.setText("Could not read: "+ ex.getMessage());
+            }
+        }
+    }
+
+    // Listens to ui_recipenearest
+    class RecipeNearestListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            trigger(this);
+            try {
+                Recipe recipe = getRecipeStore().findNearest(ui_combinedswatch.color.getRGB() & 0xffffff);
+                if (recipe == null) {
+                    ui_recipestatus.setText("No saved recipes");
+                    return;
+                }
+                ui_recipename.setText(recipe.name);
+                String problem = recipe2set(recipe);
+                ui_recipestatus.setText((problem == null) ? "Recalled" : problem);
+            } catch (IOException ex) {
+                ui_recipestatus.setText("Could not read: "+ ex.getMessage());
+            }
+        }
+    }
+
     // Listens to ui_canvaswhite
     class CanvasWhiteListener implements ItemListener {
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             // White is toggled
             set_canvaswhite = ui_canvaswhite.getState();
             set2ui_CanvasSwatch();
@@ -1119,6 +1360,7 @@ public class DyeMixer extends Panel {
     // Listens to ui_canvasbright
     class CanvasBrightListener implements ItemListener {
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             // White is toggled
             set_canvasbright = ui_canvasbright.getState();
             set2ui_CanvasSwatch();
@@ -1128,15 +1370,53 @@ public class DyeMixer extends Panel {
     // Listens to ui_lightwhite
     class LightWhiteListener implements ItemListener {
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             // White is toggled
             set_lightwhite = ui_lightwhite.getState();
             set2ui_AllSwatches();
         }
     }
 
+    // Listens to ui_observer
+    class ObserverChoiceListener implements ItemListener {
+        public void itemStateChanged(ItemEvent e) {
+            trigger(this);
+            set_observer = ui_observer.getSelectedIndex();
+            set2ui_AllSwatches();
+        }
+    }
+
+    // Listens to ui_adaptation
+    class AdaptationChoiceListener implements ItemListener {
+        public void itemStateChanged(ItemEvent e) {
+            trigger(this);
+            set_adaptation = ui_adaptation.getSelectedIndex();
+            set2ui_AllSwatches();
+        }
+    }
+
+    // Listens to ui_model
+    class ModelChoiceListener implements ItemListener {
+        public void itemStateChanged(ItemEvent e) {
+            trigger(this);
+            setModel(ui_model.getSelectedIndex());
+            set2ui_AllSwatches();
+        }
+    }
+
+    // Listens to ui_measuringerror
+    class MeasuringErrorListener implements ItemListener {
+        public void itemStateChanged(ItemEvent e) {
+            trigger(this);
+            set_measuringerror = ui_measuringerror.getSelectedIndex();
+            set2ui_Spread();
+        }
+    }
+
     // Listens to ui_combinedbright
     class CombinedBrightListener implements ItemListener {
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             // White is toggled
             set_combinedbright = ui_combinedbright.getState();
             set2ui_CombinedSwatch();
@@ -1150,14 +1430,41 @@ public class DyeMixer extends Panel {
             this.t = t;
         }
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             set_dyeenables[t] = ui_dyeenables[t].getState();
             set2ui_CombinedSwatch();
         }
     }
 
+    // Listens to ui_dyeadd
+    class DyeAddListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            trigger(this);
+            if (nummixeddyes >= maxnummixeddyes) return;
+            // A new row starts out like the last one, to be changed from there
+            int last = nummixeddyes-1;
+            int t = addDyeRow(set_indexdyes[last], set_dyeamounts[last], false);
+            validateDyeRows();
+            set2ui_Swatch(t);
+        }
+    }
+
+    // Listens to ui_dyeremove
+    class DyeRemoveListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            trigger(this);
+            if (nummixeddyes <= 1) return;
+            boolean enabled = set_dyeenables[nummixeddyes-1];
+            removeDyeRow();
+            validateDyeRows();
+            if (enabled) set2ui_CombinedSwatch();
+        }
+    }
+
     // Listens to ui_light
     class LightChoiceListener implements ItemListener {
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             // Light is changed
             set_indexlight = ui_light.getSelectedIndex();
             set2ui_AllSwatches();
@@ -1167,6 +1474,7 @@ public class DyeMixer extends Panel {
     // Listens to ui_canvas
     class CanvasChoiceListener implements ItemListener {
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             // Canvas is changed
             set_indexcanvas = ui_canvas.getSelectedIndex();
             set2ui_CanvasSwatch();
@@ -1180,6 +1488,7 @@ public class DyeMixer extends Panel {
             this.t = t;
         }
         public void itemStateChanged(ItemEvent e) {
+            trigger(this);
             set_indexdyes[t] = ui_dyes[t].getSelectedIndex();
             set2ui_Swatch(t);
             set2ui_CombinedSwatch();
@@ -1197,6 +1506,7 @@ public class DyeMixer extends Panel {
             this.deaf = deaf;
         }
         public void adjustmentValueChanged(AdjustmentEvent e) {
+            trigger(this);
             if (!deaf) {
                 set_dyeamounts[t] = dyeSliderToAmount(ui_dyesliders[t].getValue());
                 set2ui_DyeAmount(t);
@@ -1219,6 +1529,7 @@ public class DyeMixer extends Panel {
             this.deaf = deaf;
         }
         public void textValueChanged(TextEvent e) {
+            trigger(this);
             if (!deaf) {
                 if ((ui_dyeamounts[t].getText().length() != 0) &&
                         !ui_dyeamounts[t].getText().equals(".") &&
@@ -1377,6 +1688,20 @@ public class DyeMixer extends Panel {
 
     static final Color backgroundcolor = new Color(230, 230, 230);
 
+    static final int numdilutionsteps = 32;
+    // Mixing models; Beer-Lambert filters the light off the canvas, Kubelka-Munk dyes an
+    // opaque fabric
+    static final int modelbeerlambert = 0;
+    static final int modelkubelkamunk = 1;
+    static final String[] modelnames = {"Transmissive", "Opaque fabric"};
+
+    /** Relative standard deviations of measuring dye, for the spread readout. */
+    static final double[] measuringerrors = {0, 0.01, 0.02, 0.05, 0.10};
+    static final String[] measuringerrornames = {"None", "1%", "2%", "5%", "10%"};
+
+    static final double mindilution = 0.1;
+    static final double maxdilution = 4.0;
+
     static final int maxdyeslider = 512;
     static final double maxdyeamount = 30;
 
@@ -1394,33 +1719,67 @@ public class DyeMixer extends Panel {
         return x;
     }
 
-    double[] set_dyeamounts = new double[nummixeddyes];
+    // The dye rows; the arrays grow as rows are added, only the first nummixeddyes are in use
+    int nummixeddyes = 0;
+    double[] set_dyeamounts = new double[initialnummixeddyes];
     int set_indexlight; Light light, canvasedlight;
     int set_indexcanvas;
-    int[] set_indexdyes = new int[nummixeddyes];
+    int[] set_indexdyes = new int[initialnummixeddyes];
     boolean set_lightwhite = true;
     boolean set_canvaswhite = false;
     boolean set_canvasbright = false;
     boolean set_combinedbright = false;
-    boolean set_dyeenables[] = new boolean[nummixeddyes];
+    int set_model = modelbeerlambert;
+    int set_observer = Observer.cie1931.getIndex();
+    int set_adaptation = ChromaticAdaptation.xyzscaling.getIndex();
+    int set_measuringerror = 3;
+    boolean set_dyeenables[] = new boolean[initialnummixeddyes];
 
     Choice ui_light;
     Choice ui_canvas;
-    Checkbox[] ui_dyeenables = new Checkbox[nummixeddyes];
-    Choice[] ui_dyes = new Choice[nummixeddyes];
-    TextField[] ui_dyeamounts = new TextField[nummixeddyes];
+    Checkbox[] ui_dyeenables = new Checkbox[initialnummixeddyes];
+    Choice[] ui_dyes = new Choice[initialnummixeddyes];
+    TextField[] ui_dyeamounts = new TextField[initialnummixeddyes];
     Swatch ui_lightswatch;
     Swatch ui_canvasswatch;
-    Swatch[] ui_dyeswatches = new Swatch[nummixeddyes];
+    Swatch[] ui_dyeswatches = new Swatch[initialnummixeddyes];
     Swatch ui_combinedswatch;
+    DilutionStrip ui_strip;
+    Choice ui_measuringerror;
+    Label ui_spread;
+    SpectrumPlot ui_plot;
     Checkbox ui_lightwhite;
     Checkbox ui_canvaswhite;
     Checkbox ui_canvasbright;
     Checkbox ui_combinedbright;
-    Scrollbar[] ui_dyesliders = new Scrollbar[nummixeddyes];
-
-    DyeSliderListener[] listen_dyesliders = new DyeSliderListener[nummixeddyes];
-    DyeAmountListener[] listen_dyeamounts = new DyeAmountListener[nummixeddyes];
+    Choice ui_model;
+    Choice ui_observer;
+    Choice ui_adaptation;
+    Button ui_dyeadd;
+    Button ui_dyeremove;
+    // The columns of the dye rows
+    Panel ui_dyeenablepanel;
+    Panel ui_dyechoicepanel;
+    Panel ui_dyesliderpanel;
+    Panel ui_dyeamountpanel;
+    Panel ui_dyeswatchpanel;
+    Scrollbar[] ui_dyesliders = new Scrollbar[initialnummixeddyes];
+    TextField ui_recipename;
+    Button ui_recipesave;
+    Button ui_reciperecall;
+    Button ui_recipenearest;
+    Label ui_recipestatus;
+
+    RecipeStore recipestore;
+    UserLibrary userlibrary;
+    MixEngine mixengine = new MixEngine();
+    ExecutorService spreadworker;
+    ExecutorService spreadpool;
+    volatile int spreadgeneration = 0;
+    String recomputetrigger = "startup";
+
+    DyeSliderListener[] listen_dyesliders = new DyeSliderListener[initialnummixeddyes];
+    DyeAmountListener[] listen_dyeamounts = new DyeAmountListener[initialnummixeddyes];
 
     public DyeMixer() {
         GridBagConstraints c;
@@ -1428,446 +1787,23 @@ public class DyeMixer extends Panel {
 
         // load stuff
 
-        String reason = "no reason";
-        String dataname = "data.txt";
-
-        availablelights = new Vector(generatedlights.length);
-        availablecanvases = new Vector(generatedcanvases.length);
-        availabledyes = new Vector(generateddyes.length);
-        for (int t = 0; (t < generatedlights.length); t++) {
-            availablelights.addElement(generatedlights[t]);
-        }
-        for (int t = 0; (t < generatedcanvases.length); t++) {
-            availablecanvases.addElement(generatedcanvases[t]);
-        }
-        for (int t = 0; (t < generateddyes.length); t++) {
-            availabledyes.addElement(generateddyes[t]);
-        }
-        int defaultlightnumber = 1;
-        int defaultcanvasnumber = 1;
-        int defaultdyenumber = 1;
-
-        BufferedReader reader;
-        StreamTokenizer tokenizer;
-
-        if (!failed) try {
-            InputStream stream = this.getClass().getClassLoader().getResourceAsStream(dataname);
-            reader = new BufferedReader(new InputStreamReader(stream));
-            tokenizer = new StreamTokenizer(reader);
-            tokenizer.slashSlashComments(true);
-            tokenizer.slashStarComments(true);
-            final int parsestatenone = 0;
-            final int parsestatelight = 1;
-            final int parsestatecanvas = 2;
-            final int parsestatedye = 3;
-            final int spectrumtypenone = 0;
-            final int spectrumtypeeven = 1;
-            final int spectrumtypeuneven = 2;
-            int parsestate = parsestatenone;
-            int spectrumtype = spectrumtypenone;
-            String name = "?";
-            String category = "?";
-            String ci = "?";
-            String mixture = "?";
-            double spectrumstart = 350, spectrumstep = 5;
-            int number = 0;
-            boolean useasdefault = false;
-            final int maxnumspectrumsamples = 65536;
-            int numspectrumsamples = 0;
-            double[] spectrum = new double[maxnumspectrumsamples];
-            double gain = 1.0;
-            int ttype = tokenizer.nextToken();
-            for(;;) {
-                if ((ttype == StreamTokenizer.TT_WORD) && (tokenizer.sval.equals("break"))) break;
-                if ((parsestate == parsestatelight)||(parsestate == parsestatecanvas)||(parsestate == parsestatedye)) {
-                    if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("name"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 34) {
-                            failed = true;
-                            reason = "Expecting name in double quotes in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        name = tokenizer.sval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("category"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 34) {
-                            failed = true;
-                            reason = "Expecting category name in double quotes in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        category = tokenizer.sval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("mixture"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 34) {
-                            failed = true;
-                            reason = "Expecting either \"mixture\" or \"pure\" in double quotes in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        mixture = tokenizer.sval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("ci"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 34) {
-                            failed = true;
-                            reason = "Expecting color index (c.i.) in double quotes in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ci = tokenizer.sval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("start"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != StreamTokenizer.TT_NUMBER) {
-                            failed = true;
-                            reason = "Expecting numerical value in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        spectrumstart = tokenizer.nval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("number"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != StreamTokenizer.TT_NUMBER) {
-                            failed = true;
-                            reason = "Expecting numerical value in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        number = (int)(tokenizer.nval);
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("start"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != StreamTokenizer.TT_NUMBER) {
-                            failed = true;
-                            reason = "Expecting numerical value in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        spectrumstart = tokenizer.nval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("step"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-                        if (ttype != StreamTokenizer.TT_NUMBER) {
-                            failed = true;
-                            reason = "Expecting numerical value in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        spectrumstep = tokenizer.nval;
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        ttype = tokenizer.nextToken();
-
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("evendata"))) {
-                        if (spectrumtype != spectrumtypenone) {
-                            failed = true;
-                            reason = "Duplicate spectrum in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        for (;;) {
-                            ttype = tokenizer.nextToken();
-                            if (ttype == 59) break;
-                            if (ttype != StreamTokenizer.TT_NUMBER) {
-                                failed = true;
-                                reason = "Expecting numerical value in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            spectrum[numspectrumsamples++] = tokenizer.nval;
-                            if (numspectrumsamples >= maxnumspectrumsamples) break;
-                            ttype = tokenizer.nextToken();
-                            if (ttype != 44) {
-                                if (ttype == 59) break;
-                                failed = true;
-                                reason = "Expecting \",\" or \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-
-                        }
-                        if (failed) break;
-                        spectrumtype = spectrumtypeeven;
-                        ttype = tokenizer.nextToken();
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("unevendata"))) {
-                        if (spectrumtype != spectrumtypenone) {
-                            failed = true;
-                            reason = "Duplicate spectrum in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 61) {
-                            failed = true;
-                            reason = "Expecting \"=\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        for (;;) {
-                            ttype = tokenizer.nextToken();
-                            if (ttype == 59) break;
-                            if (ttype != StreamTokenizer.TT_NUMBER) {
-                                failed = true;
-                                reason = "Expecting numerical value in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            spectrum[numspectrumsamples++] = tokenizer.nval;
-                            if (numspectrumsamples >= maxnumspectrumsamples) break;
-                            ttype = tokenizer.nextToken();
-                            if (ttype != 44) {
-                                if (ttype == 59) break;
-                                failed = true;
-                                reason = "Expecting \",\" or \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-
-                        }
-                        if (failed) break;
-                        if ((numspectrumsamples % 2) != 0) {
-                            failed = true;
-                            reason = "Unevendata must have even length in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        spectrumtype = spectrumtypeuneven;
-                        ttype = tokenizer.nextToken();
-                    } else if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("default"))) {
-                        ttype = tokenizer.nextToken();
-                        if (ttype != 59) {
-                            failed = true;
-                            reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-                        useasdefault = true;
-                        ttype = tokenizer.nextToken();
-                    } else if ((ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("light") || tokenizer.sval.equals("canvas") || tokenizer.sval.equals("dye"))) || (ttype == StreamTokenizer.TT_EOF)) {
-                        // Create light/canvas/dye
-                        // -----------------------
-
-                        if (spectrumtype == spectrumtypenone) {
-                            failed = true;
-                            reason = "Missing spectral data before line "+ tokenizer.lineno() +" in "+ dataname;
-                            break;
-                        }
-
-                        double[] spectrumcopy = new double[numspectrumsamples];
-                        for (int t = 0; (t < numspectrumsamples); t++) {
-                            spectrumcopy[t] = spectrum[t];
-                        }
-
-                        Spectrum newspectrum;
-                        if (spectrumtype == spectrumtypeeven) {
-                            newspectrum = new EvenlySampledSpectrum(spectrumcopy, spectrumstart, spectrumstep);
-                        } else {
-                            newspectrum = new UnevenlySampledSpectrum(spectrumcopy);
-                        }
-
-                        if (parsestate == parsestatecanvas) {
-                            if (useasdefault) defaultcanvasnumber = number;
-                            if (NumberFinder.findIndex(availablecanvases, number) >= 0) {
-                                failed = true;
-                                reason = "Duplicate number "+ number +" before line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            Canvas newcanvas = new Canvas(category+", "+name, newspectrum);
-                            newcanvas.setNumber(number);
-
-                            availablecanvases.addElement(newcanvas);
-                        }
-
-                        else if (parsestate == parsestatedye) {
-                            newspectrum.clipNegatives();
-                            newspectrum.normalizeAbsorbance();
-                            if (useasdefault) defaultdyenumber = number;
-                            if (NumberFinder.findIndex(availabledyes, number) >= 0) {
-                                failed = true;
-                                reason = "Duplicate number "+ number +" before line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            Dye newdye = new Dye(name, ci, category, mixture, newspectrum);
-                            newdye.setNumber(number);
-                            availabledyes.addElement(newdye);
-                        }
-
-                        else if (parsestate == parsestatelight) {
-                            if (useasdefault) defaultlightnumber = number;
-                            if (NumberFinder.findIndex(availablelights, number) >= 0) {
-                                failed = true;
-                                reason = "Duplicate number "+ number +" before line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            Light newlight = new Light(category+", "+name, newspectrum);
-                            newlight.setNumber(number);
-                            availablelights.addElement(newlight);
-                        }
-
-                        if (ttype == StreamTokenizer.TT_EOF) break;
-                        parsestate = parsestatenone;
-                    } else ttype = tokenizer.nextToken(); // it's an unknown token, ignore.
-                } else { // parsestate == parsestatenone
-                    if (ttype == StreamTokenizer.TT_EOF) break;
-                    if (ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("light") || tokenizer.sval.equals("canvas") || tokenizer.sval.equals("dye"))) {
-                        if (tokenizer.sval.equals("canvas")) {
-                            ttype = tokenizer.nextToken();
-                            if (ttype != 59) {
-                                failed = true;
-                                reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            number = 0;
-                            category = "?";
-                            name = "?";
-                            spectrumstart = 350;
-                            spectrumstep = 5;
-                            numspectrumsamples = 0;
-                            spectrumtype = spectrumtypenone;
-                            useasdefault = false;
-                            parsestate = parsestatecanvas;
-                            ttype = tokenizer.nextToken();
-                        } else if (tokenizer.sval.equals("dye")) {
-                            ttype = tokenizer.nextToken();
-                            if (ttype != 59) {
-                                failed = true;
-                                reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            number = 0;
-                            category = "?";
-                            name = "?";
-                            mixture = "?";
-                            ci = "?";
-                            spectrumstart = 350;
-                            spectrumstep = 5;
-                            numspectrumsamples = 0;
-                            spectrumtype = spectrumtypenone;
-                            useasdefault = false;
-                            parsestate = parsestatedye;
-                            ttype = tokenizer.nextToken();
-                        } else if (tokenizer.sval.equals("light")) {
-                            ttype = tokenizer.nextToken();
-                            if (ttype != 59) {
-                                failed = true;
-                                reason = "Expecting \";\" in line "+ tokenizer.lineno() +" in "+ dataname;
-                                break;
-                            }
-                            number = 0;
-                            category = "?";
-                            name = "?";
-                            spectrumstart = 350;
-                            spectrumstep = 5;
-                            numspectrumsamples = 0;
-                            spectrumtype = spectrumtypenone;
-                            useasdefault = false;
-                            parsestate = parsestatelight;
-                            ttype = tokenizer.nextToken();
-                        }
-                    } else {
-                        failed = true;
-                        reason = "Expecting one of {\"canvas\", \"light\", \"dye\"} in line "+ tokenizer.lineno() +" in "+ dataname;
-                        break;
-                    }
-                }
+        Library library = Library.load();
+        failed = library.failed;
+        String reason = library.reason;
+        String librarystatus = null;
+        if (!failed) {
+            // Extra libraries from the user directory, reloaded when its files change
+            try {
+                userlibrary = new UserLibrary(library, UserLibrary.getDefaultDirectory());
+                library = userlibrary.getLibrary();
+                if (!library.errors.isEmpty()) librarystatus = getLibraryStatus(library, "User library");
+            } catch (IOException e) {
+                librarystatus = "Could not read the user library: "+ e.getMessage();
             }
-        } catch (Exception e) {
-            failed = true;
-            reason = "Could not read "+dataname;
         }
+        availablelights = library.availablelights;
+        availablecanvases = library.availablecanvases;
+        availabledyes = library.availabledyes;
 
         if (failed) {
             Label ui_errorlabel, ui_reasonlabel;
@@ -1884,19 +1820,14 @@ public class DyeMixer extends Panel {
             return;
         }
 
-        // Sort choices
-        QuickSort.sort(availablelights);
-        QuickSort.sort(availablecanvases);
-        QuickSort.sort(availabledyes);
+        Metrics.registerGauge("mixcache.hits", () -> mixengine.cache.getHits());
+        Metrics.registerGauge("mixcache.misses", () -> mixengine.cache.getMisses());
+        Metrics.registerGauge("mixcache.evictions", () -> mixengine.cache.getEvictions());
+        Metrics.registerGauge("mixcache.size", () -> mixengine.cache.size());
 
         // Initial settings
-        for (int t = 0; (t < nummixeddyes); t++) {
-            set_indexdyes[t] = NumberFinder.findIndex(availabledyes, defaultdyenumber);
-            set_dyeamounts[t] = 1.0;
-            set_dyeenables[t] = true;
-        }
-        set_indexlight = NumberFinder.findIndex(availablelights, defaultlightnumber);
-        set_indexcanvas = NumberFinder.findIndex(availablecanvases, defaultcanvasnumber);
+        set_indexlight = NumberFinder.findIndex(availablelights, library.defaultlightnumber);
+        set_indexcanvas = NumberFinder.findIndex(availablecanvases, library.defaultcanvasnumber);
 
         // UI
         setBackground(backgroundcolor);
@@ -1927,10 +1858,13 @@ public class DyeMixer extends Panel {
         // +---------+
         // | 2panel4 |
         // +---------+
+        // | 2panel5 |
+        // +---------+
         Panel ui_2panel1 = new Panel(); ui_panel2.add(ui_2panel1);
         Panel ui_2panel2 = new Panel(); ui_panel2.add(ui_2panel2);
         Panel ui_2panel3 = new Panel(); ui_panel2.add(ui_2panel3);
         Panel ui_2panel4 = new Panel(); ui_panel2.add(ui_2panel4);
+        Panel ui_2panel5 = new Panel(); ui_panel2.add(ui_2panel5);
 
         l = new GridBagLayout();
         ui_panel2.setLayout(l);
@@ -1944,6 +1878,9 @@ public class DyeMixer extends Panel {
         c.weighty = 1.0;
         c.fill = GridBagConstraints.BOTH;
         l.setConstraints(ui_2panel4, c);
+        c.weighty = 0.0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        l.setConstraints(ui_2panel5, c);
 
         // In 2panel1: +----------------------+---------------------+
         //             |       21panel1       |      21panel2       |
@@ -1956,6 +1893,10 @@ public class DyeMixer extends Panel {
         //             +--------------------------------------------+
         //             |                                            |
         //             +--------------------------------------------+
+        //             |              (dilution strip)              |
+        //             +--------------------------------------------+
+        //             |                 (spectra)                  |
+        //             +--------------------------------------------+
         Panel ui_21panel1 = new Panel(); ui_2panel1.add(ui_21panel1);
         Panel ui_21panel2 = new Panel(); ui_2panel1.add(ui_21panel2);
 
@@ -2040,6 +1981,16 @@ public class DyeMixer extends Panel {
         Label ui_lightlabel;
         ui_211panel1.add(ui_lightlabel = new Label("Illuminant"));
         ui_211panel1.add(ui_lightwhite = new Checkbox("White adapt", set_lightwhite));
+        ui_211panel1.add(ui_observer = new Choice());
+        for (int t = 0; (t < Observer.observers.length); t++) {
+            ui_observer.add(Observer.observers[t].getName());
+        }
+        ui_observer.select(set_observer);
+        ui_211panel1.add(ui_adaptation = new Choice());
+        for (int t = 0; (t < ChromaticAdaptation.adaptations.length); t++) {
+            ui_adaptation.add(ChromaticAdaptation.adaptations[t].getName());
+        }
+        ui_adaptation.select(set_adaptation);
 
         l = new GridBagLayout();
         ui_211panel1.setLayout(l);
@@ -2048,8 +1999,10 @@ public class DyeMixer extends Panel {
         c.weightx = 0.1;
         c.fill = GridBagConstraints.HORIZONTAL;
         l.setConstraints(ui_lightlabel, c);
-        c.weightx = 0.9;
+        c.weightx = 0.3;
         l.setConstraints(ui_lightwhite, c);
+        l.setConstraints(ui_observer, c);
+        l.setConstraints(ui_adaptation, c);
 
         ui_21panel1.add(ui_light = new Choice());
 
@@ -2079,6 +2032,11 @@ public class DyeMixer extends Panel {
         ui_221panel1.add(ui_canvaslabel = new Label("Canvas"));
         ui_221panel1.add(ui_canvaswhite = new Checkbox("White adapt", set_canvaswhite));
         ui_221panel1.add(ui_canvasbright = new Checkbox("Brightness adapt", set_canvasbright));
+        ui_221panel1.add(ui_model = new Choice());
+        for (int t = 0; (t < modelnames.length); t++) {
+            ui_model.add(modelnames[t]);
+        }
+        ui_model.select(set_model);
 
         l = new GridBagLayout();
         ui_221panel1.setLayout(l);
@@ -2088,8 +2046,9 @@ public class DyeMixer extends Panel {
         c.fill = GridBagConstraints.HORIZONTAL;
         l.setConstraints(ui_canvaslabel, c);
         l.setConstraints(ui_canvaswhite, c);
-        c.weightx = 0.8;
+        c.weightx = 0.4;
         l.setConstraints(ui_canvasbright, c);
+        l.setConstraints(ui_model, c);
 
         ui_22panel1.add(ui_canvas = new Choice());
 
@@ -2152,34 +2111,20 @@ public class DyeMixer extends Panel {
         ui_23panel5.setLayout(l);
         l.setConstraints(ui_dyeswatchlabel, c);
 
-        for (int t = 0; (t < nummixeddyes); t++) {
-
-            c = new GridBagConstraints();
-            c.gridx = 0;
-            c.weightx = 1.0;
-            c.weighty = 1.0/nummixeddyes;
-            c.fill = GridBagConstraints.HORIZONTAL;
-
-            ui_23panel2.add(ui_dyes[t] = new Choice());
-            ((GridBagLayout)(ui_23panel2.getLayout())).setConstraints(ui_dyes[t], c);
-
-            ui_23panel1.add(ui_dyeenables[t] = new Checkbox("", set_dyeenables[t]));
-            ((GridBagLayout)(ui_23panel1.getLayout())).setConstraints(ui_dyeenables[t], c);
-
-            ui_23panel4.add(ui_dyeamounts[t] = new TextField(""+set_dyeamounts[t], 3));
-            ((GridBagLayout)(ui_23panel4.getLayout())).setConstraints(ui_dyeamounts[t], c);
-
-            ui_23panel3.add(ui_dyesliders[t] = new Scrollbar(Scrollbar.HORIZONTAL, dyeAmountToSlider(set_dyeamounts[t]), 5, 0, maxdyeslider+5));
-            ui_dyesliders[t].setBackground(backgroundcolor);
-            ((GridBagLayout)(ui_23panel3.getLayout())).setConstraints(ui_dyesliders[t], c);
-
-            ui_23panel5.add(ui_dyeswatches[t] = new Swatch());
-            ((GridBagLayout)(ui_23panel5.getLayout())).setConstraints(ui_dyeswatches[t], c);
+        ui_dyeenablepanel = ui_23panel1;
+        ui_dyechoicepanel = ui_23panel2;
+        ui_dyesliderpanel = ui_23panel3;
+        ui_dyeamountpanel = ui_23panel4;
+        ui_dyeswatchpanel = ui_23panel5;
+        for (int t = 0; (t < initialnummixeddyes); t++) {
+            addDyeRow(NumberFinder.findIndex(availabledyes, library.defaultdyenumber), 1.0, true);
         }
 
         Label ui_combinedlabel;
         ui_24panel1.add(ui_combinedlabel = new Label("Mixed Swatch"));
         ui_24panel1.add(ui_combinedbright = new Checkbox("Brightness adapt", set_combinedbright));
+        ui_24panel1.add(ui_dyeadd = new Button("Add dye"));
+        ui_24panel1.add(ui_dyeremove = new Button("Remove dye"));
         l = new GridBagLayout();
         ui_24panel1.setLayout(l);
         c = new GridBagConstraints();
@@ -2189,6 +2134,9 @@ public class DyeMixer extends Panel {
         l.setConstraints(ui_combinedlabel, c);
         c.weightx = 0.9;
         l.setConstraints(ui_combinedbright, c);
+        c.weightx = 0.0;
+        l.setConstraints(ui_dyeadd, c);
+        l.setConstraints(ui_dyeremove, c);
 
         ui_2panel4.add(ui_combinedswatch = new Swatch());
 
@@ -2200,20 +2148,70 @@ public class DyeMixer extends Panel {
         c.fill = GridBagConstraints.BOTH;
         l.setConstraints(ui_combinedswatch, c);
 
+        ui_2panel4.add(ui_strip = new DilutionStrip());
+        c.weighty = 0.0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        l.setConstraints(ui_strip, c);
+
+        Panel ui_24panel2 = new Panel(); ui_2panel4.add(ui_24panel2);
+        l.setConstraints(ui_24panel2, c);
+
+        ui_2panel4.add(ui_plot = new SpectrumPlot());
+        c.weighty = 2.0;
+        c.fill = GridBagConstraints.BOTH;
+        c.insets = new Insets(2, 2, 2, 2);
+        l.setConstraints(ui_plot, c);
+
+        Label ui_measuringerrorlabel;
+        ui_24panel2.add(ui_measuringerrorlabel = new Label("Measuring error"));
+        ui_24panel2.add(ui_measuringerror = new Choice());
+        for (int t = 0; (t < measuringerrornames.length); t++) {
+            ui_measuringerror.add(measuringerrornames[t]);
+        }
+        ui_measuringerror.select(set_measuringerror);
+        ui_24panel2.add(ui_spread = new Label(""));
+        l = new GridBagLayout();
+        ui_24panel2.setLayout(l);
+        c = new GridBagConstraints();
+        c.gridy = 0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        l.setConstraints(ui_measuringerrorlabel, c);
+        l.setConstraints(ui_measuringerror, c);
+        c.weightx = 1.0;
+        l.setConstraints(ui_spread, c);
+
+        Label ui_recipelabel;
+        ui_2panel5.add(ui_recipelabel = new Label("Recipe"));
+        ui_2panel5.add(ui_recipename = new TextField("", 12));
+        ui_2panel5.add(ui_recipesave = new Button("Save"));
+        ui_2panel5.add(ui_reciperecall = new Button("Recall"));
+        ui_2panel5.add(ui_recipenearest = new Button("Closest"));
+        ui_2panel5.add(ui_recipestatus = new Label(""));
+
+        l = new GridBagLayout();
+        ui_2panel5.setLayout(l);
+        c = new GridBagConstraints();
+        c.gridy = 0;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        l.setConstraints(ui_recipelabel, c);
+        c.weightx = 0.3;
+        l.setConstraints(ui_recipename, c);
+        c.weightx = 0.0;
+        l.setConstraints(ui_recipesave, c);
+        l.setConstraints(ui_reciperecall, c);
+        l.setConstraints(ui_recipenearest, c);
+        c.weightx = 0.7;
+        l.setConstraints(ui_recipestatus, c);
+
         // Set up choices
         for (int u = 0; (u < availablelights.size()); u++) {
-            ui_light.add(((Light)(availablelights.elementAt(u))).getName());
+            ui_light.add(availablelights.elementAt(u).getName());
         }
         set2ui_LightChoice();
         for (int u = 0; (u < availablecanvases.size()); u++) {
-            ui_canvas.add(((Canvas)(availablecanvases.elementAt(u))).getName());
+            ui_canvas.add(availablecanvases.elementAt(u).getName());
         }
         set2ui_CanvasChoice();
-        for (int t = 0; (t < nummixeddyes); t++) {
-            for (int u = 0; (u < availabledyes.size()); u++) {
-                ui_dyes[t].add(((Dye)(availabledyes.elementAt(u))).getName());
-            }
-        }
         set2ui_DyeChoices();
         set2ui_AllSwatches();
 
@@ -2222,13 +2220,24 @@ public class DyeMixer extends Panel {
         ui_canvaswhite.addItemListener(new CanvasWhiteListener());
         ui_canvasbright.addItemListener(new CanvasBrightListener());
         ui_combinedbright.addItemListener(new CombinedBrightListener());
+        ui_model.addItemListener(new ModelChoiceListener());
+        ui_measuringerror.addItemListener(new MeasuringErrorListener());
+        ui_observer.addItemListener(new ObserverChoiceListener());
+        ui_adaptation.addItemListener(new AdaptationChoiceListener());
         ui_light.addItemListener(new LightChoiceListener());
         ui_canvas.addItemListener(new CanvasChoiceListener());
-        for (int t = 0; (t < nummixeddyes); t++) {
-            ui_dyeenables[t].addItemListener(new DyeEnableListener(t));
-            ui_dyes[t].addItemListener(new DyeChoiceListener(t));
-            ui_dyeamounts[t].addTextListener(listen_dyeamounts[t] = new DyeAmountListener(t));
-            ui_dyesliders[t].addAdjustmentListener(listen_dyesliders[t] = new DyeSliderListener(t));
+        ui_recipesave.addActionListener(new RecipeSaveListener());
+        ui_reciperecall.addActionListener(new RecipeRecallListener());
+        ui_recipenearest.addActionListener(new RecipeNearestListener());
+        ui_dyeadd.addActionListener(new DyeAddListener());
+        ui_dyeremove.addActionListener(new DyeRemoveListener());
+        if (librarystatus != null) ui_recipestatus.setText(librarystatus);
+        if (userlibrary != null) {
+            try {
+                userlibrary.start(new UserLibraryListener());
+            } catch (IOException e) {
+                ui_recipestatus.setText("Not watching the user library: "+ e.getMessage());
+            }
         }
 
     }
@@ -2240,6 +2249,28 @@ public class DyeMixer extends Panel {
     }
 
     public void destroy() {
+        if (spreadworker != null) {
+            spreadworker.shutdownNow();
+            spreadpool.shutdownNow();
+            spreadworker = null;
+            spreadpool = null;
+        }
+        if (userlibrary != null) {
+            try {
+                userlibrary.close();
+            } catch (IOException e) {
+                // Only the watcher thread is affected
+            }
+            userlibrary = null;
+        }
+        if (recipestore != null) {
+            try {
+                recipestore.close();
+            } catch (IOException e) {
+                // The log is intact; the unindexed records are rescanned next time
+            }
+            recipestore = null;
+        }
     }
 
     public void paint(Graphics g) {
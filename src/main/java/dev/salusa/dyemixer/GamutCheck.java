@@ -0,0 +1,103 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tells whether the dyes can make some colors, before anyone searches for recipes:
+ *
+ *   dyemixer gamut [--samples n] [--max-dyes n] [--max-amount x] [--step nm] [mix options]
+ *                  color...
+ *
+ * A color is L*,a*,b* or an sRGB #rrggbb. Each is tested against the GamutHull of the dyes and
+ * printed as inside, or outside by at least so much deltaE.
+ */
+class GamutCheck {
+
+    static int run(String[] args) throws IOException {
+        MixOptions options = new MixOptions();
+        int numsamples = GamutHull.defaultnumsamples;
+        int maxdyes = GamutHull.defaultmaxdyes;
+        double maxamount = DyeMixer.maxdyeamount;
+        int step = 5;
+        List<String> colors = new ArrayList<String>();
+        List<double[]> labs = new ArrayList<double[]>();
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--samples") && hasvalue) {
+                    numsamples = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-dyes") && hasvalue) {
+                    maxdyes = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-amount") && hasvalue) {
+                    maxamount = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--step") && hasvalue) {
+                    step = Integer.parseInt(args[++t]);
+                } else if (arg.startsWith("--")) {
+                    return usage("Unknown option "+ arg);
+                } else {
+                    colors.add(arg);
+                    labs.add(parseColor(arg));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if (colors.isEmpty()) return usage(null);
+        if ((numsamples < 1) || (maxdyes < 1) || (step < 1) || !(maxamount > 0)) {
+            return usage("Out of range");
+        }
+        options.resolve();
+        maxdyes = Math.min(maxdyes, options.dyes.length);
+
+        MixEngine engine = options.newEngine();
+        GamutHull gamut;
+        long start = System.nanoTime();
+        try {
+            gamut = engine.getGamut(options.light, options.canvas, options.getFlags(), options.dyes, maxdyes,
+                    maxamount, numsamples, step, options.numthreads);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        long built = System.nanoTime();
+        System.out.println("# gamut of "+ numsamples +" recipes of up to "+ maxdyes +" of "+ options.dyes.length
+                +" dyes; "+ options.describe());
+        for (int k = 0; (k < colors.size()); k++) {
+            double[] lab = labs.get(k);
+            double distance = gamut.getDistanceOutside(lab);
+            System.out.println(String.format(Locale.ROOT, "%-16s %7.2f %7.2f %7.2f  %s", colors.get(k),
+                    lab[0], lab[1], lab[2], (distance >= 0.005)
+                    ? String.format(Locale.ROOT, "outside by %.2f", distance) : "inside"));
+        }
+        System.out.println(String.format(Locale.ROOT, "# built in %d ms on %d threads",
+                (built - start)/1000000, options.numthreads));
+        return 0;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: gamut [--samples n] [--max-dyes n] [--max-amount x] [--step nm]");
+        System.err.println("             "+ MixOptions.usage.replace("\n", "\n             "));
+        System.err.println("             color...   (L*,a*,b* or #rrggbb)");
+        return 2;
+    }
+
+    /** Parses L*,a*,b* or an sRGB #rrggbb into L*a*b*. */
+    static double[] parseColor(String color) {
+        if (color.startsWith("#") && (color.length() == 7)) {
+            return CIELab.fromXYZ(ColorEncoder.srgb.decode(Integer.parseInt(color.substring(1), 16)));
+        }
+        String[] parts = color.split(",");
+        if (parts.length != 3) throw new IllegalArgumentException("Not a color: "+ color);
+        double[] lab = new double[3];
+        for (int c = 0; (c < 3); c++) lab[c] = Double.parseDouble(parts[c].trim());
+        return lab;
+    }
+}
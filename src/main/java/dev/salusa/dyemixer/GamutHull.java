@@ -0,0 +1,187 @@
+package dev.salusa.dyemixer;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+
+import dev.salusa.dyemixer.DyeMixer.Dye;
+
+/**
+ * The CIELAB gamut of a set of dyes under one light and canvas, as a convex polytope: for each
+ * of a fixed set of directions u, the support h(u), the largest u.p over the colors p of sampled
+ * recipes. A color p is outside when u.p > h(u) for some u, and the excess is a lower bound on
+ * its deltaE to every sampled color. Recipes that weren't sampled can lie a little beyond, up
+ * to about 1.5 deltaE with the default 200000 samples, so a solver should only skip colors that
+ * are well outside. Inside is not a promise that a recipe exists either, as the gamut needn't be
+ * convex, only that it is worth a solver's time.
+ *
+ * More directions make the polytope hug the convex hull more tightly. A test is one dot product
+ * per direction, one or two microseconds with the default 1024, less for colors far outside;
+ * building costs one per direction per sampled recipe, spread over threads. MixEngine keeps
+ * built hulls, see getGamut().
+ */
+class GamutHull {
+
+    static final int defaultnumdirections = 1024;
+    static final int defaultnumsamples = 200000;
+    static final int defaultmaxdyes = 3;
+    static final long defaultseed = 45;
+    /**
+     * How far outside a color has to be for a solver to skip it: well past the 1.5 deltaE that
+     * recipes which weren't sampled can reach.
+     */
+    static final double skipdistance = 3.0;
+
+    /** Unit directions as L*, a*, b* triples. */
+    final double[] directions;
+    final double[] support;
+
+    GamutHull(double[] directions, double[] support) {
+        this.directions = directions;
+        this.support = support;
+    }
+
+    /** numdirections directions spread evenly over the sphere on a Fibonacci spiral. */
+    static double[] fibonacciDirections(int numdirections) {
+        double[] directions = new double[3*numdirections];
+        double golden = Math.PI*(3.0 - Math.sqrt(5.0));
+        for (int k = 0; (k < numdirections); k++) {
+            double z = 1.0 - 2.0*(k + 0.5)/numdirections;
+            double r = Math.sqrt(1.0 - z*z);
+            directions[3*k] = z;
+            directions[3*k+1] = r*Math.cos(golden*k);
+            directions[3*k+2] = r*Math.sin(golden*k);
+        }
+        return directions;
+    }
+
+    /**
+     * Samples numsamples random recipes of up to maxdyes of the mixer's dyes (see
+     * BatchMixer.drawRecipes()), the bare canvas and every dye alone at a range of amounts, and
+     * returns the hull of their colors.
+     */
+    static GamutHull build(final BatchMixer mixer, int numsamples, final int maxdyes, final double maxamount,
+                           final long seed, int numdirections, int numthreads) throws ExecutionException {
+        final double[] directions = fibonacciDirections(numdirections);
+        final int numchunks = (numsamples + BatchMixer.chunksize - 1)/BatchMixer.chunksize;
+        final double[][] chunksupport = new double[numchunks][];
+        final int slots = Math.min(maxdyes, mixer.dyes.length);
+        BatchMixer.forEachChunk(numsamples, numthreads, (first, count) -> {
+            SplittableRandom random = new SplittableRandom(seed*0x9E3779B97F4A7C15L + first);
+            int[] dyeindices = new int[count*slots];
+            double[] amounts = new double[count*slots];
+            mixer.drawRecipes(random, slots, maxamount, 0, count, dyeindices, amounts);
+            double[] xyz = new double[3*count];
+            mixer.mix(dyeindices, amounts, slots, 0, count, xyz);
+            double[] lab = new double[3*count];
+            for (int r = 0; (r < count); r++) {
+                CIELab.fromXYZ(xyz, 3*r, lab, 3*r);
+            }
+            chunksupport[first/BatchMixer.chunksize] = getSupport(directions, lab, count);
+        });
+        double[] support = getSupport(directions, extremes(mixer, maxamount), 1 + 8*mixer.dyes.length);
+        for (int c = 0; (c < numchunks); c++) {
+            for (int k = 0; (k < support.length); k++) {
+                support[k] = Math.max(support[k], chunksupport[c][k]);
+            }
+        }
+        return new GamutHull(directions, support);
+    }
+
+    /** The colors of the bare canvas and of each dye alone at 8 amounts up to maxamount. */
+    static double[] extremes(BatchMixer mixer, double maxamount) {
+        int numdyes = mixer.dyes.length;
+        double[] lab = new double[3*(1 + 8*numdyes)];
+        double[] dyeamounts = new double[numdyes];
+        CIELab.fromXYZ(mixer.mix(dyeamounts), 0, lab, 0);
+        for (int t = 0; (t < numdyes); t++) {
+            for (int u = 0; (u < 8); u++) {
+                Arrays.fill(dyeamounts, 0.0);
+                dyeamounts[t] = maxamount/(1 << (7 - u));
+                CIELab.fromXYZ(mixer.mix(dyeamounts), 0, lab, 3*(1 + 8*t + u));
+            }
+        }
+        return lab;
+    }
+
+    static double[] getSupport(double[] directions, double[] lab, int count) {
+        int numdirections = directions.length/3;
+        double[] support = new double[numdirections];
+        Arrays.fill(support, Double.NEGATIVE_INFINITY);
+        for (int r = 0; (r < count); r++) {
+            double l = lab[3*r], a = lab[3*r+1], b = lab[3*r+2];
+            for (int k = 0; (k < numdirections); k++) {
+                double d = directions[3*k]*l + directions[3*k+1]*a + directions[3*k+2]*b;
+                support[k] = Math.max(support[k], d);
+            }
+        }
+        return support;
+    }
+
+    /** How far lab is outside, at least, in deltaE; 0 if it is inside. */
+    double getDistanceOutside(double[] lab) {
+        double l = lab[0], a = lab[1], b = lab[2];
+        double excess = 0;
+        for (int k = 0; (k < support.length); k++) {
+            double d = directions[3*k]*l + directions[3*k+1]*a + directions[3*k+2]*b - support[k];
+            if (d > excess) excess = d;
+        }
+        return excess;
+    }
+
+    boolean contains(double[] lab, double tolerance) {
+        double l = lab[0], a = lab[1], b = lab[2];
+        for (int k = 0; (k < support.length); k++) {
+            if (directions[3*k]*l + directions[3*k+1]*a + directions[3*k+2]*b > support[k] + tolerance) return false;
+        }
+        return true;
+    }
+
+    boolean contains(double[] lab) {
+        return contains(lab, 0.0);
+    }
+
+    /** Identifies a hull in MixEngine's cache. */
+    static class Key {
+        final int lightnumber;
+        final int canvasnumber;
+        final int flags;
+        final int[] dyenumbers;
+        final int maxdyes;
+        final double maxamount;
+        final int numsamples;
+        final int step;
+
+        Key(DyeMixer.Light light, DyeMixer.Canvas canvas, int flags, Dye[] dyes, int maxdyes, double maxamount,
+            int numsamples, int step) {
+            this.lightnumber = light.getNumber();
+            this.canvasnumber = canvas.getNumber();
+            this.flags = flags;
+            this.dyenumbers = new int[dyes.length];
+            for (int t = 0; (t < dyes.length); t++) dyenumbers[t] = dyes[t].getNumber();
+            this.maxdyes = maxdyes;
+            this.maxamount = maxamount;
+            this.numsamples = numsamples;
+            this.step = step;
+        }
+
+        public int hashCode() {
+            int h = lightnumber;
+            h = 31*h + canvasnumber;
+            h = 31*h + flags;
+            h = 31*h + Arrays.hashCode(dyenumbers);
+            h = 31*h + maxdyes;
+            h = 31*h + Double.hashCode(maxamount);
+            h = 31*h + numsamples;
+            return 31*h + step;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return (lightnumber == k.lightnumber) && (canvasnumber == k.canvasnumber) && (flags == k.flags)
+                    && Arrays.equals(dyenumbers, k.dyenumbers) && (maxdyes == k.maxdyes)
+                    && (maxamount == k.maxamount) && (numsamples == k.numsamples) && (step == k.step);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dev.salusa.dyemixer.DyeMixer.Dye;
+
+/**
+ * Plans the dyeing of a design: reduces an image to a palette and finds a recipe for each color.
+ *
+ *   dyemixer recipes [--colors n] [--band rows] [--samples n] [--max-dyes n] [--max-amount x]
+ *                    [--seed n] [mix options] image.png
+ *
+ * The image is read a band of rows at a time (see PngRowReader) and each band is binned by a
+ * pool of threads into a histogram of 5 bits per sRGB channel, so memory doesn't depend on the
+ * size of the image. Pixels less than half opaque are left undyed. Median cut over the bins,
+ * refined by a few rounds of k-means in CIELAB, gives the palette; a RecipeSolver then finds
+ * recipes for the colors in parallel, each color once. Colors well outside the gamut of the
+ * dyes aren't searched, and are printed with how far outside they are.
+ */
+class ImageRecipes {
+
+    static final int binbits = 5;
+    static final int numbins = 1 << (3*binbits);
+    static final int kmeansrounds = 5;
+
+    int numcolors = 16;
+    int bandrows = 64;
+    int numsamples = RecipeSolver.defaultnumsamples;
+    int maxdyes = 3;
+    double maxamount = DyeMixer.maxdyeamount;
+    long seed = 46;
+    final MixOptions options = new MixOptions();
+
+    int width;
+    int height;
+    /** Per bin: pixel count and sums of r, g and b. */
+    long[] histogram;
+
+    /** The palette: pixel count, mean sRGB and CIELAB centroid per color. */
+    long[] counts;
+    int[] rgb;
+    double[][] lab;
+
+    static int run(String[] args) throws IOException {
+        ImageRecipes recipes = new ImageRecipes();
+        Path image = null;
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = recipes.options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--colors") && hasvalue) {
+                    recipes.numcolors = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--band") && hasvalue) {
+                    recipes.bandrows = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--samples") && hasvalue) {
+                    recipes.numsamples = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-dyes") && hasvalue) {
+                    recipes.maxdyes = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-amount") && hasvalue) {
+                    recipes.maxamount = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--seed") && hasvalue) {
+                    recipes.seed = Long.parseLong(args[++t]);
+                } else if (arg.startsWith("--") || (image != null)) {
+                    return usage("Unknown option "+ arg);
+                } else {
+                    image = Paths.get(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if (image == null) return usage(null);
+        if ((recipes.numcolors < 1) || (recipes.bandrows < 1) || (recipes.numsamples < 1)
+                || (recipes.maxdyes < 1) || !(recipes.maxamount > 0)) {
+            return usage("Out of range");
+        }
+        recipes.options.resolve();
+
+        long start = System.nanoTime();
+        try {
+            recipes.readHistogram(image);
+            long read = System.nanoTime();
+            recipes.quantize();
+            long quantized = System.nanoTime();
+            MixEngine engine = recipes.options.newEngine();
+            int flags = recipes.options.getFlags();
+            int maxdyes = Math.min(recipes.maxdyes, recipes.options.dyes.length);
+            GamutHull gamut = engine.getGamut(recipes.options.light, recipes.options.canvas, flags, recipes.options.dyes,
+                    maxdyes, recipes.maxamount, GamutHull.defaultnumsamples, 5, recipes.options.numthreads);
+            RecipeSolver solver = new RecipeSolver(
+                    new BatchMixer(engine, recipes.options.light, recipes.options.canvas, flags, recipes.options.dyes, 5),
+                    new BatchMixer(engine, recipes.options.light, recipes.options.canvas, flags, recipes.options.dyes, 1),
+                    gamut, recipes.maxdyes, recipes.maxamount);
+            solver.sample(recipes.numsamples, recipes.seed, recipes.options.numthreads);
+            RecipeSolver.Solution[] solutions = recipes.solve(solver);
+            long solved = System.nanoTime();
+            recipes.print(image, solutions);
+            System.out.println(String.format(Locale.ROOT,
+                    "# read in %d ms, quantized in %d ms, solved in %d ms on %d threads", (read - start)/1000000,
+                    (quantized - read)/1000000, (solved - quantized)/1000000, recipes.options.numthreads));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            throw new IOException(cause);
+        }
+        return 0;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: recipes [--colors n] [--band rows] [--samples n] [--max-dyes n]");
+        System.err.println("               [--max-amount x] [--seed n]");
+        System.err.println("               "+ MixOptions.usage.replace("\n", "\n               "));
+        System.err.println("               image.png");
+        return 2;
+    }
+
+    /**
+     * Reads the image into the histogram. Bands are binned by the pool as they are read, at most
+     * two per thread in flight, into one histogram per thread that are summed at the end.
+     */
+    void readHistogram(Path path) throws IOException, ExecutionException {
+        int numthreads = options.numthreads;
+        final BlockingQueue<long[]> histograms = new ArrayBlockingQueue<long[]>(numthreads);
+        for (int t = 0; (t < numthreads); t++) histograms.add(new long[4*numbins]);
+        ExecutorService pool = Executors.newFixedThreadPool(numthreads);
+        try (PngRowReader reader = new PngRowReader(path)) {
+            width = reader.width;
+            height = reader.height;
+            if ((long)width*bandrows > Integer.MAX_VALUE) throw new IOException("Image too wide");
+            int maxinflight = 2*numthreads;
+            ArrayDeque<int[]> free = new ArrayDeque<int[]>();
+            ArrayDeque<int[]> busy = new ArrayDeque<int[]>();
+            ArrayDeque<Future<Object>> inflight = new ArrayDeque<Future<Object>>();
+            while (true) {
+                if (inflight.size() == maxinflight) {
+                    inflight.remove().get();
+                    free.add(busy.remove());
+                }
+                final int[] band = free.isEmpty() ? new int[width*bandrows] : free.remove();
+                final int numpixels = width*reader.readRows(band, bandrows);
+                if (numpixels == 0) break;
+                busy.add(band);
+                inflight.add(pool.submit(() -> {
+                    long[] histogram = histograms.take();
+                    try {
+                        addToHistogram(band, numpixels, histogram);
+                    } finally {
+                        histograms.add(histogram);
+                    }
+                    return null;
+                }));
+            }
+            while (!inflight.isEmpty()) inflight.remove().get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+        histogram = new long[4*numbins];
+        for (long[] h : histograms) {
+            for (int i = 0; (i < histogram.length); i++) histogram[i] += h[i];
+        }
+    }
+
+    static void addToHistogram(int[] argb, int numpixels, long[] histogram) {
+        int shift = 8 - binbits;
+        for (int i = 0; (i < numpixels); i++) {
+            int p = argb[i];
+            if ((p >>> 24) < 128) continue;
+            int r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            int bin = ((r >> shift) << (2*binbits)) | ((g >> shift) << binbits) | (b >> shift);
+            histogram[4*bin]++;
+            histogram[4*bin+1] += r;
+            histogram[4*bin+2] += g;
+            histogram[4*bin+3] += b;
+        }
+    }
+
+    /** Median cut of the histogram into at most numcolors colors, then k-means in CIELAB. */
+    void quantize() {
+        int numused = 0;
+        for (int bin = 0; (bin < numbins); bin++) {
+            if (histogram[4*bin] > 0) numused++;
+        }
+        int[] bins = new int[numused];
+        double[][] mean = new double[numused][3];
+        double[][] binlab = new double[numused][];
+        long[] weight = new long[numused];
+        for (int bin = 0, i = 0; (bin < numbins); bin++) {
+            long count = histogram[4*bin];
+            if (count == 0) continue;
+            bins[i] = bin;
+            weight[i] = count;
+            for (int c = 0; (c < 3); c++) mean[i][c] = histogram[4*bin + 1 + c]/(double)count;
+            binlab[i] = CIELab.fromXYZ(ColorEncoder.srgb.decode(toRGB(mean[i])));
+            i++;
+        }
+
+        // Median cut: split the box with the most pixels times its longest side, at its median
+        int[] order = new int[numused];
+        for (int i = 0; (i < numused); i++) order[i] = i;
+        List<int[]> boxes = new ArrayList<int[]>();
+        if (numused > 0) boxes.add(new int[] {0, numused});
+        while (boxes.size() < numcolors) {
+            int best = -1;
+            int bestchannel = 0;
+            double bestscore = 0;
+            for (int k = 0; (k < boxes.size()); k++) {
+                int[] box = boxes.get(k);
+                if (box[1] - box[0] < 2) continue;
+                long count = 0;
+                for (int i = box[0]; (i < box[1]); i++) count += weight[order[i]];
+                for (int c = 0; (c < 3); c++) {
+                    double min = 255, max = 0;
+                    for (int i = box[0]; (i < box[1]); i++) {
+                        min = Math.min(min, mean[order[i]][c]);
+                        max = Math.max(max, mean[order[i]][c]);
+                    }
+                    double score = count*(max - min);
+                    if (score > bestscore) {
+                        bestscore = score;
+                        best = k;
+                        bestchannel = c;
+                    }
+                }
+            }
+            if (best < 0) break;
+            int[] box = boxes.get(best);
+            long[] keys = new long[box[1] - box[0]];
+            for (int i = box[0]; (i < box[1]); i++) {
+                keys[i - box[0]] = (Math.round(mean[order[i]][bestchannel]*256) << 20) | order[i];
+            }
+            Arrays.sort(keys);
+            long total = 0;
+            for (int i = 0; (i < keys.length); i++) {
+                order[box[0] + i] = (int)(keys[i] & 0xfffff);
+                total += weight[order[box[0] + i]];
+            }
+            long half = 0;
+            int split = box[0] + 1;
+            while ((split < box[1] - 1) && (2*(half + weight[order[split - 1]]) < total)) {
+                half += weight[order[split - 1]];
+                split++;
+            }
+            boxes.set(best, new int[] {box[0], split});
+            boxes.add(new int[] {split, box[1]});
+        }
+        double[][] centers = new double[boxes.size()][3];
+        int[] assignment = new int[numused];
+        for (int k = 0; (k < boxes.size()); k++) {
+            int[] box = boxes.get(k);
+            for (int i = box[0]; (i < box[1]); i++) assignment[order[i]] = k;
+        }
+
+        for (int round = 0; (round <= kmeansrounds); round++) {
+            long[] clustercount = new long[centers.length];
+            double[][] sum = new double[centers.length][3];
+            for (int i = 0; (i < numused); i++) {
+                clustercount[assignment[i]] += weight[i];
+                for (int c = 0; (c < 3); c++) sum[assignment[i]][c] += weight[i]*binlab[i][c];
+            }
+            for (int k = 0; (k < centers.length); k++) {
+                for (int c = 0; (c < 3); c++) {
+                    centers[k][c] = (clustercount[k] == 0) ? Double.NaN : sum[k][c]/clustercount[k];
+                }
+            }
+            if (round == kmeansrounds) break;
+            for (int i = 0; (i < numused); i++) {
+                double nearest = Double.POSITIVE_INFINITY;
+                for (int k = 0; (k < centers.length); k++) {
+                    double d = CIELab.deltaE(binlab[i], centers[k]);
+                    if (d < nearest) {
+                        nearest = d;
+                        assignment[i] = k;
+                    }
+                }
+            }
+        }
+
+        long[] clustercount = new long[centers.length];
+        double[][] rgbsum = new double[centers.length][3];
+        for (int i = 0; (i < numused); i++) {
+            clustercount[assignment[i]] += weight[i];
+            for (int c = 0; (c < 3); c++) rgbsum[assignment[i]][c] += histogram[4*bins[i] + 1 + c];
+        }
+        // Most pixels first, empty clusters dropped
+        Integer[] byshare = new Integer[centers.length];
+        for (int k = 0; (k < centers.length); k++) byshare[k] = k;
+        Arrays.sort(byshare, (k1, k2) -> Long.compare(clustercount[k2], clustercount[k1]));
+        int numkept = 0;
+        while ((numkept < centers.length) && (clustercount[byshare[numkept]] > 0)) numkept++;
+        counts = new long[numkept];
+        rgb = new int[numkept];
+        lab = new double[numkept][];
+        for (int j = 0; (j < numkept); j++) {
+            int k = byshare[j];
+            counts[j] = clustercount[k];
+            double[] m = new double[3];
+            for (int c = 0; (c < 3); c++) m[c] = rgbsum[k][c]/clustercount[k];
+            rgb[j] = toRGB(m);
+            lab[j] = centers[k];
+        }
+    }
+
+    static int toRGB(double[] mean) {
+        int rgb = 0;
+        for (int c = 0; (c < 3); c++) {
+            rgb = (rgb << 8) | (int)Math.max(0, Math.min(255, Math.round(mean[c])));
+        }
+        return rgb;
+    }
+
+    /** Finds a recipe per palette color, one color per task. */
+    RecipeSolver.Solution[] solve(final RecipeSolver solver) throws ExecutionException {
+        final RecipeSolver.Solution[] solutions = new RecipeSolver.Solution[lab.length];
+        BatchMixer.forEachChunk(lab.length, 1, options.numthreads, (first, count) -> {
+            solutions[first] = solver.solve(lab[first]);
+        });
+        return solutions;
+    }
+
+    void print(Path image, RecipeSolver.Solution[] solutions) {
+        long total = 0;
+        for (int k = 0; (k < counts.length); k++) total += counts[k];
+        System.out.println("# "+ counts.length +" colors of "+ image.getFileName() +", "+ width +"x"+ height +" with "
+                + total +" opaque pixels; recipes of up to "+ maxdyes +" of "+ options.dyes.length +" dyes; "
+                + options.describe());
+        System.out.println("# share, design sRGB, L* a* b*, deltaE of the recipe, dye number:amount (name)");
+        for (int k = 0; (k < counts.length); k++) {
+            RecipeSolver.Solution solution = solutions[k];
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%3d %5.1f%%  #%06x %7.2f %7.2f %7.2f  %5.2f ",
+                    k + 1, 100.0*counts[k]/total, rgb[k], lab[k][0], lab[k][1], lab[k][2], solution.deltae));
+            for (int s = 0; (s < solution.dyeindices.length); s++) {
+                Dye dye = options.dyes[solution.dyeindices[s]];
+                line.append(String.format(Locale.ROOT, " %d:%.3f (%s)", dye.getNumber(), solution.amounts[s], dye.getName()));
+            }
+            if (solution.outside > 0) {
+                line.append(String.format(Locale.ROOT, "  [outside the gamut by %.2f, not searched]", solution.outside));
+            }
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package dev.salusa.dyemixer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.HasNumber;
+import dev.salusa.dyemixer.DyeMixer.Light;
+import dev.salusa.dyemixer.DyeMixer.NumberFinder;
+import dev.salusa.dyemixer.DyeMixer.QuickSort;
+import dev.salusa.dyemixer.DyeMixer.Spectrum;
+
+/**
+ * The lights, canvases and dyes available to the mixer, sorted by name.
+ *
+ * The build stores a snapshot of the fully built library next to data.txt (see
+ * LibrarySnapshot). Loading prefers it and only falls back to generating the reference
+ * entities and parsing data.txt when it is missing or unreadable.
+ */
+class Library {
+
+    Vector<Light> availablelights = new Vector<Light>();
+    Vector<Canvas> availablecanvases = new Vector<Canvas>();
+    Vector<Dye> availabledyes = new Vector<Dye>();
+    int defaultlightnumber = 1;
+    int defaultcanvasnumber = 1;
+    int defaultdyenumber = 1;
+
+    boolean failed = false;
+    String reason = "no reason";
+    /** Every problem found while loading, each naming its line and file. */
+    Vector<String> errors = new Vector<String>();
+    /** Response curves of calibration records, by dye number, not yet given to a dye. */
+    Map<Integer, ResponseCurve> calibrations = new TreeMap<Integer, ResponseCurve>();
+
+    static Library load() {
+        Library library = LibrarySnapshot.readResource();
+        if (library == null) {
+            library = build("data.txt");
+        }
+        return library;
+    }
+
+    /** Generates the reference entities, parses dataname and sorts the result. */
+    static Library build(String dataname) {
+        Library library = new Library();
+        library.addGenerated();
+        library.parse(dataname);
+        library.applyCalibrations(library.availabledyes, dataname);
+        library.failUncalibrated(dataname);
+        if (!library.failed) {
+            library.sort();
+        }
+        return library;
+    }
+
+    void addGenerated() {
+        Canvas[] generatedcanvases = {
+                new Canvas(),
+        };
+
+        Dye[] generateddyes = {
+                Dye.blank,
+                Dye.black
+        };
+
+        // Blackbody reference lights, in kelvins
+        final double[] temperatures = {
+                800, 900, 1000, 1100, 1200, 1300, 1400, 1500, 1600, 1700, 1800, 1900, 2000, 2100,
+                2200, 2300, 2400, 2500, 2600, 2700, 2800, 2900, 3000, 3100, 3200, 3300, 3400, 3500,
+                3600, 3700, 3800, 3900, 4000, 4100, 4200, 4300, 4400, 4500, 4600, 4700, 4800, 4900,
+                5000, 5100, 5200, 5300, 5400, 5500, 5750, 6000, 6250, 6500, 6750, 7000, 7250, 7500,
+                7750, 8000, 8250, 8500, 8750, 9000, 9250, 9500, 9750, 10000, 10500, 11000, 11500,
+                12000, 12500, 13000, 14000, 15000, 17500, 20000, 25000, 30000, 35000, 40000, 60000,
+                100000
+        };
+        final Light[] blackbodies = new Light[temperatures.length];
+        IntStream.range(0, temperatures.length).parallel().forEach(t -> blackbodies[t] = new Light(temperatures[t]));
+
+        availablelights.addElement(Light.d65());
+        for (int t = 0; (t < blackbodies.length); t++) {
+            availablelights.addElement(blackbodies[t]);
+        }
+        availablelights.addElement(Light.whitef);
+        availablelights.addElement(Light.whitewl);
+
+        for (int t = 0; (t < generatedcanvases.length); t++) {
+            availablecanvases.addElement(generatedcanvases[t]);
+        }
+        for (int t = 0; (t < generateddyes.length); t++) {
+            availabledyes.addElement(generateddyes[t]);
+        }
+    }
+
+    void parse(String dataname) {
+        InputStream stream = Library.class.getClassLoader().getResourceAsStream(dataname);
+        if (stream == null) {
+            fail("Could not read "+ dataname);
+            return;
+        }
+        try {
+            try {
+                parse(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)), dataname);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            fail("Could not read "+ dataname);
+        }
+    }
+
+    /** Records handed to the pool and not yet added; bounds what parse() holds at once. */
+    static final int maxinflight = 64;
+
+    /** A record being materialized on the pool. */
+    static class Build {
+        final LibraryParser.Record record;
+        final CompletableFuture<Object> entity;
+
+        Build(LibraryParser.Record record, CompletableFuture<Object> entity) {
+            this.record = record;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Adds the records of a library file; problems are collected in errors.
+     *
+     * The calling thread only tokenizes. Each record is handed to the common fork/join pool to be
+     * resampled and normalized while the parser moves on, and the results are added in file
+     * order so numbering, defaults and duplicate checks behave as if built one at a time. At most
+     * maxinflight records are copied and building at once: past that, the oldest is waited for
+     * and added before the parser goes on.
+     */
+    void parse(Reader reader, String sourcename) throws IOException {
+        LibraryParser parser = new LibraryParser(reader, sourcename);
+        long[] parsenanos = new long[LibraryParser.typenames.length];
+        int[] parsecounts = new int[LibraryParser.typenames.length];
+        Vector<String> parseerrors = parser.getErrors();
+        int numreported = 0;
+        ArrayDeque<Build> builds = new ArrayDeque<Build>();
+        long materializestart = System.nanoTime();
+        for (;;) {
+            long entitystart = System.nanoTime();
+            LibraryParser.Record record = parser.next();
+            while (numreported < parseerrors.size()) {
+                fail(parseerrors.elementAt(numreported++));
+            }
+            if (record == null) break;
+            final LibraryParser.Record copy = record.copy();
+            builds.addLast(new Build(copy, CompletableFuture.supplyAsync(() -> materialize(copy),
+                    ForkJoinPool.commonPool())));
+            parsenanos[record.type] += System.nanoTime() - entitystart;
+            parsecounts[record.type]++;
+            if (builds.size() >= maxinflight) add(builds.removeFirst(), sourcename);
+        }
+        for (int t = LibraryParser.typelight; (t < LibraryParser.typenames.length); t++) {
+            Metrics.recordParse(LibraryParser.typenames[t], parsecounts[t], parsenanos[t]);
+        }
+        while (!builds.isEmpty()) add(builds.removeFirst(), sourcename);
+        Metrics.record("materialize", System.nanoTime() - materializestart);
+    }
+
+    /** Waits for build and adds what it built. */
+    void add(Build build, String sourcename) {
+        try {
+            add(build.record, build.entity.join(), sourcename);
+        } catch (CompletionException e) {
+            fail("Could not build the "+ LibraryParser.typenames[build.record.type] +" starting in line "
+                    + build.record.line +" in "+ sourcename +": "+ e.getCause());
+        }
+    }
+
+    /** Builds the light, canvas or dye a record describes. Runs on the pool. */
+    static Object materialize(LibraryParser.Record record) {
+        if (record.type == LibraryParser.typecalibration) {
+            return record.toResponseCurve();
+        }
+        Spectrum newspectrum = record.toSpectrum();
+        if (record.type == LibraryParser.typecanvas) {
+            Canvas newcanvas = new Canvas(record.category+", "+record.name, newspectrum);
+            newcanvas.setNumber(record.number);
+            return newcanvas;
+        } else if (record.type == LibraryParser.typedye) {
+            newspectrum.clipNegatives();
+            newspectrum.normalizeAbsorbance();
+            Dye newdye = new Dye(record.name, record.ci, record.category, record.mixture, newspectrum);
+            newdye.setNumber(record.number);
+            newdye.response = record.toResponseCurve();
+            newdye.cost = record.cost;
+            newdye.stock = record.stock;
+            return newdye;
+        }
+        Light newlight = new Light(record.category+", "+record.name, newspectrum);
+        newlight.setNumber(record.number);
+        return newlight;
+    }
+
+    /** Adds what materialize built from a record, unless its number is taken. */
+    void add(LibraryParser.Record record, Object entity, String sourcename) {
+        if (record.type == LibraryParser.typecalibration) {
+            if (calibrations.put(record.number, (ResponseCurve)entity) != null) {
+                fail("Duplicate calibration of dye "+ record.number +" in line "+ record.line +" in "+ sourcename);
+            }
+            return;
+        }
+        Vector<? extends HasNumber> available = (record.type == LibraryParser.typelight) ? availablelights
+                : (record.type == LibraryParser.typecanvas) ? availablecanvases : availabledyes;
+        if (NumberFinder.findIndex(available, record.number) >= 0) {
+            fail("Duplicate number "+ record.number +" in the "+ LibraryParser.typenames[record.type]
+                    +" starting in line "+ record.line +" in "+ sourcename);
+            return;
+        }
+        if (record.useasdefault) {
+            if (record.type == LibraryParser.typelight) defaultlightnumber = record.number;
+            else if (record.type == LibraryParser.typecanvas) defaultcanvasnumber = record.number;
+            else defaultdyenumber = record.number;
+        }
+        if (record.type == LibraryParser.typelight) availablelights.addElement((Light)entity);
+        else if (record.type == LibraryParser.typecanvas) availablecanvases.addElement((Canvas)entity);
+        else availabledyes.addElement((Dye)entity);
+    }
+
+    /**
+     * Gives the dyes in dyes that have a calibration its response curve, replacing them with
+     * calibrated copies so a shared library is left alone. Calibrations for dyes that aren't
+     * there are kept for a later call.
+     */
+    void applyCalibrations(Vector<Dye> dyes, String sourcename) {
+        for (Iterator<Map.Entry<Integer, ResponseCurve>> i = calibrations.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, ResponseCurve> calibration = i.next();
+            int index = NumberFinder.findIndex(dyes, calibration.getKey());
+            if (index >= 0) {
+                Dye dye = dyes.elementAt(index);
+                if (dye.response != null) {
+                    fail("Dye "+ dye.getNumber() +" already has a response; calibration in "+ sourcename +" ignored");
+                } else {
+                    dyes.setElementAt(dye.withResponse(calibration.getValue()), index);
+                }
+                i.remove();
+            }
+        }
+    }
+
+    void failUncalibrated(String sourcename) {
+        for (Integer number : calibrations.keySet()) {
+            fail("No dye "+ number +" for the calibration in "+ sourcename);
+        }
+        calibrations.clear();
+    }
+
+    /** Records a problem; the first one is shown as the reason, with a count of the others. */
+    void fail(String problem) {
+        errors.addElement(problem);
+        failed = true;
+        reason = (errors.size() == 1) ? problem : errors.elementAt(0) +" (and "+ (errors.size() - 1) +" more)";
+    }
+
+    void sort() {
+        Metrics.Timer timer = Metrics.startSort("lights", availablelights.size());
+        QuickSort.sort(availablelights);
+        timer.stop();
+        timer = Metrics.startSort("canvases", availablecanvases.size());
+        QuickSort.sort(availablecanvases);
+        timer.stop();
+        timer = Metrics.startSort("dyes", availabledyes.size());
+        QuickSort.sort(availabledyes);
+        timer.stop();
+    }
+}
@@ -0,0 +1,377 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.util.Vector;
+
+import dev.salusa.dyemixer.DyeMixer.EvenlySampledSpectrum;
+import dev.salusa.dyemixer.DyeMixer.Spectrum;
+import dev.salusa.dyemixer.DyeMixer.UnevenlySampledSpectrum;
+
+/**
+ * A pull parser for spectral library files in the data.txt format:
+ *
+ *   light;  name = "D50"; category = "CIE"; number = 3; default;
+ *           start = 360; step = 5; evendata = 0.1, 0.2, ...;
+ *   canvas; ...; unevendata = 400, 0.1, 410, 0.2, ...;
+ *   dye;    ...; ci = "..."; mixture = "pure"; response = 1, 0.9, 2, 1.6;
+ *           cost = 0.08; stock = 250;
+ *   calibration; number = 12; response = 1, 0.9, 2, 1.6;
+ *
+ * The cost of a dye is per unit of amount and its stock in units of amount; see CostOptimizer.
+ * The response key gives a dye a response curve (see ResponseCurve). A calibration record gives
+ * one to the dye with that number, which may come from another file.
+ * next() returns one record at a time. The record and its sample buffer are reused by the
+ * following call, so a file of any length is parsed in memory bounded by its largest spectrum.
+ *
+ * Errors don't stop the parse: each is added to errors with its line number, the rest of the
+ * statement is skipped and a record with errors in it is not returned. A "break" keyword ends
+ * the file early.
+ */
+class LibraryParser {
+
+    static final int typelight = 1;
+    static final int typecanvas = 2;
+    static final int typedye = 3;
+    static final int typecalibration = 4;
+    static final String[] typenames = {"none", "light", "canvas", "dye", "calibration"};
+
+    static final int spectrumtypenone = 0;
+    static final int spectrumtypeeven = 1;
+    static final int spectrumtypeuneven = 2;
+
+    static final int maxnumspectrumsamples = 65536;
+
+    /** One light, canvas or dye as written in the file; see next(). */
+    static class Record {
+        int type;
+        int line;
+        String name;
+        String category;
+        String ci;
+        String mixture;
+        double cost;
+        double stock;
+        int number;
+        boolean useasdefault;
+        int spectrumtype;
+        double spectrumstart;
+        double spectrumstep;
+        double[] samples = new double[512];
+        int numsamples;
+        /** Calibration pairs of a response curve, or none. */
+        double[] response = new double[16];
+        int numresponse;
+
+        void reset(int type, int line) {
+            this.type = type;
+            this.line = line;
+            number = 0;
+            category = "?";
+            name = "?";
+            mixture = "?";
+            ci = "?";
+            cost = Double.NaN;
+            stock = Double.POSITIVE_INFINITY;
+            spectrumstart = 350;
+            spectrumstep = 5;
+            numsamples = 0;
+            numresponse = 0;
+            spectrumtype = spectrumtypenone;
+            useasdefault = false;
+        }
+
+        /** Returns a copy that the next call to next() leaves alone. */
+        Record copy() {
+            Record copy = new Record();
+            copy.type = type;
+            copy.line = line;
+            copy.name = name;
+            copy.category = category;
+            copy.ci = ci;
+            copy.mixture = mixture;
+            copy.cost = cost;
+            copy.stock = stock;
+            copy.number = number;
+            copy.useasdefault = useasdefault;
+            copy.spectrumtype = spectrumtype;
+            copy.spectrumstart = spectrumstart;
+            copy.spectrumstep = spectrumstep;
+            copy.samples = new double[numsamples];
+            System.arraycopy(samples, 0, copy.samples, 0, numsamples);
+            copy.numsamples = numsamples;
+            copy.response = new double[numresponse];
+            System.arraycopy(response, 0, copy.response, 0, numresponse);
+            copy.numresponse = numresponse;
+            return copy;
+        }
+
+        /** Returns a new spectrum holding a copy of the samples. */
+        Spectrum toSpectrum() {
+            double[] copy = new double[numsamples];
+            System.arraycopy(samples, 0, copy, 0, numsamples);
+            if (spectrumtype == spectrumtypeeven) {
+                return new EvenlySampledSpectrum(copy, spectrumstart, spectrumstep);
+            }
+            return new UnevenlySampledSpectrum(copy);
+        }
+
+        /** Returns the compiled response curve, or null if there is none. */
+        ResponseCurve toResponseCurve() {
+            if (numresponse == 0) return null;
+            double[] amounts = new double[numresponse/2];
+            double[] strengths = new double[numresponse/2];
+            for (int t = 0; (t < amounts.length); t++) {
+                amounts[t] = response[2*t];
+                strengths[t] = response[2*t+1];
+            }
+            return new ResponseCurve(amounts, strengths);
+        }
+    }
+
+    final StreamTokenizer tokenizer;
+    final String sourcename;
+    final Record record = new Record();
+    final Vector<String> errors = new Vector<String>();
+    int ttype;
+    int listlength;
+    boolean recordfailed;
+    boolean finished;
+
+    LibraryParser(Reader reader, String sourcename) throws IOException {
+        this.sourcename = sourcename;
+        tokenizer = new StreamTokenizer(reader);
+        tokenizer.slashSlashComments(true);
+        tokenizer.slashStarComments(true);
+        ttype = tokenizer.nextToken();
+    }
+
+    /** The problems found so far, as strings naming the line and the source. */
+    Vector<String> getErrors() {
+        return errors;
+    }
+
+    void error(String message) {
+        error(message, tokenizer.lineno());
+    }
+
+    void error(String message, int line) {
+        errors.addElement(message +" in line "+ line +" in "+ sourcename);
+    }
+
+    boolean isWord(String word) {
+        return (ttype == StreamTokenizer.TT_WORD) && tokenizer.sval.equals(word);
+    }
+
+    boolean isRecordStart() {
+        return isWord("light") || isWord("canvas") || isWord("dye") || isWord("calibration");
+    }
+
+    boolean isEnd() {
+        return (ttype == StreamTokenizer.TT_EOF) || isWord("break");
+    }
+
+    /** Skips past the next ";" so parsing can resume at the following statement or record. */
+    void skipStatement() throws IOException {
+        while ((ttype != ';') && !isEnd() && !isRecordStart()) {
+            ttype = tokenizer.nextToken();
+        }
+        if (ttype == ';') ttype = tokenizer.nextToken();
+    }
+
+    /** Reports an error for the current statement and skips the rest of it. */
+    void fail(String message) throws IOException {
+        error(message);
+        recordfailed = true;
+        skipStatement();
+    }
+
+    boolean expect(int expected, String message) throws IOException {
+        ttype = tokenizer.nextToken();
+        if (ttype != expected) {
+            fail(message);
+            return false;
+        }
+        return true;
+    }
+
+    /** Parses "= value;" after a key; returns null on error. */
+    String stringValue(String what) throws IOException {
+        if (!expect('=', "Expecting \"=\"")) return null;
+        if (!expect('"', "Expecting "+ what +" in double quotes")) return null;
+        String value = tokenizer.sval;
+        if (!expect(';', "Expecting \";\"")) return null;
+        ttype = tokenizer.nextToken();
+        return value;
+    }
+
+    /** Parses "= number;" after a key; returns NaN on error. */
+    double numberValue() throws IOException {
+        if (!expect('=', "Expecting \"=\"")) return Double.NaN;
+        if (!expect(StreamTokenizer.TT_NUMBER, "Expecting numerical value")) return Double.NaN;
+        double value = tokenizer.nval;
+        if (!expect(';', "Expecting \";\"")) return Double.NaN;
+        ttype = tokenizer.nextToken();
+        return value;
+    }
+
+    /**
+     * Parses "= n, n, ..., n;" into buffer, or a bigger copy of it that is returned. The number
+     * of values is left in listlength. Returns null on error.
+     */
+    double[] numberList(double[] buffer) throws IOException {
+        if (!expect('=', "Expecting \"=\"")) return null;
+        listlength = 0;
+        for (;;) {
+            ttype = tokenizer.nextToken();
+            if (ttype == ';') break;
+            if (ttype != StreamTokenizer.TT_NUMBER) {
+                fail("Expecting numerical value");
+                return null;
+            }
+            if (listlength == buffer.length) {
+                if (listlength == maxnumspectrumsamples) {
+                    fail("More than "+ maxnumspectrumsamples +" values");
+                    return null;
+                }
+                double[] grown = new double[Math.min(2*buffer.length, maxnumspectrumsamples)];
+                System.arraycopy(buffer, 0, grown, 0, listlength);
+                buffer = grown;
+            }
+            buffer[listlength++] = tokenizer.nval;
+            ttype = tokenizer.nextToken();
+            if (ttype == ';') break;
+            if (ttype != ',') {
+                fail("Expecting \",\" or \";\"");
+                return null;
+            }
+        }
+        ttype = tokenizer.nextToken();
+        return buffer;
+    }
+
+    /** Parses the samples of a spectrum into the record; returns false on error. */
+    boolean sampleList() throws IOException {
+        if (record.spectrumtype != spectrumtypenone) {
+            fail("Duplicate spectrum");
+            return false;
+        }
+        double[] samples = numberList(record.samples);
+        if (samples == null) return false;
+        record.samples = samples;
+        record.numsamples = listlength;
+        return true;
+    }
+
+    /** Parses amount, strength pairs into the record response. */
+    void responseList() throws IOException {
+        int line = tokenizer.lineno();
+        double[] response = numberList(record.response);
+        if (response == null) return;
+        record.response = response;
+        record.numresponse = listlength;
+        if (((listlength % 2) != 0) || (listlength == 0)) {
+            error("Response must be pairs of amount and strength", line);
+            recordfailed = true;
+            return;
+        }
+        for (int t = 0; (t < listlength); t += 2) {
+            if ((response[t] <= 0) || ((t > 0) && (response[t] <= response[t-2]))) {
+                error("Response amounts must be positive and increasing", line);
+                recordfailed = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the next valid record, or null at the end of the input. The returned record is
+     * overwritten by the next call.
+     */
+    Record next() throws IOException {
+        while (!finished) {
+            // Find the start of a record
+            if (isEnd()) {
+                finished = true;
+                break;
+            }
+            if (!isRecordStart()) {
+                error("Expecting one of {\"canvas\", \"light\", \"dye\", \"calibration\"}");
+                skipStatement();
+                continue;
+            }
+            int type = isWord("light") ? typelight : isWord("canvas") ? typecanvas
+                    : isWord("dye") ? typedye : typecalibration;
+            record.reset(type, tokenizer.lineno());
+            recordfailed = false;
+            if (expect(';', "Expecting \";\"")) {
+                ttype = tokenizer.nextToken();
+            }
+            // Read its statements up to the next record
+            while (!isRecordStart() && !isEnd()) {
+                if (isWord("name")) {
+                    String value = stringValue("name");
+                    if (value != null) record.name = value;
+                } else if (isWord("category")) {
+                    String value = stringValue("category name");
+                    if (value != null) record.category = value;
+                } else if (isWord("mixture")) {
+                    String value = stringValue("either \"mixture\" or \"pure\"");
+                    if (value != null) record.mixture = value;
+                } else if (isWord("ci")) {
+                    String value = stringValue("color index (c.i.)");
+                    if (value != null) record.ci = value;
+                } else if (isWord("cost") && (type == typedye)) {
+                    double value = numberValue();
+                    if (!Double.isNaN(value)) record.cost = value;
+                } else if (isWord("stock") && (type == typedye)) {
+                    double value = numberValue();
+                    if (!Double.isNaN(value)) record.stock = value;
+                } else if (isWord("number")) {
+                    double value = numberValue();
+                    if (!Double.isNaN(value)) record.number = (int)value;
+                } else if (isWord("start")) {
+                    double value = numberValue();
+                    if (!Double.isNaN(value)) record.spectrumstart = value;
+                } else if (isWord("step")) {
+                    double value = numberValue();
+                    if (!Double.isNaN(value)) record.spectrumstep = value;
+                } else if (isWord("response") && ((type == typedye) || (type == typecalibration))) {
+                    responseList();
+                } else if (isWord("evendata")) {
+                    if (sampleList()) record.spectrumtype = spectrumtypeeven;
+                } else if (isWord("unevendata")) {
+                    int line = tokenizer.lineno();
+                    if (sampleList()) {
+                        if ((record.numsamples % 2) != 0) {
+                            error("Unevendata must have even length", line);
+                            recordfailed = true;
+                        }
+                        record.spectrumtype = spectrumtypeuneven;
+                    }
+                } else if (isWord("default")) {
+                    if (expect(';', "Expecting \";\"")) {
+                        record.useasdefault = true;
+                        ttype = tokenizer.nextToken();
+                    }
+                } else {
+                    ttype = tokenizer.nextToken(); // it's an unknown token, ignore.
+                }
+            }
+            if (recordfailed) {
+                // Already reported
+            } else if (type == typecalibration) {
+                if (record.numresponse == 0) {
+                    error("Missing response for the calibration", record.line);
+                    recordfailed = true;
+                }
+            } else if (record.spectrumtype == spectrumtypenone) {
+                error("Missing spectral data for the "+ typenames[type], record.line);
+                recordfailed = true;
+            }
+            if (!recordfailed) return record;
+        }
+        return null;
+    }
+}
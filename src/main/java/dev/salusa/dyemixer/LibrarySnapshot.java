@@ -0,0 +1,254 @@
+package dev.salusa.dyemixer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.EvenlySampledSpectrum;
+import dev.salusa.dyemixer.DyeMixer.Light;
+import dev.salusa.dyemixer.DyeMixer.Spectrum;
+import dev.salusa.dyemixer.DyeMixer.UnevenlySampledSpectrum;
+
+/**
+ * A binary image of a fully built, sorted Library.
+ *
+ * Lights are stored with their resampled power spectrum and normalization scales and dyes and
+ * canvases with their final absorbance, so reading a snapshot skips tokenizing data.txt,
+ * generating the blackbody lights, normalizing and sorting. The build writes one for the
+ * bundled data.txt with "java dev.salusa.dyemixer.LibrarySnapshot library.bin".
+ *
+ * Layout (big-endian): magic, version, the three default numbers, then the lights, canvases and
+ * dyes, each list prefixed with its length. Strings are an int byte count and UTF-8 bytes.
+ * Since version 2 each dye ends with the calibration points of its response curve, if any,
+ * since version 3 followed by its cost and stock.
+ * -Ddyemixer.snapshot=false ignores the bundled snapshot.
+ */
+class LibrarySnapshot {
+
+    static final int magic = 0x444d4c42; // "DMLB"
+    static final int version = 3;
+    static final String resourcename = "library.bin";
+
+    static final int spectrumeven = 1;
+    static final int spectrumuneven = 2;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: LibrarySnapshot <output file>");
+            System.exit(2);
+        }
+        Library library = Library.build("data.txt");
+        if (library.failed) {
+            System.err.println(library.reason);
+            System.exit(1);
+        }
+        OutputStream out = new FileOutputStream(args[0]);
+        try {
+            write(library, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Returns the bundled snapshot, or null if there is none or it can't be read. */
+    static Library readResource() {
+        if (System.getProperty("dyemixer.snapshot", "true").equals("false")) return null;
+        InputStream stream = LibrarySnapshot.class.getClassLoader().getResourceAsStream(resourcename);
+        if (stream == null) return null;
+        try {
+            try {
+                return read(ByteBuffer.wrap(stream.readAllBytes()));
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static Library read(ByteBuffer in) throws IOException {
+        try {
+            if (in.getInt() != magic) {
+                throw new IOException("Not a library snapshot");
+            }
+            int fileversion = in.getInt();
+            if ((fileversion < 1) || (fileversion > version)) {
+                throw new IOException("Unsupported library snapshot version "+ fileversion);
+            }
+            Library library = new Library();
+            library.defaultlightnumber = in.getInt();
+            library.defaultcanvasnumber = in.getInt();
+            library.defaultdyenumber = in.getInt();
+            int numlights = in.getInt();
+            library.availablelights.ensureCapacity(numlights);
+            for (int t = 0; (t < numlights); t++) {
+                Light light = new Light();
+                light.setNumber(in.getInt());
+                light.setName(getString(in));
+                light.xscale = in.getDouble();
+                light.yscale = in.getDouble();
+                light.zscale = in.getDouble();
+                light.powerspectrum = new double[in.getInt()];
+                in.asDoubleBuffer().get(light.powerspectrum);
+                in.position(in.position() + light.powerspectrum.length*8);
+                library.availablelights.addElement(light);
+            }
+            int numcanvases = in.getInt();
+            library.availablecanvases.ensureCapacity(numcanvases);
+            for (int t = 0; (t < numcanvases); t++) {
+                int number = in.getInt();
+                String name = getString(in);
+                library.availablecanvases.addElement(Canvas.fromAbsorbance(name, getSpectrum(in), number));
+            }
+            int numdyes = in.getInt();
+            library.availabledyes.ensureCapacity(numdyes);
+            for (int t = 0; (t < numdyes); t++) {
+                int number = in.getInt();
+                String name = getString(in);
+                String ci = getString(in);
+                String family = getString(in);
+                String mixture = getString(in);
+                Dye dye = new Dye(name, ci, family, mixture, getSpectrum(in), number);
+                if (fileversion >= 2) {
+                    int numpoints = in.getInt();
+                    if (numpoints > 0) {
+                        double[] amounts = new double[numpoints];
+                        double[] strengths = new double[numpoints];
+                        for (int i = 0; (i < numpoints); i++) {
+                            amounts[i] = in.getDouble();
+                            strengths[i] = in.getDouble();
+                        }
+                        dye.response = new ResponseCurve(amounts, strengths);
+                    }
+                }
+                if (fileversion >= 3) {
+                    dye.cost = in.getDouble();
+                    dye.stock = in.getDouble();
+                }
+                library.availabledyes.addElement(dye);
+            }
+            return library;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated library snapshot");
+        }
+    }
+
+    static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static Spectrum getSpectrum(ByteBuffer in) throws IOException {
+        int type = in.get();
+        if (type == spectrumeven) {
+            double start = in.getDouble();
+            double step = in.getDouble();
+            float[] samples = new float[in.getInt()];
+            in.asFloatBuffer().get(samples);
+            in.position(in.position() + samples.length*4);
+            return new EvenlySampledSpectrum(samples, start, step);
+        } else if (type == spectrumuneven) {
+            UnevenlySampledSpectrum spectrum = new UnevenlySampledSpectrum();
+            int numsamples = in.getInt();
+            for (int t = 0; (t < numsamples); t++) {
+                float wavelen = in.getFloat();
+                spectrum.add(wavelen, in.getFloat());
+            }
+            return spectrum;
+        }
+        throw new IOException("Unknown spectrum type "+ type);
+    }
+
+    static void write(Library library, OutputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeInt(library.defaultlightnumber);
+        out.writeInt(library.defaultcanvasnumber);
+        out.writeInt(library.defaultdyenumber);
+        out.writeInt(library.availablelights.size());
+        for (int t = 0; (t < library.availablelights.size()); t++) {
+            Light light = library.availablelights.elementAt(t);
+            out.writeInt(light.getNumber());
+            putString(out, light.getName());
+            out.writeDouble(light.xscale);
+            out.writeDouble(light.yscale);
+            out.writeDouble(light.zscale);
+            out.writeInt(light.powerspectrum.length);
+            for (int i = 0; (i < light.powerspectrum.length); i++) {
+                out.writeDouble(light.powerspectrum[i]);
+            }
+        }
+        out.writeInt(library.availablecanvases.size());
+        for (int t = 0; (t < library.availablecanvases.size()); t++) {
+            Canvas canvas = library.availablecanvases.elementAt(t);
+            out.writeInt(canvas.getNumber());
+            putString(out, canvas.getName());
+            putSpectrum(out, canvas.absorbancespectrum);
+        }
+        out.writeInt(library.availabledyes.size());
+        for (int t = 0; (t < library.availabledyes.size()); t++) {
+            Dye dye = library.availabledyes.elementAt(t);
+            out.writeInt(dye.getNumber());
+            putString(out, dye.name);
+            putString(out, dye.ci);
+            putString(out, dye.family);
+            putString(out, dye.mixture);
+            putSpectrum(out, dye.absorbancespectrum);
+            if (dye.response == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(dye.response.amounts.length);
+                for (int i = 0; (i < dye.response.amounts.length); i++) {
+                    out.writeDouble(dye.response.amounts[i]);
+                    out.writeDouble(dye.response.strengths[i]);
+                }
+            }
+            out.writeDouble(dye.cost);
+            out.writeDouble(dye.stock);
+        }
+        out.flush();
+        bytes.writeTo(stream);
+    }
+
+    static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void putSpectrum(DataOutputStream out, Spectrum spectrum) throws IOException {
+        if (spectrum instanceof EvenlySampledSpectrum) {
+            EvenlySampledSpectrum even = (EvenlySampledSpectrum)spectrum;
+            out.writeByte(spectrumeven);
+            out.writeDouble(even.start);
+            out.writeDouble(even.step);
+            out.writeInt(even.samples.length);
+            for (int i = 0; (i < even.samples.length); i++) {
+                out.writeFloat(even.samples[i]);
+            }
+        } else if (spectrum instanceof UnevenlySampledSpectrum) {
+            UnevenlySampledSpectrum uneven = (UnevenlySampledSpectrum)spectrum;
+            out.writeByte(spectrumuneven);
+            out.writeInt(uneven.samples.size());
+            for (int i = 0; (i < uneven.samples.size()); i++) {
+                UnevenlySampledSpectrum.SpectrumSample sample =
+                        (UnevenlySampledSpectrum.SpectrumSample)(uneven.samples.elementAt(i));
+                out.writeFloat(sample.wavelen);
+                out.writeFloat(sample.value);
+            }
+        } else {
+            throw new IOException("Can't store spectrum of type "+ spectrum.getClass().getName());
+        }
+    }
+}
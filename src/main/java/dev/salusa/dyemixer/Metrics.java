@@ -0,0 +1,256 @@
+package dev.salusa.dyemixer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/**
+ * In-process metrics and the matching JDK Flight Recorder events.
+ *
+ * Timings are kept as latency histograms with power-of-two microsecond buckets, counts as
+ * counters, and cache statistics as gauges read on demand. Every timing is also emitted as a
+ * JFR event, so a recording (-XX:StartFlightRecording) shows the same data per interaction. The
+ * events are only made while JFR is running, so startup doesn't load it otherwise.
+ *
+ * With -Ddyemixer.metrics.dump=true the histograms are printed to stderr on exit; any other
+ * value is taken as a file name to write them to.
+ */
+class Metrics {
+
+    static final int numbuckets = 32;
+
+    static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    static final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+    static volatile boolean cachestatisticsregistered = false;
+
+    static {
+        String dump = System.getProperty("dyemixer.metrics.dump");
+        boolean dumping = (dump != null) && !dump.equals("false");
+        if (dumping) {
+            final String target = dump;
+            Runtime.getRuntime().addShutdownHook(new Thread("metrics dump") {
+                public void run() {
+                    if (target.equals("true")) {
+                        dump(System.err);
+                    } else {
+                        try (PrintStream out = new PrintStream(new FileOutputStream(target))) {
+                            dump(out);
+                        } catch (IOException e) {
+                            System.err.println("Could not write metrics to "+ target +": "+ e);
+                        }
+                    }
+                }
+            });
+        }
+        if (dumping) registerCacheStatistics();
+    }
+
+    /**
+     * Whether JFR is running. Committing the first event, even with no recording, loads and sets
+     * up most of JFR, so events are only made when it is; the periodic cache statistics event is
+     * registered the first time it is seen running.
+     */
+    static boolean isRecording() {
+        if (!FlightRecorder.isInitialized()) return false;
+        if (!cachestatisticsregistered) registerCacheStatistics();
+        return true;
+    }
+
+    static synchronized void registerCacheStatistics() {
+        if (cachestatisticsregistered) return;
+        cachestatisticsregistered = true;
+        FlightRecorder.addPeriodicEvent(CacheStatisticsEvent.class, new Runnable() {
+            public void run() {
+                for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                    CacheStatisticsEvent event = new CacheStatisticsEvent();
+                    event.gauge = gauge.getKey();
+                    event.value = gauge.getValue().getAsLong();
+                    event.commit();
+                }
+            }
+        });
+    }
+
+    static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    static void record(String name, long nanos) {
+        histogram(name).record(nanos);
+    }
+
+    static void increment(String name, long amount) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+    }
+
+    static void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /** Times one set2ui_* recompute; trigger names the listener that caused it. */
+    static Timer startRecompute(String method, String trigger) {
+        RecomputeEvent event = null;
+        if (isRecording()) {
+            event = new RecomputeEvent();
+            event.method = method;
+            event.trigger = trigger;
+            event.begin();
+        }
+        return new Timer("recompute."+ method, event);
+    }
+
+    static void recordParse(String entitytype, int count, long nanos) {
+        if (isRecording()) {
+            ParseEvent event = new ParseEvent();
+            event.entitytype = entitytype;
+            event.count = count;
+            event.nanos = nanos;
+            event.commit();
+        }
+        record("parse."+ entitytype, nanos);
+        increment("parse."+ entitytype +".count", count);
+    }
+
+    static Timer startSort(String library, int count) {
+        SortEvent event = null;
+        if (isRecording()) {
+            event = new SortEvent();
+            event.library = library;
+            event.count = count;
+            event.begin();
+        }
+        return new Timer("sort."+ library, event);
+    }
+
+    static class Timer {
+        final String name;
+        /** Null when JFR isn't running. */
+        final Event event;
+        final long start = System.nanoTime();
+
+        Timer(String name, Event event) {
+            this.name = name;
+            this.event = event;
+        }
+
+        void stop() {
+            record(name, System.nanoTime() - start);
+            if (event != null) event.commit();
+        }
+    }
+
+    /** Counts of durations in buckets [2^i, 2^(i+1)) microseconds, bucket 0 also holding < 1 us. */
+    static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(numbuckets);
+        final LongAdder count = new LongAdder();
+        final LongAdder totalnanos = new LongAdder();
+        final LongAccumulator maxnanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long micros = nanos/1000;
+            int bucket = (micros <= 1) ? 0 : Math.min(numbuckets-1, 63-Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalnanos.add(nanos);
+            maxnanos.accumulate(nanos);
+        }
+
+        /** Upper bound in microseconds of the bucket holding the given quantile. */
+        long quantileMicros(double quantile) {
+            long total = count.sum();
+            long seen = 0;
+            for (int i = 0; (i < numbuckets); i++) {
+                seen += buckets.get(i);
+                if (seen >= quantile*total) return 1L << (i+1);
+            }
+            return 1L << numbuckets;
+        }
+    }
+
+    static void dump(PrintStream out) {
+        out.println("--- DyeMixer metrics ---");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram h = entry.getValue();
+            long count = h.count.sum();
+            if (count == 0) continue;
+            out.println(entry.getKey() +": n="+ count
+                    +" mean="+ (h.totalnanos.sum()/count/1000) +"us"
+                    +" p50<"+ h.quantileMicros(0.5) +"us"
+                    +" p90<"+ h.quantileMicros(0.9) +"us"
+                    +" p99<"+ h.quantileMicros(0.99) +"us"
+                    +" max="+ (h.maxnanos.get()/1000) +"us");
+            for (int i = 0; (i < numbuckets); i++) {
+                long n = h.buckets.get(i);
+                if (n > 0) out.println("    <"+ (1L << (i+1)) +"us: "+ n);
+            }
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            out.println(entry.getKey() +": "+ entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<String, LongSupplier>(gauges).entrySet()) {
+            out.println(entry.getKey() +": "+ entry.getValue().getAsLong());
+        }
+    }
+
+    @Name("dev.salusa.dyemixer.Recompute")
+    @Label("Swatch Recompute")
+    @Category("DyeMixer")
+    @Description("One set2ui_* method recomputing swatches, and the listener that triggered it")
+    static class RecomputeEvent extends Event {
+        @Label("Method")
+        String method;
+        @Label("Trigger")
+        String trigger;
+    }
+
+    @Name("dev.salusa.dyemixer.Parse")
+    @Label("Library Parse")
+    @Category("DyeMixer")
+    @Description("Time spent parsing and building one type of library entity")
+    static class ParseEvent extends Event {
+        @Label("Entity Type")
+        String entitytype;
+        @Label("Count")
+        int count;
+        @Label("Nanoseconds")
+        long nanos;
+    }
+
+    @Name("dev.salusa.dyemixer.Sort")
+    @Label("Library Sort")
+    @Category("DyeMixer")
+    static class SortEvent extends Event {
+        @Label("Library")
+        String library;
+        @Label("Count")
+        int count;
+    }
+
+    @Name("dev.salusa.dyemixer.CacheStatistics")
+    @Label("Cache Statistics")
+    @Category("DyeMixer")
+    @Period("10 s")
+    static class CacheStatisticsEvent extends Event {
+        @Label("Gauge")
+        String gauge;
+        @Label("Value")
+        long value;
+    }
+}
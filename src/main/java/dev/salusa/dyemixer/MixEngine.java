@@ -0,0 +1,413 @@
+package dev.salusa.dyemixer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * Computes the lights behind the swatches: the adapted illuminant, the illuminant reflected by
+ * the canvas and the canvased light filtered by a set of dyes.
+ *
+ * Canvased and mixed lights are remembered in a bounded LRU cache keyed by the library numbers
+ * of the entities, the adaptation flags and the dye amounts quantized to amountquantum, so a
+ * recurring mix costs one hash lookup. Cached lights are shared and must not be modified.
+ *
+ * Amounts are nominal; a dye's response curve turns them into strengths when mixing. Repeated
+ * dyes are merged by adding their nominal amounts, as both portions go into the same bath.
+ *
+ * The observer and the chromatic adaptation transform used by white adaptation are part of the
+ * flags. Each canvased light keeps its XYZ weights per observer,
+ * so getXYZ() evaluates a mix for several observers with one transmittance and one pass.
+ */
+class MixEngine {
+
+    static final int flaglightwhite = 1;
+    static final int flagcanvaswhite = 2;
+    static final int flagcanvasbright = 4;
+    static final int flagcombinedbright = 8;
+    /** Evaluate with the CIE 1964 10 degree observer instead of the 2 degree one. */
+    static final int flagobserver1964 = 16;
+    /** White adapt with Bradford or CAT02 instead of plain XYZ scaling; at most one is set. */
+    static final int flagbradford = 32;
+    static final int flagcat02 = 64;
+
+    /** Amounts are rounded to this before mixing; the same resolution as the dye sliders. */
+    static final double amountquantum = 0.001;
+
+    static final int defaultcachesize = Integer.getInteger("dyemixer.cache.size", 1024);
+
+    final MixCache cache;
+    /** XYZ weights of canvased lights, keyed like them; the library bounds the number. */
+    final Map<MixKey, double[][]> weightcache = new ConcurrentHashMap<MixKey, double[][]>();
+    /** Gamuts of dye sets, built on demand; see getGamut(). */
+    final Map<GamutHull.Key, GamutHull> gamutcache = new ConcurrentHashMap<GamutHull.Key, GamutHull>();
+
+    MixEngine() {
+        this(defaultcachesize);
+    }
+
+    MixEngine(int cachesize) {
+        cache = new MixCache(cachesize);
+    }
+
+    static long quantize(double amount) {
+        return Math.round(amount/amountquantum);
+    }
+
+    static Observer getObserver(int flags) {
+        return ((flags & flagobserver1964) != 0) ? Observer.cie1964 : Observer.cie1931;
+    }
+
+    static int withObserver(int flags, Observer observer) {
+        return (observer == Observer.cie1964) ? (flags | flagobserver1964) : (flags & ~flagobserver1964);
+    }
+
+    static ChromaticAdaptation getAdaptation(int flags) {
+        if ((flags & flagbradford) != 0) return ChromaticAdaptation.bradford;
+        if ((flags & flagcat02) != 0) return ChromaticAdaptation.cat02;
+        return ChromaticAdaptation.xyzscaling;
+    }
+
+    static int withAdaptation(int flags, ChromaticAdaptation adaptation) {
+        flags &= ~(flagbradford | flagcat02);
+        if (adaptation == ChromaticAdaptation.bradford) flags |= flagbradford;
+        if (adaptation == ChromaticAdaptation.cat02) flags |= flagcat02;
+        return flags;
+    }
+
+    /** Returns a copy of source adapted to white or normalized to full brightness. */
+    Light getLight(Light source, int flags) {
+        Light light = source.getCopy();
+        light.setObserver(getObserver(flags));
+        if ((flags & flaglightwhite) != 0) {
+            light.normalizeWhite(getAdaptation(flags));
+        } else {
+            light.normalize();
+        }
+        return light;
+    }
+
+    Light getCanvasedLight(Light source, Canvas canvas, int flags) {
+        return getMixedLight(source, canvas, flags & ~flagcombinedbright, new Dye[0], new double[0]);
+    }
+
+    /** Returns the canvased light filtered by dyes[t] at amounts[t]. */
+    Light getMixedLight(Light source, Canvas canvas, int flags, Dye[] dyes, double[] amounts) {
+        MixKey key = new MixKey(source, canvas, flags, dyes, amounts);
+        Light mixed = cache.get(key);
+        if (mixed == null) {
+            mixed = computeMixedLight(source, canvas, flags, key.dyes, key.amounts);
+            cache.put(key, mixed);
+        }
+        return mixed;
+    }
+
+    Light computeMixedLight(Light source, Canvas canvas, int flags, Dye[] dyes, long[] amounts) {
+        Light light;
+        if (dyes.length == 0) {
+            light = getLight(source, flags);
+            light.filter(canvas, 1.0);
+            if ((flags & flagcanvaswhite) != 0) {
+                light.normalizeWhite(getAdaptation(flags));
+            }
+            if ((flags & flagcanvasbright) != 0) {
+                light.normalize();
+            }
+        } else {
+            light = getCanvasedLight(source, canvas, flags).getCopy();
+            for (int t = 0; (t < dyes.length); t++) {
+                light.filter(dyes[t], dyes[t].getStrength(amounts[t]*amountquantum));
+            }
+        }
+        if ((flags & flagcombinedbright) != 0) {
+            light.normalize();
+        }
+        return light;
+    }
+
+    /**
+     * Returns the absorbance, per nm from ciestart, that the dyes at the given nominal amounts
+     * add on top of the bare canvas.
+     */
+    double[] getDyeAbsorbance(Canvas canvas, Dye[] dyes, double[] amounts) {
+        double[] absorbance = new double[Light.cieend-Light.ciestart+1];
+        for (int t = 0; (t < dyes.length); t++) {
+            double[] samples = dyes[t].getAbsorbanceSamples();
+            double strength = dyes[t].getStrength(amounts[t]);
+            for (int i = 0; (i < absorbance.length); i++) {
+                absorbance[i] += samples[i]*strength;
+            }
+        }
+        return absorbance;
+    }
+
+    /** Returns the fraction of the light off the bare canvas that is left after the dyes. */
+    double[] getTransmittance(Canvas canvas, Dye[] dyes, double[] amounts) {
+        double[] transmittance = getDyeAbsorbance(canvas, dyes, amounts);
+        for (int i = 0; (i < transmittance.length); i++) {
+            transmittance[i] = Math.pow(10.0, -transmittance[i]);
+        }
+        return transmittance;
+    }
+
+    /**
+     * Returns the scaled XYZ of canvasedlight with the dyes at firstdilution, firstdilution+step,
+     * ... times their amounts, indexed [step][x, y, z]. Without response curves Beer-Lambert
+     * turns the series into powers of one transmittance; otherwise each step is mixed on its own.
+     */
+    double[][] getDilutionSeries(Light canvasedlight, Canvas canvas, Dye[] dyes, double[] amounts,
+                                 double firstdilution, double dilutionstep, int numsteps) {
+        boolean linear = true;
+        for (int t = 0; (t < dyes.length); t++) {
+            if (dyes[t].response != null) linear = false;
+        }
+        if (linear) {
+            return canvasedlight.getFilteredXYZSeries(getDyeAbsorbance(canvas, dyes, amounts),
+                    firstdilution, dilutionstep, numsteps);
+        }
+        return getDilutionSeriesByStep(canvasedlight, canvas, dyes, amounts, firstdilution, dilutionstep, numsteps);
+    }
+
+    double[][] getDilutionSeriesByStep(Light canvasedlight, Canvas canvas, Dye[] dyes, double[] amounts,
+                                       double firstdilution, double dilutionstep, int numsteps) {
+        double[][] xyz = new double[numsteps][];
+        double[] diluted = new double[amounts.length];
+        for (int k = 0; (k < numsteps); k++) {
+            for (int t = 0; (t < amounts.length); t++) {
+                diluted[t] = amounts[t]*(firstdilution + k*dilutionstep);
+            }
+            xyz[k] = canvasedlight.getFilteredXYZSeries(getDyeAbsorbance(canvas, dyes, diluted), 1.0, 0.0, 1)[0];
+        }
+        return xyz;
+    }
+
+    /**
+     * Returns the scaled XYZ of the mix as seen by each of observers, indexed [observer][x, y, z],
+     * the same as getMixedLight(...).getXYZ() with the observer flag set accordingly. The
+     * transmittance of the dyes is computed once and the weights of the canvased lights come
+     * from a cache, so every extra observer costs three multiply-adds per nm. The mixes are not
+     * put in the mix cache.
+     */
+    double[][] getXYZ(Light source, Canvas canvas, int flags, Dye[] dyes, double[] amounts,
+                      Observer[] observers) {
+        double[][][] weights = new double[observers.length][][];
+        for (int o = 0; (o < observers.length); o++) {
+            weights[o] = getWeights(source, canvas, withObserver(flags, observers[o]));
+        }
+        MixKey key = new MixKey(source, canvas, flags, dyes, amounts);
+        double[] nominal = new double[key.amounts.length];
+        for (int t = 0; (t < nominal.length); t++) {
+            nominal[t] = key.amounts[t]*amountquantum;
+        }
+        double[] transmittance = getTransmittance(canvas, key.dyes, nominal);
+        double[][] xyz = new double[observers.length][3];
+        for (int i = 0; (i < transmittance.length); i++) {
+            double f = transmittance[i];
+            for (int o = 0; (o < observers.length); o++) {
+                xyz[o][0] += weights[o][0][i]*f;
+                xyz[o][1] += weights[o][1][i]*f;
+                xyz[o][2] += weights[o][2][i]*f;
+            }
+        }
+        if ((flags & flagcombinedbright) != 0) {
+            for (int o = 0; (o < observers.length); o++) {
+                normalize(xyz[o]);
+            }
+        }
+        return xyz;
+    }
+
+    /** The weights of the canvased light for the observer in flags; see Observer.getWeights(). */
+    double[][] getWeights(Light source, Canvas canvas, int flags) {
+        MixKey key = new MixKey(source, canvas, flags & ~flagcombinedbright, new Dye[0], new double[0]);
+        double[][] weights = weightcache.get(key);
+        if (weights == null) {
+            Light canvasedlight = getCanvasedLight(source, canvas, flags);
+            weights = canvasedlight.getObserver().getWeights(canvasedlight);
+            weightcache.put(key, weights);
+        }
+        return weights;
+    }
+
+    /**
+     * The gamut of recipes of up to maxdyes of dyes, from numsamples sampled with a BatchMixer of
+     * step nm on numthreads threads; built the first time and kept until clear().
+     */
+    GamutHull getGamut(Light source, Canvas canvas, int flags, Dye[] dyes, int maxdyes, double maxamount,
+                       int numsamples, int step, int numthreads) throws ExecutionException {
+        GamutHull.Key key = new GamutHull.Key(source, canvas, flags, dyes, maxdyes, maxamount, numsamples, step);
+        GamutHull gamut = gamutcache.get(key);
+        if (gamut == null) {
+            BatchMixer mixer = new BatchMixer(this, source, canvas, flags, dyes, step);
+            gamut = GamutHull.build(mixer, numsamples, maxdyes, maxamount, GamutHull.defaultseed,
+                    GamutHull.defaultnumdirections, numthreads);
+            gamutcache.put(key, gamut);
+        }
+        return gamut;
+    }
+
+    /** Scales xyz to full brightness, as Light.normalize() does. */
+    static void normalize(double[] xyz) {
+        double[] rgb = ChromaticAdaptation.multiply(Light.xyz2srgb, xyz);
+        double max = Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+        if (max > 0) {
+            for (int t = 0; (t < 3); t++) xyz[t] /= max;
+        }
+    }
+
+    /** Forgets everything computed from the library, e.g. after it was reloaded. */
+    void clear() {
+        cache.clear();
+        weightcache.clear();
+        gamutcache.clear();
+    }
+
+    /**
+     * Identifies a mix. Filtering commutes, so the dyes are sorted by number, repeated dyes are
+     * merged and zero amounts are dropped before hashing; equal mixes entered in a different
+     * order share one cache entry.
+     */
+    static class MixKey {
+        final int lightnumber;
+        final int canvasnumber;
+        final int flags;
+        final int[] dyenumbers;
+        final long[] amounts;
+        final Dye[] dyes;
+        final int hash;
+
+        MixKey(Light light, Canvas canvas, int flags, Dye[] dyes, double[] amounts) {
+            this.lightnumber = light.getNumber();
+            this.canvasnumber = canvas.getNumber();
+            this.flags = flags;
+            Dye[] sorteddyes = dyes.clone();
+            long[] quantized = new long[dyes.length];
+            for (int t = 0; (t < dyes.length); t++) {
+                quantized[t] = quantize(amounts[t]);
+            }
+            // Insertion sort by dye number; mixes have a handful of dyes
+            for (int t = 1; (t < sorteddyes.length); t++) {
+                Dye dye = sorteddyes[t];
+                long amount = quantized[t];
+                int u = t - 1;
+                while ((u >= 0) && (sorteddyes[u].getNumber() > dye.getNumber())) {
+                    sorteddyes[u+1] = sorteddyes[u];
+                    quantized[u+1] = quantized[u];
+                    u--;
+                }
+                sorteddyes[u+1] = dye;
+                quantized[u+1] = amount;
+            }
+            int count = 0;
+            for (int t = 0; (t < sorteddyes.length); t++) {
+                if ((count > 0) && (sorteddyes[count-1].getNumber() == sorteddyes[t].getNumber())) {
+                    quantized[count-1] += quantized[t];
+                } else {
+                    sorteddyes[count] = sorteddyes[t];
+                    quantized[count] = quantized[t];
+                    count++;
+                }
+            }
+            int nonzero = 0;
+            for (int t = 0; (t < count); t++) {
+                if (quantized[t] != 0) {
+                    sorteddyes[nonzero] = sorteddyes[t];
+                    quantized[nonzero] = quantized[t];
+                    nonzero++;
+                }
+            }
+            this.dyes = Arrays.copyOf(sorteddyes, nonzero);
+            this.amounts = Arrays.copyOf(quantized, nonzero);
+            this.dyenumbers = new int[nonzero];
+            for (int t = 0; (t < nonzero); t++) {
+                dyenumbers[t] = this.dyes[t].getNumber();
+            }
+            int h = lightnumber;
+            h = 31*h + canvasnumber;
+            h = 31*h + flags;
+            h = 31*h + Arrays.hashCode(dyenumbers);
+            h = 31*h + Arrays.hashCode(this.amounts);
+            this.hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof MixKey)) return false;
+            MixKey k = (MixKey)o;
+            return (hash == k.hash) && (lightnumber == k.lightnumber) && (canvasnumber == k.canvasnumber)
+                    && (flags == k.flags) && Arrays.equals(dyenumbers, k.dyenumbers)
+                    && Arrays.equals(amounts, k.amounts);
+        }
+    }
+
+    /** A synchronized LRU map that counts hits, misses and evictions. */
+    static class MixCache {
+        final int capacity;
+        final LinkedHashMap<MixKey, Light> map;
+        long hits;
+        long misses;
+        long evictions;
+
+        MixCache(final int capacity) {
+            this.capacity = capacity;
+            map = new LinkedHashMap<MixKey, Light>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<MixKey, Light> eldest) {
+                    if (size() > MixCache.this.capacity) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized Light get(MixKey key) {
+            Light light = map.get(key);
+            if (light == null) misses++; else hits++;
+            return light;
+        }
+
+        synchronized void put(MixKey key, Light light) {
+            if (capacity > 0) map.put(key, light);
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long getHits() {
+            return hits;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+
+        synchronized long getEvictions() {
+            return evictions;
+        }
+
+        synchronized double getHitRate() {
+            long lookups = hits + misses;
+            return (lookups == 0) ? 0.0 : (double)hits/lookups;
+        }
+
+        public synchronized String toString() {
+            return "mix cache: "+ map.size() +"/"+ capacity +" entries, "+ hits +" hits, "+ misses
+                    +" misses, "+ evictions +" evictions, hit rate "+ Math.round(getHitRate()*1000)/10.0 +"%";
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.Light;
+import dev.salusa.dyemixer.DyeMixer.NumberFinder;
+
+/**
+ * The options the mixing tools share: which light, canvas and dyes by library number, the mixing
+ * model, observer and adaptation, and how many threads. The library is the bundled one plus the
+ * user library directory, if there is one, as in the mixer.
+ */
+class MixOptions {
+
+    static final String usage =
+            "[--light n] [--canvas n] [--dyes n,n,...] [--opaque] [--observer 2|10]\n"
+            + "  [--adaptation xyz|bradford|cat02] [--no-white] [--threads n]";
+
+    int lightnumber = Integer.MIN_VALUE;
+    int canvasnumber = Integer.MIN_VALUE;
+    int[] dyenumbers;
+    boolean opaque = false;
+    Observer observer = Observer.cie1931;
+    ChromaticAdaptation adaptation = ChromaticAdaptation.xyzscaling;
+    boolean lightwhite = true;
+    int numthreads = Runtime.getRuntime().availableProcessors();
+
+    Library library;
+    Light light;
+    Canvas canvas;
+    Dye[] dyes;
+
+    /**
+     * Takes the option at args[t] if it is one of these; returns the index of its last argument,
+     * or -1 if it isn't.
+     */
+    int parse(String[] args, int t) {
+        String arg = args[t];
+        boolean hasvalue = (t+1 < args.length);
+        if (arg.equals("--light") && hasvalue) {
+            lightnumber = Integer.parseInt(args[t+1]);
+        } else if (arg.equals("--canvas") && hasvalue) {
+            canvasnumber = Integer.parseInt(args[t+1]);
+        } else if (arg.equals("--dyes") && hasvalue) {
+            String[] numbers = args[t+1].split(",");
+            dyenumbers = new int[numbers.length];
+            for (int u = 0; (u < numbers.length); u++) {
+                dyenumbers[u] = Integer.parseInt(numbers[u].trim());
+            }
+        } else if (arg.equals("--observer") && hasvalue) {
+            if (args[t+1].equals("2")) observer = Observer.cie1931;
+            else if (args[t+1].equals("10")) observer = Observer.cie1964;
+            else throw new IllegalArgumentException("Unknown observer "+ args[t+1]);
+        } else if (arg.equals("--adaptation") && hasvalue) {
+            String name = args[t+1].toLowerCase(Locale.ROOT);
+            if (name.equals("xyz")) adaptation = ChromaticAdaptation.xyzscaling;
+            else if (name.equals("bradford")) adaptation = ChromaticAdaptation.bradford;
+            else if (name.equals("cat02")) adaptation = ChromaticAdaptation.cat02;
+            else throw new IllegalArgumentException("Unknown adaptation "+ args[t+1]);
+        } else if (arg.equals("--threads") && hasvalue) {
+            numthreads = Math.max(1, Integer.parseInt(args[t+1]));
+        } else if (arg.equals("--opaque")) {
+            opaque = true;
+            return t;
+        } else if (arg.equals("--no-white")) {
+            lightwhite = false;
+            return t;
+        } else {
+            return -1;
+        }
+        return t+1;
+    }
+
+    /** Loads the library and looks up the entities; defaults are the library's defaults and all dyes. */
+    void resolve() throws IOException {
+        library = Library.load();
+        if (library.failed) throw new IOException(library.reason);
+        Path dir = UserLibrary.getDefaultDirectory();
+        if (Files.isDirectory(dir)) {
+            library = new UserLibrary(library, dir).getLibrary();
+        }
+        light = find(library.availablelights,
+                (lightnumber == Integer.MIN_VALUE) ? library.defaultlightnumber : lightnumber, "light");
+        canvas = find(library.availablecanvases,
+                (canvasnumber == Integer.MIN_VALUE) ? library.defaultcanvasnumber : canvasnumber, "canvas");
+        if (dyenumbers != null) {
+            dyes = new Dye[dyenumbers.length];
+            for (int t = 0; (t < dyes.length); t++) {
+                dyes[t] = find(library.availabledyes, dyenumbers[t], "dye");
+            }
+        } else {
+            List<Dye> all = new ArrayList<Dye>();
+            for (int t = 0; (t < library.availabledyes.size()); t++) {
+                Dye dye = library.availabledyes.elementAt(t);
+                if (dye.getNumber() != Dye.blank.getNumber()) all.add(dye);
+            }
+            dyes = all.toArray(new Dye[all.size()]);
+        }
+    }
+
+    static <T> T find(Vector<T> entities, int number, String what) throws IOException {
+        int index = NumberFinder.findIndex(entities, number);
+        if (index < 0) throw new IOException("Unknown "+ what +" number "+ number);
+        return entities.elementAt(index);
+    }
+
+    int getFlags() {
+        int flags = lightwhite ? MixEngine.flaglightwhite : 0;
+        flags = MixEngine.withAdaptation(flags, adaptation);
+        return MixEngine.withObserver(flags, observer);
+    }
+
+    MixEngine newEngine() {
+        return opaque ? new KubelkaMunkEngine() : new MixEngine();
+    }
+
+    /** Describes the settings, for the header of a tool's output. */
+    String describe() {
+        return light.getName() +" on "+ canvas.getName() +", "+ (opaque ? "opaque fabric" : "transmissive")
+                +", "+ ((observer == Observer.cie1964) ? "10" : "2") +" degree observer, "+ (lightwhite ? adaptation.getName() +" white adapt" : "no white adapt");
+    }
+}
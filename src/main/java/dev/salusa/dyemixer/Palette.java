@@ -0,0 +1,176 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+import dev.salusa.dyemixer.DyeMixer.Dye;
+
+/**
+ * Picks colors that are far apart among those a set of dyes can make, e.g. the 24 colors of a
+ * product line:
+ *
+ *   dyemixer palette [--colors n] [--samples n] [--max-dyes n] [--max-amount x] [--step nm]
+ *                    [--seed n] [mix options]
+ *
+ * Random recipes of one to max-dyes of the dyes, with amounts spread like the dye sliders, are
+ * mixed by a BatchMixer on all threads and kept as CIELAB. Farthest-point selection then takes,
+ * one at a time, the candidate farthest from everything taken so far, starting from the bare
+ * canvas, which spreads the palette over all that is reachable. Each round is one parallel pass
+ * over the candidates. The chosen recipes are mixed again at 1 nm for the output.
+ *
+ * A seed gives the same palette on any number of threads; see BatchMixer.sample().
+ */
+class Palette {
+
+    int numcolors = 24;
+    int numsamples = 1000000;
+    int maxdyes = 3;
+    double maxamount = DyeMixer.maxdyeamount;
+    int step = 5;
+    long seed = 44;
+    final MixOptions options = new MixOptions();
+
+    /** The candidates: maxdyes (dye, amount) slots and the color of each. */
+    int[] dyeindices;
+    double[] amounts;
+    float[] lab;
+
+    static int run(String[] args) throws IOException {
+        Palette palette = new Palette();
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = palette.options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--colors") && hasvalue) {
+                    palette.numcolors = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--samples") && hasvalue) {
+                    palette.numsamples = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-dyes") && hasvalue) {
+                    palette.maxdyes = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--max-amount") && hasvalue) {
+                    palette.maxamount = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--step") && hasvalue) {
+                    palette.step = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--seed") && hasvalue) {
+                    palette.seed = Long.parseLong(args[++t]);
+                } else {
+                    return usage("Unknown option "+ arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if ((palette.numcolors < 1) || (palette.numsamples < palette.numcolors) || (palette.maxdyes < 1)
+                || (palette.step < 1) || !(palette.maxamount > 0)) {
+            return usage("Out of range");
+        }
+        palette.options.resolve();
+        palette.maxdyes = Math.min(palette.maxdyes, palette.options.dyes.length);
+
+        long start = System.nanoTime();
+        MixEngine engine = palette.options.newEngine();
+        BatchMixer mixer = new BatchMixer(engine, palette.options.light, palette.options.canvas,
+                palette.options.getFlags(), palette.options.dyes, palette.step);
+        try {
+            palette.sample(mixer);
+            long sampled = System.nanoTime();
+            double[] canvaslab = CIELab.fromXYZ(mixer.mix(new double[palette.options.dyes.length]));
+            int[] chosen = palette.select(canvaslab);
+            long selected = System.nanoTime();
+            palette.print(engine, chosen);
+            System.out.println(String.format(Locale.ROOT, "# sampled in %d ms, selected in %d ms on %d threads",
+                    (sampled - start)/1000000, (selected - sampled)/1000000, palette.options.numthreads));
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return 0;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: palette [--colors n] [--samples n] [--max-dyes n] [--max-amount x]");
+        System.err.println("               [--step nm] [--seed n]");
+        System.err.println("               "+ MixOptions.usage.replace("\n", "\n               "));
+        return 2;
+    }
+
+    /** Draws and mixes the candidates. */
+    void sample(BatchMixer mixer) throws ExecutionException {
+        dyeindices = new int[numsamples*maxdyes];
+        amounts = new double[numsamples*maxdyes];
+        lab = new float[3*numsamples];
+        mixer.sample(seed, maxdyes, maxamount, numsamples, options.numthreads, dyeindices, amounts, lab);
+    }
+
+    /** Farthest-point selection of numcolors candidates, away from startlab. */
+    int[] select(double[] startlab) throws ExecutionException {
+        final float[] mindistance = new float[numsamples];
+        Arrays.fill(mindistance, Float.POSITIVE_INFINITY);
+        final int numchunks = (numsamples + BatchMixer.chunksize - 1)/BatchMixer.chunksize;
+        final float[] chunkbest = new float[numchunks];
+        final int[] chunkbestindex = new int[numchunks];
+        int[] chosen = new int[numcolors];
+        final double[] point = startlab.clone();
+        for (int k = 0; (k < numcolors); k++) {
+            BatchMixer.forEachChunk(numsamples, options.numthreads, (first, count) -> {
+                float px = (float)point[0], py = (float)point[1], pz = (float)point[2];
+                float best = -1;
+                int bestindex = first;
+                for (int r = first; (r < first + count); r++) {
+                    float dl = lab[3*r] - px, da = lab[3*r+1] - py, db = lab[3*r+2] - pz;
+                    float d = dl*dl + da*da + db*db;
+                    if (d < mindistance[r]) mindistance[r] = d;
+                    if (mindistance[r] > best) {
+                        best = mindistance[r];
+                        bestindex = r;
+                    }
+                }
+                chunkbest[first/BatchMixer.chunksize] = best;
+                chunkbestindex[first/BatchMixer.chunksize] = bestindex;
+            });
+            int best = 0;
+            for (int c = 1; (c < numchunks); c++) {
+                if (chunkbest[c] > chunkbest[best]) best = c;
+            }
+            chosen[k] = chunkbestindex[best];
+            for (int c = 0; (c < 3); c++) point[c] = lab[3*chosen[k] + c];
+        }
+        return chosen;
+    }
+
+    void print(MixEngine engine, int[] chosen) {
+        Observer[] observer = {options.observer};
+        ColorEncoder encoder = new ColorEncoder(ColorEncoder.srgb);
+        System.out.println("# "+ chosen.length +" colors from "+ numsamples +" recipes of up to "+ maxdyes
+                +" of "+ options.dyes.length +" dyes; "+ options.describe());
+        System.out.println("# L* a* b*, sRGB (* out of gamut), dye number:amount (name)");
+        for (int k = 0; (k < chosen.length); k++) {
+            int r = chosen[k];
+            int used = 0;
+            for (int s = 0; (s < maxdyes); s++) {
+                if (amounts[r*maxdyes + s] != 0) used++;
+            }
+            Dye[] dyes = new Dye[used];
+            double[] dyeamounts = new double[used];
+            for (int s = 0; (s < used); s++) {
+                dyes[s] = options.dyes[dyeindices[r*maxdyes + s]];
+                dyeamounts[s] = amounts[r*maxdyes + s];
+            }
+            double[] xyz = engine.getXYZ(options.light, options.canvas, options.getFlags(), dyes, dyeamounts, observer)[0];
+            double[] l = CIELab.fromXYZ(xyz);
+            int[] rgb = new int[1];
+            boolean outofgamut = encoder.encode(xyz, 0, 1, rgb, 0, null) > 0;
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%3d %7.2f %7.2f %7.2f  #%06x%s ",
+                    k + 1, l[0], l[1], l[2], rgb[0], outofgamut ? "*" : " "));
+            for (int s = 0; (s < used); s++) {
+                line.append(String.format(Locale.ROOT, " %d:%.3f (%s)", dyes[s].getNumber(), dyeamounts[s], dyes[s].getName()));
+            }
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package dev.salusa.dyemixer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Reads an image a band of rows at a time as 0xAARRGGBB pixels. Non-interlaced PNGs, the usual
+ * kind, are decoded as they are read, so only one row and the caller's band are in memory
+ * whatever the size of the image. Anything else ImageIO reads, interlaced PNGs included, is
+ * decoded whole by ImageIO first. Gray PNGs are taken as sRGB gray, as browsers show them,
+ * where ImageIO would take them as linear.
+ */
+class PngRowReader implements Closeable {
+
+    static final byte[] signature = {(byte)137, 'P', 'N', 'G', 13, 10, 26, 10};
+
+    int width;
+    int height;
+    int rowsread = 0;
+
+    /** The whole image, when ImageIO decoded it. */
+    BufferedImage image;
+
+    DataInputStream in;
+    InputStream pixels;
+    int colortype;
+    int bitdepth;
+    /** Bytes per complete pixel, at least 1, as the filters count them. */
+    int filterstep;
+    byte[] row;
+    byte[] previous;
+    int[] palette;
+    /** The samples of the transparent gray or RGB from tRNS, or null. */
+    int[] transparent;
+
+    PngRowReader(Path path) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        try {
+            byte[] start = new byte[signature.length];
+            int n = in.read(start);
+            if ((n == signature.length) && Arrays.equals(start, signature) && readHeader()) return;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        in.close();
+        in = null;
+        image = ImageIO.read(path.toFile());
+        if (image == null) throw new IOException("Not an image: "+ path);
+        width = image.getWidth();
+        height = image.getHeight();
+    }
+
+    /** Reads the chunks up to the first IDAT; false if the PNG is better left to ImageIO. */
+    boolean readHeader() throws IOException {
+        palette = null;
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == chunkType("IHDR")) {
+                width = in.readInt();
+                height = in.readInt();
+                bitdepth = in.readUnsignedByte();
+                colortype = in.readUnsignedByte();
+                in.skipBytes(2);
+                int interlace = in.readUnsignedByte();
+                if ((interlace != 0) || (width <= 0) || (height <= 0)) return false;
+                int channels = (colortype == 2) ? 3 : (colortype == 4) ? 2 : (colortype == 6) ? 4 : 1;
+                int bitsperpixel = channels*bitdepth;
+                filterstep = Math.max(1, bitsperpixel/8);
+                row = new byte[(int)(((long)width*bitsperpixel + 7)/8)];
+                previous = new byte[row.length];
+            } else if (type == chunkType("PLTE")) {
+                palette = new int[256];
+                Arrays.fill(palette, 0xff000000);
+                for (int i = 0; (i < length/3); i++) {
+                    palette[i] = 0xff000000 | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                            | in.readUnsignedByte();
+                }
+                in.skipBytes(length - 3*(length/3));
+            } else if (type == chunkType("tRNS")) {
+                if ((colortype == 3) && (palette != null)) {
+                    for (int i = 0; (i < length); i++) {
+                        int alpha = in.readUnsignedByte();
+                        if (i < 256) palette[i] = (alpha << 24) | (palette[i] & 0xffffff);
+                    }
+                } else {
+                    transparent = new int[length/2];
+                    for (int i = 0; (i < transparent.length); i++) transparent[i] = in.readUnsignedShort();
+                    in.skipBytes(length - 2*transparent.length);
+                }
+            } else if (type == chunkType("IDAT")) {
+                if (row == null) return false;
+                if ((colortype == 3) && (palette == null)) return false;
+                pixels = new InflaterInputStream(new IdatStream(in, length));
+                return true;
+            } else if (type == chunkType("IEND")) {
+                return false;
+            } else {
+                in.skipBytes(length);
+            }
+            in.skipBytes(4);
+        }
+    }
+
+    static int chunkType(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+
+    /** The data of consecutive IDAT chunks as one stream; ends at the first other chunk. */
+    static class IdatStream extends InputStream {
+        final DataInputStream in;
+        int remaining;
+        boolean ended = false;
+
+        IdatStream(DataInputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        boolean next() throws IOException {
+            while (!ended && (remaining == 0)) {
+                in.skipBytes(4);
+                int length = in.readInt();
+                if (in.readInt() != chunkType("IDAT")) {
+                    ended = true;
+                } else {
+                    remaining = length;
+                }
+            }
+            return !ended;
+        }
+
+        public int read() throws IOException {
+            if (!next()) return -1;
+            remaining--;
+            return in.readUnsignedByte();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!next()) return -1;
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) throw new EOFException("Truncated PNG");
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Reads up to maxrows rows into argb, width pixels per row from index 0; returns how many,
+     * 0 at the end of the image.
+     */
+    int readRows(int[] argb, int maxrows) throws IOException {
+        int n = Math.min(maxrows, height - rowsread);
+        if (image != null) {
+            if (n > 0) image.getRGB(0, rowsread, width, n, argb, 0, width);
+        } else {
+            for (int y = 0; (y < n); y++) {
+                readRow(argb, y*width);
+            }
+        }
+        rowsread += n;
+        return n;
+    }
+
+    void readRow(int[] argb, int offset) throws IOException {
+        int filter = pixels.read();
+        if (filter < 0) throw new EOFException("Truncated PNG");
+        for (int n = 0; (n < row.length); ) {
+            int read = pixels.read(row, n, row.length - n);
+            if (read < 0) throw new EOFException("Truncated PNG");
+            n += read;
+        }
+        unfilter(filter);
+        for (int x = 0; (x < width); x++) {
+            argb[offset + x] = getPixel(x);
+        }
+        byte[] swap = previous;
+        previous = row;
+        row = swap;
+    }
+
+    void unfilter(int filter) throws IOException {
+        int step = filterstep;
+        for (int i = 0; (i < row.length); i++) {
+            int left = (i >= step) ? row[i - step] & 0xff : 0;
+            int up = previous[i] & 0xff;
+            int upleft = (i >= step) ? previous[i - step] & 0xff : 0;
+            int predictor;
+            switch (filter) {
+                case 0: predictor = 0; break;
+                case 1: predictor = left; break;
+                case 2: predictor = up; break;
+                case 3: predictor = (left + up) >> 1; break;
+                case 4: predictor = paeth(left, up, upleft); break;
+                default: throw new IOException("Bad PNG filter "+ filter);
+            }
+            row[i] = (byte)(row[i] + predictor);
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if ((pa <= pb) && (pa <= pc)) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    /** Sample i of the row, of bitdepth bits, as in the file. */
+    int getSample(int i) {
+        if (bitdepth == 8) return row[i] & 0xff;
+        if (bitdepth == 16) return ((row[2*i] & 0xff) << 8) | (row[2*i+1] & 0xff);
+        int perbyte = 8/bitdepth;
+        int shift = 8 - bitdepth*(1 + i%perbyte);
+        return ((row[i/perbyte] & 0xff) >> shift) & ((1 << bitdepth) - 1);
+    }
+
+    /** Sample i scaled to 8 bits. */
+    int get8(int i) {
+        if (bitdepth == 8) return row[i] & 0xff;
+        if (bitdepth == 16) return (getSample(i)*255 + 32767)/65535;
+        return getSample(i)*255/((1 << bitdepth) - 1);
+    }
+
+    boolean isTransparent(int first, int channels) {
+        if ((transparent == null) || (transparent.length != channels)) return false;
+        for (int c = 0; (c < channels); c++) {
+            if (getSample(first + c) != transparent[c]) return false;
+        }
+        return true;
+    }
+
+    int getPixel(int x) {
+        switch (colortype) {
+            case 0: {
+                int g = get8(x);
+                int alpha = isTransparent(x, 1) ? 0 : 0xff;
+                return (alpha << 24) | (g << 16) | (g << 8) | g;
+            }
+            case 2: {
+                int alpha = isTransparent(3*x, 3) ? 0 : 0xff;
+                return (alpha << 24) | (get8(3*x) << 16) | (get8(3*x+1) << 8) | get8(3*x+2);
+            }
+            case 3:
+                return palette[getSample(x)];
+            case 4: {
+                int g = get8(2*x);
+                return (get8(2*x+1) << 24) | (g << 16) | (g << 8) | g;
+            }
+            default:
+                return (get8(4*x+3) << 24) | (get8(4*x) << 16) | (get8(4*x+1) << 8) | get8(4*x+2);
+        }
+    }
+
+    public void close() throws IOException {
+        if (in != null) in.close();
+    }
+}
@@ -0,0 +1,89 @@
+package dev.salusa.dyemixer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A saved mix. Lights, canvases and dyes are referenced by their stable library numbers, not by
+ * their position in the (sorted, possibly changing) choice lists.
+ */
+class Recipe {
+    String name;
+    int lightnumber;
+    int canvasnumber;
+    boolean lightwhite;
+    boolean canvaswhite;
+    boolean canvasbright;
+    boolean combinedbright;
+    /** Mixed with the Kubelka-Munk fabric model instead of Beer-Lambert. */
+    boolean kubelkamunk;
+    /** Seen by the CIE 1964 10 degree observer instead of the 2 degree one. */
+    boolean observer1964;
+    /** The index of the ChromaticAdaptation used to white adapt. */
+    int adaptation;
+    int[] dyenumbers;
+    double[] amounts;
+    boolean[] enables;
+
+    /** The mixed swatch color when the recipe was saved, packed as 0xRRGGBB. */
+    int rgb;
+
+    Recipe(String name, int numdyes) {
+        this.name = name;
+        dyenumbers = new int[numdyes];
+        amounts = new double[numdyes];
+        enables = new boolean[numdyes];
+    }
+
+    int getNumDyes() {
+        return dyenumbers.length;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeInt(lightnumber);
+        out.writeInt(canvasnumber);
+        int flags = 0;
+        if (lightwhite) flags |= 1;
+        if (canvaswhite) flags |= 2;
+        if (canvasbright) flags |= 4;
+        if (combinedbright) flags |= 8;
+        if (kubelkamunk) flags |= 16;
+        if (observer1964) flags |= 32;
+        flags |= (adaptation & 3) << 6;
+        out.writeByte(flags);
+        out.writeInt(rgb);
+        out.writeShort(dyenumbers.length);
+        for (int t = 0; (t < dyenumbers.length); t++) {
+            out.writeInt(dyenumbers[t]);
+            out.writeDouble(amounts[t]);
+            out.writeBoolean(enables[t]);
+        }
+    }
+
+    static Recipe read(DataInput in) throws IOException {
+        String name = in.readUTF();
+        int lightnumber = in.readInt();
+        int canvasnumber = in.readInt();
+        int flags = in.readByte();
+        int rgb = in.readInt();
+        Recipe recipe = new Recipe(name, in.readUnsignedShort());
+        recipe.lightnumber = lightnumber;
+        recipe.canvasnumber = canvasnumber;
+        recipe.lightwhite = (flags & 1) != 0;
+        recipe.canvaswhite = (flags & 2) != 0;
+        recipe.canvasbright = (flags & 4) != 0;
+        recipe.combinedbright = (flags & 8) != 0;
+        recipe.kubelkamunk = (flags & 16) != 0;
+        recipe.observer1964 = (flags & 32) != 0;
+        recipe.adaptation = (flags >> 6) & 3;
+        recipe.rgb = rgb;
+        for (int t = 0; (t < recipe.dyenumbers.length); t++) {
+            recipe.dyenumbers[t] = in.readInt();
+            recipe.amounts[t] = in.readDouble();
+            recipe.enables[t] = in.readBoolean();
+        }
+        return recipe;
+    }
+}
@@ -0,0 +1,226 @@
+package dev.salusa.dyemixer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Finds a recipe of up to maxdyes dyes for a CIELAB target. A target more than
+ * GamutHull.skipdistance outside the gamut of the dyes, if one is given, isn't searched: it
+ * gets the nearest sampled recipe as it is, flagged with its distance. Otherwise the nearest of
+ * a table of sampled recipes (see BatchMixer.sample()) with different dye sets are refined by a
+ * pattern search on their amounts, each amount and all of them together scaled up and down by a
+ * shrinking factor, on the coarse mixer; the best is polished the same way on the fine one and
+ * rounded to the resolution of the dye sliders. The fine mixer should have step 1, so the
+ * answer's color is the mixer's.
+ *
+ * Solutions are kept per target, rounded to 0.05 in each of L*, a* and b*, and solve() may be
+ * called from any number of threads.
+ */
+class RecipeSolver {
+
+    static final int defaultnumsamples = 200000;
+    /** How many sampled recipes with distinct dye sets are refined. */
+    static final int numstarts = 6;
+    /** How many of the nearest samples are looked at to find them. */
+    static final int numnearest = 32;
+    static final double memoresolution = 0.05;
+
+    final BatchMixer mixer;
+    final BatchMixer finemixer;
+    /** The gamut of the dyes, or null to search every target. */
+    final GamutHull gamut;
+    final int slots;
+    final double maxamount;
+
+    int numsamples;
+    int[] dyeindices;
+    double[] amounts;
+    float[] lab;
+
+    final Map<Long, Solution> memo = new ConcurrentHashMap<Long, Solution>();
+
+    RecipeSolver(BatchMixer mixer, BatchMixer finemixer, GamutHull gamut, int maxdyes, double maxamount) {
+        this.mixer = mixer;
+        this.finemixer = finemixer;
+        this.gamut = gamut;
+        this.slots = Math.min(maxdyes, mixer.dyes.length);
+        this.maxamount = maxamount;
+    }
+
+    /** Fills the table of starting points; must be called before solve(). */
+    void sample(int numsamples, long seed, int numthreads) throws ExecutionException {
+        this.numsamples = numsamples;
+        dyeindices = new int[numsamples*slots];
+        amounts = new double[numsamples*slots];
+        lab = new float[3*numsamples];
+        mixer.sample(seed, slots, maxamount, numsamples, numthreads, dyeindices, amounts, lab);
+    }
+
+    /**
+     * A recipe: the dyes as indices into the mixer's dyes, their amounts and the color made, and
+     * how far the target was outside the gamut if it was too far to search; 0 otherwise.
+     */
+    static class Solution {
+        final int[] dyeindices;
+        final double[] amounts;
+        final double[] lab;
+        final double deltae;
+        final double outside;
+
+        Solution(int[] dyeindices, double[] amounts, double[] lab, double deltae, double outside) {
+            this.dyeindices = dyeindices;
+            this.amounts = amounts;
+            this.lab = lab;
+            this.deltae = deltae;
+            this.outside = outside;
+        }
+    }
+
+    Solution solve(double[] target) {
+        Long key = memoKey(target);
+        Solution solution = memo.get(key);
+        if (solution == null) {
+            solution = search(target);
+            memo.put(key, solution);
+        }
+        return solution;
+    }
+
+    static Long memoKey(double[] target) {
+        long key = 0;
+        for (int c = 0; (c < 3); c++) {
+            key = (key << 21) | (Math.round(target[c]/memoresolution) & 0x1fffff);
+        }
+        return key;
+    }
+
+    Solution search(double[] target) {
+        double outside = (gamut == null) ? 0 : gamut.getDistanceOutside(target);
+        int[] starts = findStarts(target);
+        if (outside > GamutHull.skipdistance) {
+            // No recipe comes close, so the nearest sample stands in unrefined
+            starts = Arrays.copyOf(starts, 1);
+        } else {
+            outside = 0;
+        }
+        int[] bestdyes = null;
+        double[] bestamounts = null;
+        double besterror = Double.POSITIVE_INFINITY;
+        for (int k = 0; (k < starts.length); k++) {
+            int r = starts[k];
+            int used = 0;
+            for (int s = 0; (s < slots); s++) {
+                if (amounts[r*slots + s] != 0) used++;
+            }
+            int[] dyes = new int[used];
+            double[] a = new double[used];
+            for (int s = 0; (s < used); s++) {
+                dyes[s] = dyeindices[r*slots + s];
+                a[s] = amounts[r*slots + s];
+            }
+            double error = (outside > 0) ? 0 : refine(mixer, dyes, a, target, 1.5);
+            if (error < besterror) {
+                besterror = error;
+                bestdyes = dyes;
+                bestamounts = a;
+            }
+        }
+        if (outside == 0) refine(finemixer, bestdyes, bestamounts, target, 1.05);
+        for (int s = 0; (s < bestamounts.length); s++) {
+            bestamounts[s] = Math.max(1, MixEngine.quantize(bestamounts[s]))*MixEngine.amountquantum;
+        }
+        double[] l = getLab(finemixer, bestdyes, bestamounts);
+        return new Solution(bestdyes, bestamounts, l, CIELab.deltaE(l, target), outside);
+    }
+
+    /** The nearest samples to target, at most numstarts and no two with the same dyes. */
+    int[] findStarts(double[] target) {
+        float tl = (float)target[0], ta = (float)target[1], tb = (float)target[2];
+        int[] nearest = new int[numnearest];
+        float[] distance = new float[numnearest];
+        Arrays.fill(distance, Float.POSITIVE_INFINITY);
+        for (int r = 0; (r < numsamples); r++) {
+            float dl = lab[3*r] - tl, da = lab[3*r+1] - ta, db = lab[3*r+2] - tb;
+            float d = dl*dl + da*da + db*db;
+            if (d >= distance[numnearest - 1]) continue;
+            int i = numnearest - 1;
+            while ((i > 0) && (distance[i-1] > d)) {
+                distance[i] = distance[i-1];
+                nearest[i] = nearest[i-1];
+                i--;
+            }
+            distance[i] = d;
+            nearest[i] = r;
+        }
+        int[] starts = new int[numstarts];
+        long[] sets = new long[numstarts];
+        int numfound = 0;
+        for (int i = 0; (i < numnearest) && (numfound < numstarts); i++) {
+            if (distance[i] == Float.POSITIVE_INFINITY) break;
+            long set = getDyeSet(nearest[i]);
+            boolean seen = false;
+            for (int k = 0; (k < numfound); k++) seen |= (sets[k] == set);
+            if (seen) continue;
+            sets[numfound] = set;
+            starts[numfound++] = nearest[i];
+        }
+        return Arrays.copyOf(starts, numfound);
+    }
+
+    /** Sample r's dye indices in ascending order, packed 16 bits each. */
+    long getDyeSet(int r) {
+        int[] dyes = new int[slots];
+        for (int s = 0; (s < slots); s++) {
+            dyes[s] = (amounts[r*slots + s] != 0) ? dyeindices[r*slots + s] + 1 : 0;
+        }
+        Arrays.sort(dyes);
+        long set = 0;
+        for (int s = 0; (s < slots); s++) set = (set << 16) | dyes[s];
+        return set;
+    }
+
+    /**
+     * Pattern search on the amounts of dyes for the color nearest target, from factor down to
+     * 1.0005; amounts stay between one slider step and maxamount. Returns the squared deltaE.
+     */
+    double refine(BatchMixer m, int[] dyes, double[] a, double[] target, double factor) {
+        double error = getError(m, dyes, a, target);
+        double[] trial = new double[a.length];
+        while (factor > 1.0005) {
+            boolean improved = false;
+            // Each amount alone, then all together, up and down
+            for (int s = 0; (s <= a.length); s++) {
+                for (int direction = 0; (direction < 2); direction++) {
+                    double f = (direction == 0) ? factor : 1.0/factor;
+                    for (int u = 0; (u < a.length); u++) {
+                        trial[u] = ((s == a.length) || (s == u))
+                                ? Math.max(MixEngine.amountquantum, Math.min(maxamount, a[u]*f)) : a[u];
+                    }
+                    double e = getError(m, dyes, trial, target);
+                    if (e < error) {
+                        error = e;
+                        System.arraycopy(trial, 0, a, 0, a.length);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+            if (!improved) factor = Math.sqrt(factor);
+        }
+        return error;
+    }
+
+    static double getError(BatchMixer m, int[] dyes, double[] a, double[] target) {
+        double[] l = getLab(m, dyes, a);
+        double dl = l[0] - target[0], da = l[1] - target[1], db = l[2] - target[2];
+        return dl*dl + da*da + db*db;
+    }
+
+    static double[] getLab(BatchMixer m, int[] dyes, double[] a) {
+        double[] xyz = new double[3];
+        m.mix(dyes, a, dyes.length, 0, 1, xyz);
+        return CIELab.fromXYZ(xyz);
+    }
+}
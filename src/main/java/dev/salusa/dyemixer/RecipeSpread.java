@@ -0,0 +1,235 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * How much a recipe's color spreads when its amounts are measured imprecisely, by Monte Carlo:
+ *
+ *   dyemixer spread --dyes n,n,... [--error x] [--absolute x] [--uniform] [--variants n]
+ *                   [--step nm] [--seed n] [mix options] amount,amount,...
+ *
+ * Each variant measures every dye of the recipe with an error: relative error x of the amount
+ * plus an absolute error, drawn from a normal distribution with those standard deviations, or
+ * a uniform one with those half widths. Dyes not in the recipe stay out of it. The variants are
+ * mixed by a BatchMixer on all threads, each chunk drawing from its own SplittableRandom stream
+ * seeded by the seed and its first variant, so the spread doesn't depend on the number of
+ * threads. The spread is the deltaE of the variants from the recipe as mixed: their mean, 95th
+ * percentile and largest, and the standard deviation of L*, a* and b*.
+ */
+class RecipeSpread {
+
+    static final int defaultnumvariants = 20000;
+    static final long defaultseed = 50;
+
+    /** The error distributions. */
+    static final int normal = 0;
+    static final int uniform = 1;
+
+    final int distribution;
+    final double relative;
+    final double absolute;
+
+    RecipeSpread(int distribution, double relative, double absolute) {
+        this.distribution = distribution;
+        this.relative = relative;
+        this.absolute = absolute;
+    }
+
+    /** The spread of a recipe, as estimate() found it. */
+    static class Result {
+        /** The recipe's CIELAB and the mean over the variants. */
+        final double[] lab = new double[3];
+        final double[] meanlab = new double[3];
+        /** The standard deviation of L*, a* and b* over the variants. */
+        final double[] deviation = new double[3];
+        double meandeltae;
+        double p95deltae;
+        double maxdeltae;
+        int numvariants;
+
+        String describe() {
+            return String.format(Locale.ROOT, "deltaE %.2f mean, %.2f at 95%%, %.2f max", meandeltae, p95deltae,
+                    maxdeltae);
+        }
+    }
+
+    /** An amount as it might be measured; never below 0. */
+    double perturb(SplittableRandom random, double amount) {
+        if (amount == 0) return 0;
+        double measured;
+        if (distribution == uniform) {
+            measured = amount*(1 + relative*(2*random.nextDouble() - 1)) + absolute*(2*random.nextDouble() - 1);
+        } else {
+            measured = amount*(1 + relative*nextGaussian(random)) + absolute*nextGaussian(random);
+        }
+        return Math.max(0, measured);
+    }
+
+    /** A standard normal deviate, by Box-Muller; SplittableRandom has none of its own. */
+    static double nextGaussian(SplittableRandom random) {
+        double u = 1 - random.nextDouble();
+        return Math.sqrt(-2*Math.log(u))*Math.cos(2*Math.PI*random.nextDouble());
+    }
+
+    /**
+     * Mixes numvariants variants of the recipe of an amount for each dye of mixer on numthreads
+     * threads, and returns their spread.
+     */
+    Result estimate(BatchMixer mixer, double[] amounts, int numvariants, long seed, int numthreads)
+            throws ExecutionException {
+        return estimate(BatchMixer.getWorkers(), mixer, amounts, numvariants, seed, numthreads);
+    }
+
+    /** As estimate() on the threads of pool. */
+    Result estimate(ExecutorService pool, BatchMixer mixer, final double[] amounts, int numvariants, final long seed,
+                    int numthreads) throws ExecutionException {
+        final int slots = amounts.length;
+        final BatchMixer m = mixer;
+        final float[] lab = new float[3*numvariants];
+        BatchMixer.forEachChunk(pool, numvariants, BatchMixer.chunksize, numthreads, (first, count) -> {
+            SplittableRandom random = new SplittableRandom(seed*0x9E3779B97F4A7C15L + first);
+            int[] dyeindices = new int[count*slots];
+            double[] variants = new double[count*slots];
+            for (int r = 0; (r < count); r++) {
+                for (int s = 0; (s < slots); s++) {
+                    dyeindices[r*slots + s] = s;
+                    variants[r*slots + s] = perturb(random, amounts[s]);
+                }
+            }
+            double[] xyz = new double[3*count];
+            m.mix(dyeindices, variants, slots, 0, count, xyz);
+            double[] l = new double[3];
+            for (int r = 0; (r < count); r++) {
+                CIELab.fromXYZ(xyz, 3*r, l, 0);
+                for (int c = 0; (c < 3); c++) lab[3*(first + r) + c] = (float)l[c];
+            }
+        });
+
+        Result result = new Result();
+        result.numvariants = numvariants;
+        CIELab.fromXYZ(mixer.mix(amounts), 0, result.lab, 0);
+        if (numvariants == 0) return result;
+        double[] deltae = new double[numvariants];
+        double[] sum = new double[3];
+        double[] variant = new double[3];
+        for (int r = 0; (r < numvariants); r++) {
+            for (int c = 0; (c < 3); c++) {
+                variant[c] = lab[3*r + c];
+                sum[c] += variant[c];
+            }
+            deltae[r] = CIELab.deltaE(variant, result.lab);
+            result.meandeltae += deltae[r];
+        }
+        result.meandeltae /= numvariants;
+        for (int c = 0; (c < 3); c++) result.meanlab[c] = sum[c]/numvariants;
+        double[] squares = new double[3];
+        for (int r = 0; (r < numvariants); r++) {
+            for (int c = 0; (c < 3); c++) {
+                double d = lab[3*r + c] - result.meanlab[c];
+                squares[c] += d*d;
+            }
+        }
+        for (int c = 0; (c < 3); c++) result.deviation[c] = Math.sqrt(squares[c]/numvariants);
+        Arrays.sort(deltae);
+        result.p95deltae = deltae[Math.min(numvariants - 1, (int)Math.ceil(0.95*numvariants) - 1)];
+        result.maxdeltae = deltae[numvariants - 1];
+        return result;
+    }
+
+    static int run(String[] args) throws IOException {
+        MixOptions options = new MixOptions();
+        double relative = 0.05;
+        double absolute = 0;
+        int distribution = normal;
+        int numvariants = defaultnumvariants;
+        int step = 5;
+        long seed = defaultseed;
+        List<String> recipes = new ArrayList<String>();
+        List<double[]> amounts = new ArrayList<double[]>();
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--error") && hasvalue) {
+                    relative = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--absolute") && hasvalue) {
+                    absolute = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--uniform")) {
+                    distribution = uniform;
+                } else if (arg.equals("--variants") && hasvalue) {
+                    numvariants = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--step") && hasvalue) {
+                    step = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--seed") && hasvalue) {
+                    seed = Long.parseLong(args[++t]);
+                } else if (arg.startsWith("--")) {
+                    return usage("Unknown option "+ arg);
+                } else {
+                    String[] values = arg.split(",");
+                    double[] recipe = new double[values.length];
+                    for (int u = 0; (u < values.length); u++) {
+                        recipe[u] = Double.parseDouble(values[u].trim());
+                        if (!(recipe[u] >= 0)) throw new IllegalArgumentException("Negative amount in "+ arg);
+                    }
+                    recipes.add(arg);
+                    amounts.add(recipe);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if (recipes.isEmpty()) return usage(null);
+        if (options.dyenumbers == null) return usage("--dyes is required");
+        if (!(relative >= 0) || !(absolute >= 0) || (numvariants < 1) || (step < 1)) {
+            return usage("Out of range");
+        }
+        for (int k = 0; (k < recipes.size()); k++) {
+            if (amounts.get(k).length != options.dyenumbers.length) {
+                return usage("Recipe "+ recipes.get(k) +" doesn't have an amount for each dye");
+            }
+        }
+        options.resolve();
+
+        MixEngine engine = options.newEngine();
+        BatchMixer mixer = new BatchMixer(engine, options.light, options.canvas, options.getFlags(), options.dyes,
+                step);
+        RecipeSpread spread = new RecipeSpread(distribution, relative, absolute);
+        System.out.println(String.format(Locale.ROOT, "# %d variants, %s error %.3g relative, %.3g absolute; %s",
+                numvariants, (distribution == uniform) ? "uniform" : "normal", relative, absolute,
+                options.describe()));
+        for (int k = 0; (k < recipes.size()); k++) {
+            long start = System.nanoTime();
+            Result result;
+            try {
+                result = spread.estimate(mixer, amounts.get(k), numvariants, seed, options.numthreads);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            long done = System.nanoTime();
+            System.out.println(String.format(Locale.ROOT,
+                    "%-20s %7.2f %7.2f %7.2f  %s  sd %.2f %.2f %.2f  [%d ms]", recipes.get(k),
+                    result.lab[0], result.lab[1], result.lab[2], result.describe(), result.deviation[0],
+                    result.deviation[1], result.deviation[2], (done - start)/1000000));
+        }
+        return 0;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: spread --dyes n,n,... [--error x] [--absolute x] [--uniform] [--variants n]");
+        System.err.println("              [--step nm] [--seed n]");
+        System.err.println("              "+ MixOptions.usage.replace("\n", "\n              "));
+        System.err.println("              amount,amount,...");
+        return 2;
+    }
+}
@@ -0,0 +1,402 @@
+package dev.salusa.dyemixer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Saved recipes, kept in an append-only log with a memory-mapped index.
+ *
+ * recipes.log is a header followed by records of {int length, payload, int crc32}. Saving a
+ * recipe under an existing name appends a new record which then shadows the old one. A record
+ * that runs past the end of the log is a save that was cut short and is cut off; one that fails
+ * its checksum is skipped. A length that can't be right leaves no way to find the next record,
+ * so the store then only reads what comes before it and refuses to save.
+ *
+ * recipes.n.idx is a header {magic, version, long covered, int count, int crc} and a table of
+ * {long key, long log offset, int rgb} keyed by the 64-bit FNV-1a hash of the name, one entry
+ * per current recipe, rgb being its mixed color. It records how much of the log it covers and
+ * the checksum of the last record it covers, so opening the store only maps the index and scans
+ * the records appended after it was written; an index that doesn't match the log is ignored and
+ * rebuilt from it on close.
+ *
+ * The index with the highest n is the one used. A new index is written as the next n rather
+ * than over the old one, which may still be mapped: Windows won't replace or delete a mapped
+ * file, and a mapping only goes when its buffer is collected. Older indexes are deleted when
+ * that works, and otherwise on a later open.
+ *
+ * findNearest() compares the color with every entry: a shop saves hundreds of recipes, maybe a
+ * few thousand, which is well under a millisecond, and the swatch distance has no order for an
+ * index to use.
+ */
+class RecipeStore implements Closeable {
+
+    static final int logmagic = 0x444d524c; // "DMRL"
+    static final int indexmagic = 0x444d5249; // "DMRI"
+    static final int version = 1;
+    static final int indexversion = 2;
+    static final int logheadersize = 8;
+    static final int indexheadersize = 24;
+    static final int entrysize = 20;
+    /** More than the largest recipe, of 65535 dyes; longer lengths are damage. */
+    static final int maxrecordsize = 1 << 20;
+
+    final Path directory;
+    final Path logpath;
+    /** The index with the highest generation, which need not exist yet. */
+    Path indexpath;
+    int generation;
+    final FileChannel log;
+    long loglength;
+
+    MappedByteBuffer index;
+    int indexcount;
+
+    /** Records appended after the index was written: name to {log offset, rgb}. */
+    final Map<String, long[]> tail = new HashMap<String, long[]>();
+    /** Records skipped for a bad checksum. */
+    int numskipped = 0;
+    /** Why the store doesn't save, or null. */
+    String damage;
+    /** Old indexes that couldn't be deleted yet, and new ones that couldn't be written. */
+    int numoldindexes = 0;
+    int numfailedindexes = 0;
+
+    static Path getDefaultDirectory() {
+        String home = System.getProperty("dyemixer.home");
+        if (home != null) return Paths.get(home);
+        return Paths.get(System.getProperty("user.home"), ".salusadyemixer");
+    }
+
+    RecipeStore(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        logpath = directory.resolve("recipes.log");
+        findGeneration();
+        log = FileChannel.open(logpath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (log.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(logheadersize);
+            header.putInt(logmagic).putInt(version).flip();
+            log.write(header, 0);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(logheadersize);
+            log.read(header, 0);
+            header.flip();
+            if ((header.remaining() < logheadersize) || (header.getInt() != logmagic) || (header.getInt() != version)) {
+                log.close();
+                throw new IOException("Not a recipe log: " + logpath);
+            }
+        }
+        loglength = log.size();
+        scanTail(openIndex());
+    }
+
+    static Path getIndexPath(Path directory, int generation) {
+        return directory.resolve("recipes."+ generation +".idx");
+    }
+
+    /** Finds the index with the highest generation and deletes the others. */
+    void findGeneration() throws IOException {
+        List<Integer> generations = new ArrayList<Integer>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "recipes.*.idx")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String number = name.substring("recipes.".length(), name.length() - ".idx".length());
+                try {
+                    generations.add(Integer.parseInt(number));
+                } catch (NumberFormatException e) {
+                    // Not an index
+                }
+            }
+        }
+        generation = 0;
+        for (int n : generations) generation = Math.max(generation, n);
+        indexpath = getIndexPath(directory, generation);
+        for (int n : generations) {
+            if (n != generation) deleteIndex(getIndexPath(directory, n));
+        }
+    }
+
+    void deleteIndex(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Most likely still mapped on Windows; a later open deletes it
+            numoldindexes++;
+        }
+    }
+
+    /** Maps the index if it is usable and returns the log offset up to which it is valid. */
+    long openIndex() throws IOException {
+        index = null;
+        indexcount = 0;
+        if (!Files.exists(indexpath)) return logheadersize;
+        FileChannel channel = FileChannel.open(indexpath, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < indexheadersize) return logheadersize;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if ((buffer.getInt(0) != indexmagic) || (buffer.getInt(4) != indexversion)) return logheadersize;
+            long covered = buffer.getLong(8);
+            int count = buffer.getInt(16);
+            // A stale or damaged index is ignored and rebuilt from the log on close
+            if ((covered < logheadersize) || (covered > loglength) || (count < 0)
+                    || (size != indexheadersize + (long)count*entrysize) || (buffer.getInt(20) != getCrcBefore(covered))) {
+                return logheadersize;
+            }
+            index = buffer;
+            indexcount = count;
+            return covered;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** The checksum of the record that ends at offset, or 0 at the start of the log. */
+    int getCrcBefore(long offset) throws IOException {
+        if (offset <= logheadersize) return 0;
+        ByteBuffer crc = ByteBuffer.allocate(4);
+        log.read(crc, offset - 4);
+        return crc.getInt(0);
+    }
+
+    /**
+     * Reads the records from offset to the end of the log. A torn last record is cut off and
+     * one with a bad checksum skipped; a bad length stops the scan and the saving.
+     */
+    void scanTail(long offset) throws IOException {
+        while (offset < loglength) {
+            int size = (offset + 4 <= loglength) ? readLength(offset) : 0;
+            if ((offset + 4 > loglength) || ((size > 0) && (size <= maxrecordsize) && (offset + 8 + size > loglength))) {
+                log.truncate(offset);
+                loglength = offset;
+                break;
+            }
+            if ((size <= 0) || (size > maxrecordsize)) {
+                damage = "The recipe log is damaged at byte "+ offset +" of "+ logpath +"; not saving to it";
+                break;
+            }
+            Recipe recipe = readAt(offset);
+            if (recipe != null) {
+                tail.put(recipe.name, new long[] {offset, recipe.rgb});
+            } else {
+                numskipped++;
+            }
+            offset += 8 + size;
+        }
+    }
+
+    int readLength(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        log.read(length, offset);
+        return length.getInt(0);
+    }
+
+    /** Returns the record at offset, or null if it is truncated or corrupt. */
+    Recipe readAt(long offset) throws IOException {
+        if (offset + 8 > loglength) return null;
+        int size = readLength(offset);
+        if ((size <= 0) || (offset + 8 + size > loglength)) return null;
+        ByteBuffer record = ByteBuffer.allocate(size + 4);
+        while (record.hasRemaining()) {
+            if (log.read(record, offset + 4 + record.position()) < 0) return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, size);
+        if ((int)crc.getValue() != record.getInt(size)) return null;
+        try {
+            return Recipe.read(new DataInputStream(new ByteArrayInputStream(record.array(), 0, size)));
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    synchronized void save(Recipe recipe) throws IOException {
+        if (damage != null) throw new IOException(damage);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        recipe.write(new DataOutputStream(bytes));
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).put(payload).putInt((int)crc.getValue()).flip();
+        long offset = loglength;
+        while (record.hasRemaining()) {
+            log.write(record, offset + record.position());
+        }
+        log.force(false);
+        loglength += payload.length + 8;
+        tail.put(recipe.name, new long[] {offset, recipe.rgb});
+    }
+
+    /** Returns the latest recipe saved under name, or null. */
+    synchronized Recipe get(String name) throws IOException {
+        long[] latest = tail.get(name);
+        if (latest != null) return readAt(latest[0]);
+        if (index == null) return null;
+        long hash = hash(name);
+        for (int i = lowerBound(hash); (i < indexcount); i++) {
+            int entry = indexheadersize + i*entrysize;
+            if (index.getLong(entry) != hash) break;
+            Recipe recipe = readAt(index.getLong(entry + 8));
+            if ((recipe != null) && recipe.name.equals(name)) return recipe;
+        }
+        return null;
+    }
+
+    /** Returns the saved recipe whose mixed color is closest to rgb (in RGB), or null. */
+    synchronized Recipe findNearest(int rgb) throws IOException {
+        Set<Long> shadowed = getTailHashes();
+        long bestoffset = -1;
+        long bestdistance = Long.MAX_VALUE;
+        for (int i = 0; (i < indexcount); i++) {
+            int entry = indexheadersize + i*entrysize;
+            long distance = colorDistance(rgb, index.getInt(entry + 16));
+            if (distance >= bestdistance) continue;
+            long offset = index.getLong(entry + 8);
+            if (shadowed.contains(index.getLong(entry)) && !isCurrent(offset)) continue;
+            bestdistance = distance;
+            bestoffset = offset;
+        }
+        for (long[] latest : tail.values()) {
+            long distance = colorDistance(rgb, (int)latest[1]);
+            if (distance < bestdistance) {
+                bestdistance = distance;
+                bestoffset = latest[0];
+            }
+        }
+        return (bestoffset < 0) ? null : readAt(bestoffset);
+    }
+
+    Set<Long> getTailHashes() {
+        Set<Long> hashes = new HashSet<Long>();
+        for (String name : tail.keySet()) hashes.add(hash(name));
+        return hashes;
+    }
+
+    /** Whether the record at offset is readable and not shadowed by a newer one. */
+    boolean isCurrent(long offset) throws IOException {
+        Recipe recipe = readAt(offset);
+        if (recipe == null) return false;
+        long[] latest = tail.get(recipe.name);
+        return (latest == null) || (latest[0] == offset);
+    }
+
+    static long colorDistance(int rgb1, int rgb2) {
+        long dr = ((rgb1 >> 16) & 0xff) - ((rgb2 >> 16) & 0xff);
+        long dg = ((rgb1 >> 8) & 0xff) - ((rgb2 >> 8) & 0xff);
+        long db = (rgb1 & 0xff) - (rgb2 & 0xff);
+        return dr*dr + dg*dg + db*db;
+    }
+
+    /** First index whose key is >= key. */
+    int lowerBound(long key) {
+        int low = 0;
+        int high = indexcount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.getLong(indexheadersize + mid*entrysize) < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int t = 0; (t < bytes.length); t++) {
+            hash ^= (bytes[t] & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Rewrites the index to cover the whole log. */
+    synchronized void writeIndex() throws IOException {
+        Set<Long> shadowed = getTailHashes();
+        List<long[]> entries = new ArrayList<long[]>(indexcount + tail.size());
+        for (int i = 0; (i < indexcount); i++) {
+            int entry = indexheadersize + i*entrysize;
+            long offset = index.getLong(entry + 8);
+            // Drop indexed records that were shadowed by a newer record of the same name
+            if (shadowed.contains(index.getLong(entry)) && !isCurrent(offset)) continue;
+            entries.add(new long[] {index.getLong(entry), offset, index.getInt(entry + 16)});
+        }
+        for (Map.Entry<String, long[]> entry : tail.entrySet()) {
+            entries.add(new long[] {hash(entry.getKey()), entry.getValue()[0], entry.getValue()[1]});
+        }
+        long[][] sorted = entries.toArray(new long[0][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                if (a[0] != b[0]) return (a[0] < b[0]) ? -1 : 1;
+                return Long.compare(a[1], b[1]);
+            }
+        });
+
+        int count = sorted.length;
+        ByteBuffer buffer = ByteBuffer.allocate(indexheadersize + count*entrysize);
+        buffer.putInt(indexmagic).putInt(indexversion).putLong(loglength).putInt(count).putInt(getCrcBefore(loglength));
+        for (int i = 0; (i < count); i++) {
+            buffer.putLong(sorted[i][0]).putLong(sorted[i][1]).putInt((int)sorted[i][2]);
+        }
+        buffer.flip();
+        // A new generation, so that nothing mapped is replaced
+        Path next = getIndexPath(directory, generation + 1);
+        Path temp = next.resolveSibling(next.getFileName() +".tmp");
+        try {
+            FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                while (buffer.hasRemaining()) out.write(buffer);
+                out.force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(temp, next, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The old index still covers a prefix of the log, so the rest is scanned again
+            numfailedindexes++;
+            System.err.println("Could not write the recipe index "+ next +": "+ e);
+            Files.deleteIfExists(temp);
+            return;
+        }
+        Path old = indexpath;
+        generation++;
+        indexpath = next;
+        tail.clear();
+        scanTail(openIndex());
+        deleteIndex(old);
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            // An index past the damage would cover records that were never read
+            if (!tail.isEmpty() && (damage == null)) writeIndex();
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package dev.salusa.dyemixer;
+
+/**
+ * Maps the nominal amount of a dye to the strength its absorbance is scaled with, for dyes that
+ * saturate instead of following Beer-Lambert linearly.
+ *
+ * The curve goes through (0, 0) and the calibration points (amount, strength), which in a
+ * library file are written as "response = a, s, a, s, ...;". Between the points it is a monotone
+ * cubic (Fritsch-Carlson), so it doesn't overshoot where the measurements don't; past the last
+ * point it continues with the end slope. The curve is evaluated once into a dense table, so
+ * getStrength() costs a table interpolation.
+ */
+class ResponseCurve {
+
+    static final int tablesize = 1024;
+
+    /** The calibration points, kept to store the curve again. */
+    final double[] amounts;
+    final double[] strengths;
+
+    final double[] table = new double[tablesize];
+    final double maxamount;
+    final double invstep;
+    final double endslope;
+
+    /** amounts must be positive and increasing. */
+    ResponseCurve(double[] amounts, double[] strengths) {
+        this.amounts = amounts;
+        this.strengths = strengths;
+        int n = amounts.length + 1;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        System.arraycopy(amounts, 0, x, 1, amounts.length);
+        System.arraycopy(strengths, 0, y, 1, strengths.length);
+
+        // Fritsch-Carlson tangents
+        double[] d = new double[n-1];
+        for (int k = 0; (k < n-1); k++) {
+            d[k] = (y[k+1] - y[k])/(x[k+1] - x[k]);
+        }
+        double[] m = new double[n];
+        m[0] = d[0];
+        m[n-1] = d[n-2];
+        for (int k = 1; (k < n-1); k++) {
+            m[k] = (d[k-1]*d[k] <= 0) ? 0 : (d[k-1] + d[k])/2;
+        }
+        for (int k = 0; (k < n-1); k++) {
+            if (d[k] == 0) {
+                m[k] = 0;
+                m[k+1] = 0;
+            } else {
+                double a = m[k]/d[k];
+                double b = m[k+1]/d[k];
+                double h = a*a + b*b;
+                if (h > 9) {
+                    double tau = 3/Math.sqrt(h);
+                    m[k] = tau*a*d[k];
+                    m[k+1] = tau*b*d[k];
+                }
+            }
+        }
+
+        maxamount = x[n-1];
+        invstep = (tablesize-1)/maxamount;
+        endslope = m[n-1];
+        int k = 0;
+        for (int i = 0; (i < tablesize); i++) {
+            double amount = i/invstep;
+            while ((k < n-2) && (amount > x[k+1])) k++;
+            double h = x[k+1] - x[k];
+            double t = (amount - x[k])/h;
+            double t2 = t*t, t3 = t2*t;
+            table[i] = (2*t3 - 3*t2 + 1)*y[k] + (t3 - 2*t2 + t)*h*m[k]
+                    + (-2*t3 + 3*t2)*y[k+1] + (t3 - t2)*h*m[k+1];
+        }
+        table[tablesize-1] = y[n-1];
+    }
+
+    double getStrength(double amount) {
+        if (amount < 0) return -getStrength(-amount);
+        double pos = amount*invstep;
+        int i = (int)pos;
+        if (i >= tablesize-1) return table[tablesize-1] + (amount - maxamount)*endslope;
+        return table[i] + (pos - i)*(table[i+1] - table[i]);
+    }
+}
@@ -0,0 +1,224 @@
+package dev.salusa.dyemixer;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import dev.salusa.dyemixer.DyeMixer.Absorber;
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * Plots the spectra behind the current mix: the illuminant power spectrum, the canvas and dye
+ * absorbances, the combined dye transmittance and the resulting filtered spectrum.
+ *
+ * The curves of the illuminant, canvas and dyes only change when one of them is re-selected, so
+ * their sampled values are cached per entity and drawn once into a background image. Amount
+ * changes only recompute the combined transmittance and draw it on top of that image.
+ */
+class SpectrumPlot extends Component {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int numsamples = Light.cieend - Light.ciestart + 1;
+
+    static final Color lightcolor = new Color(230, 160, 0);
+    static final Color canvascolor = Color.gray;
+    static final Color dyecolor = new Color(120, 150, 220);
+    static final Color transmittancecolor = Color.black;
+    static final Color filteredcolor = new Color(200, 0, 0);
+
+    /** Sampled curves (0..1 over ciestart..cieend), keyed by the entity they were sampled from. */
+    final Map<Object, float[]> curvecache = new IdentityHashMap<Object, float[]>();
+
+    Light light;
+    Canvas canvas;
+    Dye[] dyes = new Dye[0];
+
+    /** Illuminant times canvas transmittance, normalized to a peak of 1. */
+    float[] canvasedcurve;
+    float[] transmittance = new float[numsamples];
+    float[] filtered = new float[numsamples];
+
+    Image background;
+    int[] xpoints = new int[numsamples];
+    int[] ypoints = new int[numsamples];
+
+    Dimension preferreddimension = new Dimension(300, 120);
+
+    SpectrumPlot() {
+        setName("SpectrumPlot");
+    }
+
+    /** Forgets the sampled curves, e.g. after the library was reloaded. */
+    public void clearCache() {
+        curvecache.clear();
+        canvasedcurve = null;
+        invalidateBackground();
+    }
+
+    /** Sets the illuminant as found in the library (not a normalized copy). */
+    public void setLight(Light light) {
+        if (light == this.light) return;
+        this.light = light;
+        canvasedcurve = null;
+        invalidateBackground();
+    }
+
+    public void setCanvas(Canvas canvas) {
+        if (canvas == this.canvas) return;
+        this.canvas = canvas;
+        canvasedcurve = null;
+        invalidateBackground();
+    }
+
+    /** Sets the enabled dyes of the mix. Only re-renders the background if they differ. */
+    public void setDyes(Dye[] dyes) {
+        if (dyes.length == this.dyes.length) {
+            boolean same = true;
+            for (int t = 0; (t < dyes.length) && same; t++) {
+                if (dyes[t] != this.dyes[t]) same = false;
+            }
+            if (same) return;
+        }
+        this.dyes = dyes.clone();
+        invalidateBackground();
+    }
+
+    /**
+     * Sets the combined transmittance of the dyes last passed to setDyes, as computed by the mix
+     * engine, and recomputes the filtered spectrum. This is the only work done per slider event.
+     */
+    public void setTransmittance(double[] dyetransmittance) {
+        float[] canvased = getCanvasedCurve();
+        for (int i = 0; (i < numsamples); i++) {
+            transmittance[i] = (float)dyetransmittance[i];
+        }
+        double max = 0;
+        for (int i = 0; (i < numsamples); i++) {
+            filtered[i] = canvased[i]*transmittance[i];
+            if (filtered[i] > max) max = filtered[i];
+        }
+        if (max > 0) {
+            float scale = (float)(1.0/max);
+            for (int i = 0; (i < numsamples); i++) {
+                filtered[i] *= scale;
+            }
+        }
+        repaint();
+    }
+
+    float[] getAbsorbanceCurve(Absorber absorber) {
+        float[] curve = curvecache.get(absorber);
+        if (curve == null) {
+            curve = new float[numsamples];
+            for (int i = 0; (i < numsamples); i++) {
+                curve[i] = (float)absorber.getAbsorbance(Light.ciestart + i);
+            }
+            curvecache.put(absorber, curve);
+        }
+        return curve;
+    }
+
+    float[] getLightCurve() {
+        if (light == null) return new float[numsamples];
+        float[] curve = curvecache.get(light);
+        if (curve == null) {
+            curve = new float[numsamples];
+            double max = 0;
+            for (int i = 0; (i < numsamples); i++) {
+                double power = light.getPowerSpectrum(Light.ciestart + i);
+                if (power > max) max = power;
+            }
+            double scale = (max > 0) ? 1.0/max : 0.0;
+            for (int i = 0; (i < numsamples); i++) {
+                curve[i] = (float)(light.getPowerSpectrum(Light.ciestart + i)*scale);
+            }
+            curvecache.put(light, curve);
+        }
+        return curve;
+    }
+
+    float[] getCanvasedCurve() {
+        if (canvasedcurve == null) {
+            float[] lightcurve = getLightCurve();
+            float[] canvascurve = (canvas == null) ? new float[numsamples] : getAbsorbanceCurve(canvas);
+            canvasedcurve = new float[numsamples];
+            for (int i = 0; (i < numsamples); i++) {
+                canvasedcurve[i] = (float)(lightcurve[i]*Math.pow(10.0, -canvascurve[i]));
+            }
+        }
+        return canvasedcurve;
+    }
+
+    void invalidateBackground() {
+        background = null;
+        repaint();
+    }
+
+    void renderBackground(int width, int height) {
+        background = createImage(width, height);
+        if (background == null) return;
+        Graphics g = background.getGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.lightGray);
+        for (int wl = 400; (wl <= 800); wl += 100) {
+            int x = toX(wl - Light.ciestart, width);
+            g.drawLine(x, 0, x, height);
+            g.drawString("" + wl, x + 2, height - 2);
+        }
+        g.drawRect(0, 0, width - 1, height - 1);
+        for (int t = 0; (t < dyes.length); t++) {
+            drawCurve(g, getAbsorbanceCurve(dyes[t]), dyecolor, width, height);
+        }
+        if (canvas != null) drawCurve(g, getAbsorbanceCurve(canvas), canvascolor, width, height);
+        drawCurve(g, getLightCurve(), lightcolor, width, height);
+        g.dispose();
+    }
+
+    void drawCurve(Graphics g, float[] curve, Color color, int width, int height) {
+        for (int i = 0; (i < numsamples); i++) {
+            xpoints[i] = toX(i, width);
+            float value = curve[i];
+            if (value < 0) value = 0;
+            if (value > 1) value = 1;
+            ypoints[i] = (height - 2) - Math.round(value*(height - 4));
+        }
+        g.setColor(color);
+        g.drawPolyline(xpoints, ypoints, numsamples);
+    }
+
+    static int toX(int sample, int width) {
+        return 1 + (int)((long)sample*(width - 3)/(numsamples - 1));
+    }
+
+    public void update(Graphics g) {
+        paint(g);
+    }
+
+    public void paint(Graphics g) {
+        int width = getSize().width;
+        int height = getSize().height;
+        if ((width < 4) || (height < 4)) return;
+        if ((background == null) || (background.getWidth(null) != width) || (background.getHeight(null) != height)) {
+            renderBackground(width, height);
+        }
+        if (background != null) g.drawImage(background, 0, 0, null);
+        drawCurve(g, filtered, filteredcolor, width, height);
+        drawCurve(g, transmittance, transmittancecolor, width, height);
+    }
+
+    public Dimension getMinimumSize() {
+        return new Dimension(100, 60);
+    }
+
+    public Dimension getPreferredSize() {
+        return preferreddimension;
+    }
+}
@@ -0,0 +1,189 @@
+package dev.salusa.dyemixer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders what a tie-dye pattern will look like:
+ *
+ *   dyemixer tiedye --dyes r,g,b [--max-amount x] [--step nm] [--tile rows] [mix options]
+ *                   pattern.png preview.png
+ *
+ * The red, green and blue of each pattern pixel are the amounts of the first, second and third
+ * dye, 255 standing for max-amount; where regions overlap the pattern simply has more than one
+ * channel set. Fewer dyes leave the other channels unused. Pixels less than half opaque are bare
+ * canvas. Each pixel is mixed with the same model as the mixer, by a BatchMixer.
+ *
+ * A pattern has far fewer distinct pixels than pixels, so each tile of rows collects the values
+ * it hasn't seen, mixes and encodes them in one batch and shares them with the other tiles
+ * through a cache; the tiles are rendered on all threads.
+ */
+class TieDyePreview {
+
+    int step = 5;
+    int tilerows = 64;
+    double maxamount = DyeMixer.maxdyeamount;
+    final MixOptions options = new MixOptions();
+
+    BatchMixer mixer;
+    ColorEncoder encoder = new ColorEncoder(ColorEncoder.srgb);
+    /** sRGB of each pattern value mixed so far, by its 0xRRGGBB. */
+    final Map<Integer, Integer> cache = new ConcurrentHashMap<Integer, Integer>();
+    int canvasrgb;
+
+    static int run(String[] args) throws IOException {
+        TieDyePreview preview = new TieDyePreview();
+        Path pattern = null;
+        Path output = null;
+        try {
+            for (int t = 0; (t < args.length); t++) {
+                String arg = args[t];
+                boolean hasvalue = (t+1 < args.length);
+                int last = preview.options.parse(args, t);
+                if (last >= 0) {
+                    t = last;
+                } else if (arg.equals("--max-amount") && hasvalue) {
+                    preview.maxamount = Double.parseDouble(args[++t]);
+                } else if (arg.equals("--step") && hasvalue) {
+                    preview.step = Integer.parseInt(args[++t]);
+                } else if (arg.equals("--tile") && hasvalue) {
+                    preview.tilerows = Integer.parseInt(args[++t]);
+                } else if (arg.startsWith("--") || (output != null)) {
+                    return usage("Unknown option "+ arg);
+                } else if (pattern == null) {
+                    pattern = Paths.get(arg);
+                } else {
+                    output = Paths.get(arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+        if (output == null) return usage(null);
+        if ((preview.options.dyenumbers == null) || (preview.options.dyenumbers.length > 3)) {
+            return usage("--dyes takes one to three dyes");
+        }
+        if ((preview.step < 1) || (preview.tilerows < 1) || !(preview.maxamount > 0)) {
+            return usage("Out of range");
+        }
+        String name = output.getFileName().toString();
+        String format = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        if (!ImageIO.getImageWritersBySuffix(format).hasNext()) return usage("Can't write "+ format +" images");
+        preview.options.resolve();
+
+        long start = System.nanoTime();
+        int[] argb;
+        int width;
+        int height;
+        try (PngRowReader reader = new PngRowReader(pattern)) {
+            width = reader.width;
+            height = reader.height;
+            if ((long)width*height > Integer.MAX_VALUE) throw new IOException("Pattern too large");
+            argb = new int[width*height];
+            reader.readRows(argb, height);
+        }
+        long read = System.nanoTime();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        try {
+            preview.render(argb, width, height, ((DataBufferInt)image.getRaster().getDataBuffer()).getData());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        long rendered = System.nanoTime();
+        ImageIO.write(image, format, output.toFile());
+        long written = System.nanoTime();
+        System.out.println(String.format(Locale.ROOT,
+                "%dx%d, %d distinct mixes; read in %d ms, rendered in %d ms, written in %d ms on %d threads",
+                width, height, preview.cache.size(), (read - start)/1000000, (rendered - read)/1000000,
+                (written - rendered)/1000000, preview.options.numthreads));
+        return 0;
+    }
+
+    static int usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println("Usage: tiedye --dyes r,g,b [--max-amount x] [--step nm] [--tile rows]");
+        System.err.println("              "+ MixOptions.usage.replace("\n", "\n              "));
+        System.err.println("              pattern.png preview.png");
+        return 2;
+    }
+
+    /** Renders the pattern argb into rgb, both width by height. */
+    void render(final int[] argb, final int width, int height, final int[] rgb) throws ExecutionException {
+        MixEngine engine = options.newEngine();
+        mixer = new BatchMixer(engine, options.light, options.canvas, options.getFlags(), options.dyes, step);
+        int[] bare = new int[1];
+        encoder.encode(mixer.mix(new double[options.dyes.length]), 0, 1, bare, 0, null);
+        canvasrgb = bare[0];
+        int numtiles = (height + tilerows - 1)/tilerows;
+        BatchMixer.forEachChunk(numtiles, 1, options.numthreads, (first, count) -> {
+            int from = first*tilerows*width;
+            int to = Math.min(height, (first + 1)*tilerows)*width;
+            renderTile(argb, from, to, rgb);
+        });
+    }
+
+    /** The sRGB of a pattern pixel; transparent ones are bare canvas. */
+    static int getKey(int pixel) {
+        return ((pixel >>> 24) < 128) ? 0 : pixel & 0xffffff;
+    }
+
+    void renderTile(int[] argb, int from, int to, int[] rgb) {
+        // The values new to the cache, deduplicated within the tile
+        Map<Integer, Integer> tilecolors = new HashMap<Integer, Integer>();
+        int numnew = 0;
+        int[] newkeys = new int[16];
+        int lastkey = -1;
+        for (int i = from; (i < to); i++) {
+            int key = getKey(argb[i]);
+            if ((key == lastkey) || (key == 0)) continue;
+            lastkey = key;
+            if (tilecolors.containsKey(key)) continue;
+            Integer color = cache.get(key);
+            tilecolors.put(key, color);
+            if (color == null) {
+                if (numnew == newkeys.length) newkeys = Arrays.copyOf(newkeys, 2*numnew);
+                newkeys[numnew++] = key;
+            }
+        }
+        if (numnew > 0) {
+            int slots = options.dyes.length;
+            int[] dyeindices = new int[numnew*slots];
+            double[] amounts = new double[numnew*slots];
+            for (int k = 0; (k < numnew); k++) {
+                for (int s = 0; (s < slots); s++) {
+                    dyeindices[k*slots + s] = s;
+                    amounts[k*slots + s] = ((newkeys[k] >> (16 - 8*s)) & 0xff)*maxamount/255.0;
+                }
+            }
+            double[] xyz = new double[3*numnew];
+            mixer.mix(dyeindices, amounts, slots, 0, numnew, xyz);
+            int[] colors = new int[numnew];
+            encoder.encode(xyz, 0, numnew, colors, 0, null);
+            for (int k = 0; (k < numnew); k++) {
+                tilecolors.put(newkeys[k], colors[k]);
+                cache.put(newkeys[k], colors[k]);
+            }
+        }
+        lastkey = -1;
+        int lastcolor = 0;
+        for (int i = from; (i < to); i++) {
+            int key = getKey(argb[i]);
+            if (key != lastkey) {
+                lastkey = key;
+                lastcolor = (key == 0) ? canvasrgb : tilecolors.get(key);
+            }
+            rgb[i] = lastcolor;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package dev.salusa.dyemixer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.HasNumber;
+import dev.salusa.dyemixer.DyeMixer.QuickSort;
+import dev.salusa.dyemixer.DyeMixer.Sortable;
+
+/**
+ * The bundled library plus the lights, canvases and dyes of every library file in a user
+ * directory: "*.txt" files in the data.txt format and "*.bin" files in the LibrarySnapshot
+ * format. Files are read in name order; an entity whose number is already taken is skipped.
+ * Calibration records may give a response curve to any dye, including bundled ones.
+ *
+ * After start() a daemon thread watches the directory and re-reads only the files that changed.
+ * Each reload merges into a new Library, leaving the previous one untouched, and swaps it in as a
+ * whole, so a session keeps using a consistent library until it picks up the new one.
+ *
+ * The directory is -Ddyemixer.library.dir, by default "library" in the recipe store directory.
+ */
+class UserLibrary {
+
+    interface Listener {
+        /** Called on the watcher thread with the merged library after a reload. */
+        void libraryChanged(Library library);
+    }
+
+    /** Editors save in several steps; a reload waits until the directory has been quiet this long. */
+    static final long settlemillis = 200;
+
+    final Library base;
+    final Path directory;
+    /** The entities read from each file, by file name. Only used by one thread at a time. */
+    final Map<String, Library> files = new TreeMap<String, Library>();
+    final AtomicReference<Library> current = new AtomicReference<Library>();
+    WatchService watcher;
+
+    static Path getDefaultDirectory() {
+        String dir = System.getProperty("dyemixer.library.dir");
+        if (dir != null) return Paths.get(dir);
+        return RecipeStore.getDefaultDirectory().resolve("library");
+    }
+
+    static boolean isLibraryFile(String name) {
+        return name.endsWith(".txt") || name.endsWith(".bin");
+    }
+
+    UserLibrary(Library base, Path directory) throws IOException {
+        this.base = base;
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (isLibraryFile(name)) files.put(name, read(path));
+            }
+        }
+        current.set(merge());
+    }
+
+    /** The merged library from the most recent load. */
+    Library getLibrary() {
+        return current.get();
+    }
+
+    static Library read(Path path) {
+        String name = path.getFileName().toString();
+        Library library = new Library();
+        try {
+            if (name.endsWith(".bin")) {
+                library = LibrarySnapshot.read(ByteBuffer.wrap(Files.readAllBytes(path)));
+            } else {
+                try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    library.parse(reader, name);
+                }
+                library.applyCalibrations(library.availabledyes, name);
+            }
+        } catch (IOException e) {
+            library.fail("Could not read "+ name +": "+ e.getMessage());
+        }
+        return library;
+    }
+
+    /** Combines the base library with the files. Problems end up in the errors of the result. */
+    Library merge() {
+        long start = System.nanoTime();
+        Library merged = new Library();
+        merged.defaultlightnumber = base.defaultlightnumber;
+        merged.defaultcanvasnumber = base.defaultcanvasnumber;
+        merged.defaultdyenumber = base.defaultdyenumber;
+        for (Map.Entry<String, Library> file : files.entrySet()) {
+            merged.errors.addAll(file.getValue().errors);
+        }
+        merged.availablelights = merge(base.availablelights, library -> library.availablelights,
+                LibraryParser.typelight, merged);
+        merged.availablecanvases = merge(base.availablecanvases, library -> library.availablecanvases,
+                LibraryParser.typecanvas, merged);
+        merged.availabledyes = merge(base.availabledyes, library -> library.availabledyes,
+                LibraryParser.typedye, merged);
+        // Calibrations of dyes from other files or the bundled library
+        for (Map.Entry<String, Library> file : files.entrySet()) {
+            if (file.getValue().calibrations.isEmpty()) continue;
+            if (merged.availabledyes == base.availabledyes) {
+                merged.availabledyes = new Vector<Dye>(base.availabledyes);
+            }
+            Library calibrated = new Library();
+            calibrated.calibrations.putAll(file.getValue().calibrations);
+            calibrated.applyCalibrations(merged.availabledyes, file.getKey());
+            calibrated.failUncalibrated(file.getKey());
+            merged.errors.addAll(calibrated.errors);
+        }
+        Metrics.record("userlibrary.merge", System.nanoTime() - start);
+        return merged;
+    }
+
+    /**
+     * Returns the sorted base entities with those of one type from the files merged in. Only the
+     * (few) user entities are sorted; the base is already in order.
+     */
+    <T extends HasNumber & Sortable> Vector<T> merge(Vector<T> basevector, Function<Library, Vector<T>> ofType,
+                                                     int type, Library merged) {
+        Set<Integer> numbers = new HashSet<Integer>();
+        for (int t = 0; (t < basevector.size()); t++) {
+            numbers.add(basevector.elementAt(t).getNumber());
+        }
+        Vector<T> extra = new Vector<T>();
+        for (Map.Entry<String, Library> file : files.entrySet()) {
+            Vector<T> entities = ofType.apply(file.getValue());
+            for (int t = 0; (t < entities.size()); t++) {
+                int number = entities.elementAt(t).getNumber();
+                if (numbers.add(number)) {
+                    extra.addElement(entities.elementAt(t));
+                } else {
+                    merged.errors.addElement("Duplicate "+ LibraryParser.typenames[type] +" number "+ number
+                            +" in "+ file.getKey());
+                }
+            }
+        }
+        if (extra.isEmpty()) return basevector;
+        QuickSort.sort(extra);
+        Vector<T> result = new Vector<T>(basevector.size() + extra.size());
+        int i = 0, j = 0;
+        while ((i < basevector.size()) && (j < extra.size())) {
+            if (extra.elementAt(j).compareTo(basevector.elementAt(i)) < 0) {
+                result.addElement(extra.elementAt(j++));
+            } else {
+                result.addElement(basevector.elementAt(i++));
+            }
+        }
+        while (i < basevector.size()) result.addElement(basevector.elementAt(i++));
+        while (j < extra.size()) result.addElement(extra.elementAt(j++));
+        return result;
+    }
+
+    /** Starts watching the directory; listener hears about every reload. */
+    void start(final Listener listener) throws IOException {
+        watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        Thread thread = new Thread("user library watcher") {
+            public void run() {
+                watch(listener);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void watch(Listener listener) {
+        try {
+            for (;;) {
+                WatchKey key = watcher.take();
+                Set<String> changed = new TreeSet<String>();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            // Lost track; look at everything
+                            changed.addAll(files.keySet());
+                            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                                for (Path path : stream) changed.add(path.getFileName().toString());
+                            } catch (IOException e) {
+                                // Rescan what we know about
+                            }
+                        } else {
+                            changed.add(((Path)(event.context())).getFileName().toString());
+                        }
+                    }
+                    if (!key.reset()) return; // the directory is gone
+                    key = watcher.poll(settlemillis, TimeUnit.MILLISECONDS);
+                }
+                if (reload(changed)) {
+                    Library merged = merge();
+                    current.set(merged);
+                    listener.libraryChanged(merged);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /** Re-reads the named files; returns false if none of them is a library file. */
+    boolean reload(Set<String> names) {
+        boolean changed = false;
+        for (String name : names) {
+            if (!isLibraryFile(name)) continue;
+            Path path = directory.resolve(name);
+            if (Files.isRegularFile(path)) {
+                files.put(name, read(path));
+            } else {
+                files.remove(name);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    void close() throws IOException {
+        if (watcher != null) watcher.close();
+    }
+}
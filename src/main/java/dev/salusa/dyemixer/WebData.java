@@ -0,0 +1,128 @@
+package dev.salusa.dyemixer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.EvenlySampledSpectrum;
+import dev.salusa.dyemixer.DyeMixer.Spectrum;
+import dev.salusa.dyemixer.DyeMixer.UnevenlySampledSpectrum;
+
+/**
+ * Writes the spectral data of data.txt for the web version (src/main/html/index.html):
+ *
+ *   spectra.json  {"entries": [{"type": "dye", "name": ..., "spectrum": "even", "start": 380,
+ *                  "step": 5, "offset": 0, "length": 81}, ...]}
+ *   spectra.bin   the samples of all entries as little-endian float32, at their offsets
+ *
+ * Entries are in file order. Lights hold their power spectrum, canvases their absorbance and
+ * dyes their clipped and normalized absorbance, sampled as in data.txt; uneven spectra are
+ * wavelength, value pairs. The page wraps the whole file in one Float32Array and takes a
+ * subarray per entry, so it parses no numbers, and only resamples the entries that are used.
+ * The build runs "java dev.salusa.dyemixer.WebData outdir".
+ */
+class WebData {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: WebData <output directory>");
+            System.exit(2);
+        }
+        InputStream stream = WebData.class.getClassLoader().getResourceAsStream("data.txt");
+        if (stream == null) {
+            System.err.println("Could not read data.txt");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        Files.createDirectories(dir);
+        int count;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+             Writer json = Files.newBufferedWriter(dir.resolve("spectra.json"), StandardCharsets.UTF_8);
+             OutputStream bin = Files.newOutputStream(dir.resolve("spectra.bin"))) {
+            LibraryParser parser = new LibraryParser(reader, "data.txt");
+            count = write(parser, json, bin);
+            if (!parser.getErrors().isEmpty()) {
+                for (int t = 0; (t < parser.getErrors().size()); t++) {
+                    System.err.println(parser.getErrors().elementAt(t));
+                }
+                System.exit(1);
+            }
+        }
+        System.out.println("Wrote "+ count +" spectra to "+ dir);
+    }
+
+    /** Writes the records of parser; returns how many. */
+    static int write(LibraryParser parser, Writer json, OutputStream bin) throws IOException {
+        json.write("{\"entries\": [");
+        int count = 0;
+        int offset = 0;
+        LibraryParser.Record record;
+        while ((record = parser.next()) != null) {
+            if (record.type == LibraryParser.typecalibration) continue;
+            Object entity = Library.materialize(record);
+            // The page normalizes lights itself, so they are stored as written
+            Spectrum spectrum = (entity instanceof Dye) ? ((Dye)entity).absorbancespectrum
+                    : (entity instanceof Canvas) ? ((Canvas)entity).absorbancespectrum : record.toSpectrum();
+            float[] samples;
+            String layout;
+            if (spectrum instanceof EvenlySampledSpectrum) {
+                EvenlySampledSpectrum even = (EvenlySampledSpectrum)spectrum;
+                samples = even.samples;
+                layout = "\"spectrum\": \"even\", \"start\": "+ even.start +", \"step\": "+ even.step;
+            } else {
+                UnevenlySampledSpectrum uneven = (UnevenlySampledSpectrum)spectrum;
+                samples = new float[2*uneven.samples.size()];
+                for (int t = 0; (t < uneven.samples.size()); t++) {
+                    UnevenlySampledSpectrum.SpectrumSample sample =
+                            (UnevenlySampledSpectrum.SpectrumSample)(uneven.samples.elementAt(t));
+                    samples[2*t] = sample.wavelen;
+                    samples[2*t+1] = sample.value;
+                }
+                layout = "\"spectrum\": \"uneven\"";
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4*samples.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asFloatBuffer().put(samples);
+            bin.write(buffer.array());
+
+            json.write((count == 0) ? "\n" : ",\n");
+            json.write("{\"type\": "+ quote(LibraryParser.typenames[record.type]) +", \"number\": "+ record.number);
+            if (entity instanceof Dye) {
+                json.write(", \"name\": "+ quote(record.name) +", \"ci\": "+ quote(record.ci)
+                        +", \"category\": "+ quote(record.category) +", \"mixture\": "+ quote(record.mixture));
+            } else {
+                json.write(", \"name\": "+ quote(record.category +", "+ record.name));
+            }
+            json.write(", "+ layout +", \"offset\": "+ offset +", \"length\": "+ samples.length +"}");
+            offset += samples.length;
+            count++;
+        }
+        json.write("\n]}\n");
+        return count;
+    }
+
+    static String quote(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (int t = 0; (t < s.length()); t++) {
+            char c = s.charAt(t);
+            if ((c == '"') || (c == '\\')) {
+                b.append('\\').append(c);
+            } else if (c < ' ') {
+                b.append(String.format("\\u%04x", (int)c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+}
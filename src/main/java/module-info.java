@@ -1,3 +1,4 @@
 module dev.salusa.dyemixer {
     requires java.desktop;
+    requires jdk.jfr;
 }
\ No newline at end of file
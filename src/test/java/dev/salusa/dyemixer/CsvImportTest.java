@@ -0,0 +1,148 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * The spectrophotometer import: data lines in each separator style, resampling to the engine
+ * grid with reflectance turned into absorbance, and files that fail skipped without moving the
+ * numbers of the others.
+ */
+public class CsvImportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static Path write(Path dir, String name, String text) throws IOException {
+        return Files.write(dir.resolve(name), text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static double at(float[] grid, int wavelen) {
+        return grid[wavelen - Light.ciestart];
+    }
+
+    @Test
+    public void parsePairAcceptsEachSeparator() {
+        assertArrayEquals(new double[] {400, 0.5}, CsvImport.parsePair("400,0.5"), 0);
+        assertArrayEquals(new double[] {400, 0.5}, CsvImport.parsePair("  400 , 0.5 , extra "), 0);
+        assertArrayEquals(new double[] {400.5, 0.25}, CsvImport.parsePair("400,5;0,25"), 0);
+        assertArrayEquals(new double[] {400, 12.5}, CsvImport.parsePair("400\t12,5"), 0);
+        assertArrayEquals(new double[] {0.5, 1}, CsvImport.parsePair(".5,1"), 0);
+        assertNull("header", CsvImport.parsePair("Wavelength,Absorbance"));
+        assertNull("comment", CsvImport.parsePair("# 400,0.5"));
+        assertNull("blank", CsvImport.parsePair("   "));
+        assertNull("one value", CsvImport.parsePair("400"));
+        assertNull("not a number", CsvImport.parsePair("400,n/a"));
+    }
+
+    @Test
+    public void canvasReflectanceBecomesAbsorbance() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path file = write(dir, "cotton.csv", "Wavelength;Reflectance %\n400;50\n500;100\n");
+        CsvImport csvimport = new CsvImport();
+        csvimport.canvas = true;
+        csvimport.values = CsvImport.valuesreflectance;
+        float[] grid = csvimport.readGrid(file);
+        assertEquals("grid", CsvImport.numgridsamples, grid.length);
+        // Percentages, interpolated linearly and held flat past the ends
+        assertEquals("start", -Math.log10(0.5), at(grid, Light.ciestart), 1e-6);
+        assertEquals("400", -Math.log10(0.5), at(grid, 400), 1e-6);
+        assertEquals("450", -Math.log10(0.75), at(grid, 450), 1e-6);
+        assertEquals("end", 0, at(grid, Light.cieend), 1e-6);
+    }
+
+    @Test
+    public void zeroReflectanceStaysFinite() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path file = write(dir, "black.csv", "400,0\n500,0.5\n");
+        CsvImport csvimport = new CsvImport();
+        csvimport.canvas = true;
+        csvimport.values = CsvImport.valuestransmittance;
+        float[] grid = csvimport.readGrid(file);
+        assertEquals("400", -Math.log10(CsvImport.minreflectance), at(grid, 400), 1e-5);
+        assertEquals("500", -Math.log10(0.5), at(grid, 500), 1e-6);
+    }
+
+    @Test
+    public void dyeAbsorbanceIsClippedAndNormalized() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path file = write(dir, "red.csv", "400,-0.5\n500,1.5\n600,3\n");
+        CsvImport csvimport = new CsvImport();
+        csvimport.values = CsvImport.valuesabsorbance;
+        float[] grid = csvimport.readGrid(file);
+        assertEquals("clipped", 0, at(grid, 400), 0);
+        assertEquals("clipped up to the zero crossing", 0, at(grid, 425), 0);
+        assertEquals("500", 0.5, at(grid, 500), 1e-6);
+        assertEquals("peak", 1, at(grid, 600), 1e-6);
+        assertEquals("held past the end", 1, at(grid, Light.cieend), 1e-6);
+    }
+
+    @Test
+    public void badExportsAreRefused() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CsvImport csvimport = new CsvImport();
+        csvimport.values = CsvImport.valuesabsorbance;
+        try {
+            csvimport.readGrid(write(dir, "empty.csv", "Wavelength,Absorbance\n"));
+            fail("read an export without data");
+        } catch (IOException e) {
+            assertEquals("no wavelength,value lines", e.getMessage());
+        }
+        try {
+            csvimport.readGrid(write(dir, "unsorted.csv", "500,1\n400,1\n"));
+            fail("read unsorted wavelengths");
+        } catch (IOException e) {
+            assertEquals("wavelengths must be increasing", e.getMessage());
+        }
+    }
+
+    @Test
+    public void numbersFollowFileOrderPastSkippedFiles() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        StringBuilder big = new StringBuilder("nm,A\n");
+        for (int t = 300; (t <= 900); t++) big.append(t).append(',').append(0.001*t).append('\n');
+        write(dir, "d.csv", big.toString());
+        write(dir, "c.csv", "400,1\n");
+        write(dir, "b.csv", "header only\n");
+        write(dir, "a.csv", "400,1\n500,2\n");
+        write(dir, "notes.txt", "400,1\n");
+        List<Path> files = CsvImport.listFiles(Arrays.asList(dir));
+        assertEquals("csv files only", 4, files.size());
+        assertEquals("sorted", "a.csv", files.get(0).getFileName().toString());
+
+        CsvImport csvimport = new CsvImport();
+        csvimport.values = CsvImport.valuesabsorbance;
+        csvimport.firstnumber = 500;
+        csvimport.category = "lab";
+        csvimport.numthreads = 3;
+        Library library = csvimport.importFiles(files);
+        assertEquals("errors", 1, library.errors.size());
+        assertTrue(library.errors.get(0), library.errors.get(0).startsWith("Skipped "));
+        assertTrue(library.errors.get(0), library.errors.get(0).endsWith("b.csv: no wavelength,value lines"));
+        assertEquals("dyes", 3, library.availabledyes.size());
+        assertEquals("a", library.availabledyes.get(0).getName());
+        assertEquals(500, library.availabledyes.get(0).getNumber());
+        assertEquals("c", library.availabledyes.get(1).getName());
+        assertEquals(502, library.availabledyes.get(1).getNumber());
+        assertEquals("d", library.availabledyes.get(2).getName());
+        assertEquals(503, library.availabledyes.get(2).getNumber());
+        assertEquals("family", "lab", library.availabledyes.get(0).family);
+        assertTrue("no canvases", library.availablecanvases.isEmpty());
+
+        csvimport.canvas = true;
+        library = csvimport.importFiles(files.subList(0, 1));
+        assertEquals("canvases", 1, library.availablecanvases.size());
+        assertEquals("lab, a", library.availablecanvases.get(0).getName());
+    }
+}
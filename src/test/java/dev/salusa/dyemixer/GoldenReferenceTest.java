@@ -0,0 +1,435 @@
+package dev.salusa.dyemixer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import dev.salusa.dyemixer.DyeMixer.Canvas;
+import dev.salusa.dyemixer.DyeMixer.Dye;
+import dev.salusa.dyemixer.DyeMixer.HasNumber;
+import dev.salusa.dyemixer.DyeMixer.Light;
+
+/**
+ * Freezes the swatch colors of the original engine: every light, every canvas, every dye at
+ * several amounts and a fixed random sample of light x canvas x dye mixes, as sRGB and CIE xy.
+ * The reference values in golden-swatches.txt were computed with the plain Light methods
+ * (filter, normalize, getsRGB, getXY) that the swatches used before MixEngine; faster kernels
+ * are checked against them within the tolerances below. BatchMixer, which the search tools use,
+ * is checked against MixEngine on the same mixes: at 1 nm it must agree, at 5 nm it must stay
+ * within a deltaE budget. ColorEncoder, which encodes the batch and image renderers' pixels, is
+ * checked against the golden sRGB both for scaled XYZ and with the scales fused (forLight()).
+ *
+ * Regenerate only on purpose, e.g. after a data.txt change, with
+ * "java dev.salusa.dyemixer.GoldenReferenceTest src/test/resources/dev/salusa/dyemixer/golden-swatches.txt".
+ *
+ * Each line is: kind light canvas flags dyes r g b x y, where kind is L for the light swatch and
+ * M for a canvas or mixed swatch, entities are library numbers and dyes is "-" or
+ * number:amount pairs joined by ",".
+ */
+public class GoldenReferenceTest {
+
+    static final String resourcename = "golden-swatches.txt";
+
+    /** The plain reference path must reproduce the file exactly, up to printing. */
+    static final int referencergbtolerance = 0;
+    static final double referencexytolerance = 1e-9;
+
+    /** Optimized kernels may sum in another order or in floats. */
+    static final int enginergbtolerance = 1;
+    static final double enginexytolerance = 1e-5;
+
+    /** BatchMixer at 1 nm sums the same terms as MixEngine, relative to each of X, Y and Z. */
+    static final double batchxyztolerance = 1e-9;
+    /**
+     * BatchMixer at 5 nm against 1 nm over the golden mixes: mean, 95th percentile and largest
+     * deltaE. The largest is a deep shade of several dyes at 16; typical mixes are well below 1.
+     */
+    static final double coarsemeandeltae = 0.5;
+    static final double coarsep95deltae = 1.5;
+    static final double coarsemaxdeltae = 20;
+
+    /** ColorEncoder's 8 bit path looks codes up in a table rather than calling pow(). */
+    static final int encoderrgbtolerance = 1;
+
+    /** Coarse wall-clock budgets, many times the time on a slow laptop. */
+    static final long buildbudgetmillis = 10000;
+    static final long mixbudgetmillis = 5000;
+    /** Kubelka-Munk may take at most this many times as long as Beer-Lambert. */
+    static final double kubelkamunkbudget = 2.0;
+
+    static final double[] amounts = {0.25, 1.0, 4.0, 16.0};
+
+    static Library library;
+    static Map<Integer, Light> lights = new HashMap<Integer, Light>();
+    static Map<Integer, Canvas> canvases = new HashMap<Integer, Canvas>();
+    static Map<Integer, Dye> dyes = new HashMap<Integer, Dye>();
+    static List<Case> cases;
+
+    static class Case {
+        String line;
+        boolean lightonly;
+        Light light;
+        Canvas canvas;
+        int flags;
+        Dye[] dyes;
+        double[] amounts;
+        int[] rgb = new int[3];
+        double[] xy = new double[2];
+    }
+
+    @BeforeClass
+    public static void loadLibrary() throws IOException {
+        library = Library.build("data.txt");
+        assertFalse(library.reason, library.failed);
+        index(library.availablelights, lights);
+        index(library.availablecanvases, canvases);
+        index(library.availabledyes, dyes);
+        InputStream stream = GoldenReferenceTest.class.getResourceAsStream(resourcename);
+        assertNotNull("missing "+ resourcename, stream);
+        cases = new ArrayList<Case>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                cases.add(parseCase(line));
+            }
+        }
+    }
+
+    static <T extends HasNumber> void index(Vector<T> entities, Map<Integer, T> map) {
+        for (T entity : entities) map.put(entity.getNumber(), entity);
+    }
+
+    static Case parseCase(String line) {
+        String[] fields = line.split(" ");
+        Case c = new Case();
+        c.line = line;
+        c.lightonly = fields[0].equals("L");
+        c.light = lights.get(Integer.parseInt(fields[1]));
+        c.canvas = canvases.get(Integer.parseInt(fields[2]));
+        assertNotNull("unknown light in "+ line, c.light);
+        assertNotNull("unknown canvas in "+ line, c.canvas);
+        c.flags = Integer.parseInt(fields[3]);
+        String[] pairs = fields[4].equals("-") ? new String[0] : fields[4].split(",");
+        c.dyes = new Dye[pairs.length];
+        c.amounts = new double[pairs.length];
+        for (int t = 0; (t < pairs.length); t++) {
+            String[] pair = pairs[t].split(":");
+            c.dyes[t] = dyes.get(Integer.parseInt(pair[0]));
+            assertNotNull("unknown dye in "+ line, c.dyes[t]);
+            c.amounts[t] = Double.parseDouble(pair[1]);
+        }
+        for (int t = 0; (t < 3); t++) c.rgb[t] = Integer.parseInt(fields[5+t]);
+        c.xy[0] = Double.parseDouble(fields[8]);
+        c.xy[1] = Double.parseDouble(fields[9]);
+        return c;
+    }
+
+    /** The swatch light as the applet computed it before MixEngine. */
+    static Light reference(Case c) {
+        Light light = c.light.getCopy();
+        if ((c.flags & MixEngine.flaglightwhite) != 0) {
+            light.normalizeWhite();
+        } else {
+            light.normalize();
+        }
+        if (c.lightonly) return light;
+        light.filter(c.canvas, 1.0);
+        if ((c.flags & MixEngine.flagcanvaswhite) != 0) light.normalizeWhite();
+        if ((c.flags & MixEngine.flagcanvasbright) != 0) light.normalize();
+        for (int t = 0; (t < c.dyes.length); t++) {
+            light.filter(c.dyes[t], c.amounts[t]);
+        }
+        if ((c.flags & MixEngine.flagcombinedbright) != 0) light.normalize();
+        return light;
+    }
+
+    static Light engine(MixEngine engine, Case c) {
+        if (c.lightonly) return engine.getLight(c.light, c.flags);
+        return engine.getMixedLight(c.light, c.canvas, c.flags, c.dyes, c.amounts);
+    }
+
+    static void check(Case c, Light light, int rgbtolerance, double xytolerance) {
+        int[] rgb = light.getsRGB();
+        double[] xy = light.getXY();
+        for (int t = 0; (t < 3); t++) {
+            assertEquals(c.line, c.rgb[t], rgb[t], rgbtolerance);
+        }
+        assertEquals(c.line, c.xy[0], xy[0], xytolerance);
+        assertEquals(c.line, c.xy[1], xy[1], xytolerance);
+    }
+
+    @Test public void referencePathMatchesGolden() {
+        assertFalse(cases.isEmpty());
+        for (Case c : cases) {
+            check(c, reference(c), referencergbtolerance, referencexytolerance);
+        }
+    }
+
+    @Test public void mixEngineMatchesGolden() {
+        MixEngine engine = new MixEngine();
+        for (Case c : cases) {
+            check(c, engine(engine, c), enginergbtolerance, enginexytolerance);
+        }
+    }
+
+    @Test public void cachedMixesMatchGolden() {
+        // The second round comes from the cache and must not have been changed by anyone
+        MixEngine engine = new MixEngine(2*cases.size());
+        for (Case c : cases) engine(engine, c);
+        for (Case c : cases) {
+            check(c, engine(engine, c), enginergbtolerance, enginexytolerance);
+        }
+    }
+
+    /** The scaled XYZ of a mix, as BatchMixer computes it. */
+    static double[] engineXYZ(MixEngine engine, Case c) {
+        Observer[] observer = {MixEngine.getObserver(c.flags)};
+        return engine.getXYZ(c.light, c.canvas, c.flags, c.dyes, c.amounts, observer)[0];
+    }
+
+    @Test public void batchMixerAt1nmMatchesMixEngine() {
+        MixEngine engine = new MixEngine();
+        for (Case c : cases) {
+            if (c.lightonly) continue;
+            double[] expected = engineXYZ(engine, c);
+            double[] xyz = new BatchMixer(engine, c.light, c.canvas, c.flags, c.dyes, 1).mix(c.amounts);
+            for (int t = 0; (t < 3); t++) {
+                assertEquals(c.line, expected[t], xyz[t], batchxyztolerance*Math.abs(expected[t]));
+            }
+        }
+    }
+
+    @Test public void batchMixerAt5nmWithinDeltaEBudget() {
+        MixEngine engine = new MixEngine();
+        List<Double> deltaes = new ArrayList<Double>();
+        double sum = 0;
+        for (Case c : cases) {
+            if (c.lightonly) continue;
+            double[] fine = CIELab.fromXYZ(engineXYZ(engine, c));
+            BatchMixer mixer = new BatchMixer(engine, c.light, c.canvas, c.flags, c.dyes, 5);
+            double[] coarse = CIELab.fromXYZ(mixer.mix(c.amounts));
+            double deltae = CIELab.deltaE(coarse, fine);
+            assertTrue(c.line +": deltaE "+ deltae, deltae <= coarsemaxdeltae);
+            deltaes.add(deltae);
+            sum += deltae;
+        }
+        Collections.sort(deltaes);
+        double mean = sum/deltaes.size();
+        double p95 = deltaes.get((int)(0.95*(deltaes.size() - 1)));
+        assertTrue("mean deltaE "+ mean, mean <= coarsemeandeltae);
+        assertTrue("95th percentile deltaE "+ p95, p95 <= coarsep95deltae);
+    }
+
+    @Test public void sampleDoesNotDependOnThreads() throws ExecutionException {
+        Dye[] four = library.availabledyes.subList(0, 4).toArray(new Dye[0]);
+        BatchMixer mixer = new BatchMixer(new MixEngine(), lights.get(library.defaultlightnumber),
+                canvases.get(library.defaultcanvasnumber), MixEngine.flaglightwhite, four, 5);
+        int slots = 3, n = 3*BatchMixer.chunksize + 17;
+        int[][] dyeindices = new int[2][n*slots];
+        double[][] sampled = new double[2][n*slots];
+        float[][] lab = new float[2][3*n];
+        mixer.sample(40, slots, 16.0, n, 1, dyeindices[0], sampled[0], lab[0]);
+        mixer.sample(40, slots, 16.0, n, 4, dyeindices[1], sampled[1], lab[1]);
+        assertArrayEquals(dyeindices[0], dyeindices[1]);
+        assertArrayEquals(sampled[0], sampled[1], 0);
+        assertArrayEquals(lab[0], lab[1], 0);
+    }
+
+    @Test public void forEachChunkCoversEachItemOnce() throws ExecutionException {
+        for (int numthreads : new int[] {1, 4}) {
+            final AtomicIntegerArray hits = new AtomicIntegerArray(1000);
+            BatchMixer.forEachChunk(hits.length(), 7, numthreads, (first, count) -> {
+                for (int i = first; (i < first + count); i++) hits.incrementAndGet(i);
+            });
+            for (int i = 0; (i < hits.length()); i++) {
+                assertEquals(numthreads +" threads, item "+ i, 1, hits.get(i));
+            }
+        }
+    }
+
+    static void checkRGB(Case c, String path, int rgb) {
+        for (int t = 0; (t < 3); t++) {
+            assertEquals(path +" "+ c.line, c.rgb[t], (rgb >> (16 - 8*t)) & 0xff, encoderrgbtolerance);
+        }
+    }
+
+    @Test public void colorEncoderMatchesGolden() {
+        MixEngine engine = new MixEngine();
+        ColorEncoder scaled = new ColorEncoder(ColorEncoder.srgb);
+        int[] rgb = new int[1];
+        for (Case c : cases) {
+            Light light = engine(engine, c);
+            double[] raw = light.getXYZ();
+            scaled.encode(light.scaleXYZ(raw.clone()), 0, 1, rgb, 0, null);
+            checkRGB(c, "scaled", rgb[0]);
+            ColorEncoder.forLight(ColorEncoder.srgb, light).encode(raw, 0, 1, rgb, 0, null);
+            checkRGB(c, "fused", rgb[0]);
+        }
+    }
+
+    @Test public void quantize8AgreesWithTransfer() {
+        for (ColorEncoder.RGBSpace space : ColorEncoder.spaces) {
+            ColorEncoder encoder = new ColorEncoder(space);
+            for (int i = 0; (i <= 1000000); i++) {
+                double v = i/1000000.0;
+                assertEquals(space.getName() +" at "+ v, encoder.quantize(v, 255), space.quantize8(v), 1);
+            }
+            // Exact away from the halfway points
+            for (int code = 0; (code <= 255); code++) {
+                assertEquals(space.getName(), code, space.quantize8(space.untransfer(code/255.0)));
+            }
+        }
+    }
+
+    @Test public void whiteMapsToFullScale() {
+        double[] rgb = new double[3];
+        for (ColorEncoder.RGBSpace space : ColorEncoder.spaces) {
+            new ColorEncoder(space).toLinear(ChromaticAdaptation.destinationwhite, 0, 1, rgb, 0, null);
+            assertArrayEquals(space.getName(), new double[] {1, 1, 1}, rgb, ColorEncoder.gamuttolerance);
+        }
+    }
+
+    @Test public void libraryBuildWithinBudget() {
+        long start = System.nanoTime();
+        Library built = Library.build("data.txt");
+        long millis = (System.nanoTime() - start)/1000000;
+        assertFalse(built.failed);
+        assertTrue("building the library took "+ millis +" ms", millis < buildbudgetmillis);
+    }
+
+    @Test public void mixingWithinBudget() {
+        // Uncached, so every mix is computed
+        MixEngine engine = new MixEngine(0);
+        long start = System.nanoTime();
+        for (Case c : cases) engine(engine, c);
+        long millis = (System.nanoTime() - start)/1000000;
+        assertTrue(cases.size() +" mixes took "+ millis +" ms", millis < mixbudgetmillis);
+    }
+
+    /** The least of numruns timings of mixing the golden cases with an uncached engine. */
+    static long timeMixes(boolean opaque, int numruns) {
+        long best = Long.MAX_VALUE;
+        for (int k = 0; (k < numruns); k++) {
+            MixEngine engine = opaque ? new KubelkaMunkEngine(0) : new MixEngine(0);
+            long start = System.nanoTime();
+            for (Case c : cases) {
+                if (!c.lightonly) engine(engine, c);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /** The least of numruns timings of 10000 random recipes of four dyes on a 5 nm BatchMixer. */
+    static long timeBatchMixes(boolean opaque, int numruns) {
+        Dye[] four = library.availabledyes.subList(0, 4).toArray(new Dye[0]);
+        BatchMixer mixer = new BatchMixer(opaque ? new KubelkaMunkEngine() : new MixEngine(),
+                lights.get(library.defaultlightnumber), canvases.get(library.defaultcanvasnumber),
+                MixEngine.flaglightwhite, four, 5);
+        int n = 10000, slots = 3;
+        int[] dyeindices = new int[n*slots];
+        double[] recipes = new double[n*slots];
+        mixer.drawRecipes(new SplittableRandom(37), slots, 16.0, 0, n, dyeindices, recipes);
+        double[] xyz = new double[3*n];
+        long best = Long.MAX_VALUE;
+        for (int k = 0; (k < numruns); k++) {
+            long start = System.nanoTime();
+            mixer.mix(dyeindices, recipes, slots, 0, n, xyz);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    @Test public void kubelkaMunkWithinBudgetOfBeerLambert() {
+        // Warm both paths up first, so the JIT doesn't count against either
+        timeMixes(false, 1);
+        timeMixes(true, 1);
+        long transmissive = timeMixes(false, 3), opaque = timeMixes(true, 3);
+        assertTrue("Kubelka-Munk mixes took "+ opaque/1000000 +" ms, Beer-Lambert "+ transmissive/1000000 +" ms",
+                opaque <= kubelkamunkbudget*transmissive);
+        timeBatchMixes(false, 1);
+        timeBatchMixes(true, 1);
+        transmissive = timeBatchMixes(false, 3);
+        opaque = timeBatchMixes(true, 3);
+        assertTrue("Kubelka-Munk batch took "+ opaque/1000000 +" ms, Beer-Lambert "+ transmissive/1000000 +" ms",
+                opaque <= kubelkamunkbudget*transmissive);
+    }
+
+    /** Writes the reference file from the current library with the reference path. */
+    public static void main(String[] args) throws IOException {
+        library = Library.build("data.txt");
+        if (library.failed) throw new IOException(library.reason);
+        Vector<Light> l = library.availablelights;
+        Vector<Canvas> cv = library.availablecanvases;
+        Vector<Dye> d = library.availabledyes;
+        int defaultlight = library.defaultlightnumber;
+        int defaultcanvas = library.defaultcanvasnumber;
+        List<String> specs = new ArrayList<String>();
+        for (int t = 0; (t < l.size()); t++) {
+            int n = number(l, t);
+            specs.add("L "+ n +" "+ defaultcanvas +" "+ MixEngine.flaglightwhite +" -");
+            specs.add("L "+ n +" "+ defaultcanvas +" 0 -");
+        }
+        for (int t = 0; (t < cv.size()); t++) {
+            specs.add("M "+ defaultlight +" "+ number(cv, t) +" "+ MixEngine.flaglightwhite +" -");
+        }
+        for (int t = 0; (t < d.size()); t++) {
+            for (int u = 0; (u < amounts.length); u++) {
+                specs.add("M "+ defaultlight +" "+ defaultcanvas +" "+ MixEngine.flaglightwhite +" "
+                        + number(d, t) +":"+ amounts[u]);
+            }
+        }
+        Random random = new Random(40);
+        for (int k = 0; (k < 1200); k++) {
+            // Mostly single dyes, some mixes of up to four
+            int numdyes = (k < 900) ? 1 : 2 + random.nextInt(3);
+            StringBuilder mix = new StringBuilder();
+            for (int t = 0; (t < numdyes); t++) {
+                if (t > 0) mix.append(',');
+                mix.append(number(d, random.nextInt(d.size()))).append(':')
+                        .append(amounts[random.nextInt(amounts.length)]);
+            }
+            specs.add("M "+ number(l, random.nextInt(l.size())) +" "+ number(cv, random.nextInt(cv.size()))
+                    +" "+ random.nextInt(16) +" "+ mix);
+        }
+        index(l, lights);
+        index(cv, canvases);
+        index(d, dyes);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(args[0]), StandardCharsets.UTF_8))) {
+            out.println("# kind light canvas flags dyes r g b x y; see GoldenReferenceTest");
+            for (String spec : specs) {
+                Case c = parseCase(spec +" 0 0 0 0 0");
+                Light light = reference(c);
+                int[] rgb = light.getsRGB();
+                double[] xy = light.getXY();
+                out.println(String.format(Locale.ROOT, "%s %d %d %d %.12f %.12f", spec, rgb[0], rgb[1], rgb[2], xy[0], xy[1]));
+            }
+        }
+        System.out.println("Wrote "+ specs.size() +" cases to "+ args[0]);
+    }
+
+    static int number(Vector<? extends HasNumber> entities, int index) {
+        return entities.elementAt(index).getNumber();
+    }
+}
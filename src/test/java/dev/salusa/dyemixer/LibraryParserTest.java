@@ -0,0 +1,176 @@
+package dev.salusa.dyemixer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import dev.salusa.dyemixer.DyeMixer.Dye;
+
+/**
+ * The data.txt pull parser: every kind of record and key, errors collected with their line
+ * numbers while the parse goes on, sample buffers that grow past their initial size and
+ * calibration records reaching their dyes.
+ */
+public class LibraryParserTest {
+
+    static LibraryParser newParser(String text) throws IOException {
+        return new LibraryParser(new StringReader(text), "test.txt");
+    }
+
+    /** All records of text, copied since the parser reuses its record. */
+    static List<LibraryParser.Record> parseAll(LibraryParser parser) throws IOException {
+        List<LibraryParser.Record> records = new ArrayList<LibraryParser.Record>();
+        for (LibraryParser.Record record = parser.next(); (record != null); record = parser.next()) {
+            records.add(record.copy());
+        }
+        return records;
+    }
+
+    @Test
+    public void parsesEveryKind() throws IOException {
+        LibraryParser parser = newParser(
+                "light; name = \"D50\"; category = \"CIE\"; number = 3; default;\n"
+                + "    start = 360; step = 10; evendata = 0.1, 0.2, 0.3;\n"
+                + "canvas; name = \"Cotton\"; number = 4; unevendata = 400, 0.1, 500, 0.2;\n"
+                + "dye; name = \"Red\"; ci = \"Acid Red 1\"; mixture = \"pure\"; number = 12;\n"
+                + "    cost = 0.08; stock = 250; response = 1, 0.9, 2, 1.6;\n"
+                + "    evendata = 0.5, 0.6;\n"
+                + "calibration; number = 12; response = 1, 1.1;\n");
+        List<LibraryParser.Record> records = parseAll(parser);
+        assertEquals("errors "+ parser.getErrors(), 0, parser.getErrors().size());
+        assertEquals("records", 4, records.size());
+
+        LibraryParser.Record light = records.get(0);
+        assertEquals("type", LibraryParser.typelight, light.type);
+        assertEquals("name", "D50", light.name);
+        assertEquals("category", "CIE", light.category);
+        assertEquals("number", 3, light.number);
+        assertTrue("default", light.useasdefault);
+        assertEquals("spectrum", LibraryParser.spectrumtypeeven, light.spectrumtype);
+        assertEquals("start", 360, light.spectrumstart, 0);
+        assertEquals("step", 10, light.spectrumstep, 0);
+        assertArrayEquals("samples", new double[] {0.1, 0.2, 0.3}, light.samples, 0);
+
+        LibraryParser.Record canvas = records.get(1);
+        assertEquals("type", LibraryParser.typecanvas, canvas.type);
+        assertEquals("line", 3, canvas.line);
+        assertEquals("spectrum", LibraryParser.spectrumtypeuneven, canvas.spectrumtype);
+        assertEquals("samples", 4, canvas.numsamples);
+
+        LibraryParser.Record dye = records.get(2);
+        assertEquals("type", LibraryParser.typedye, dye.type);
+        assertEquals("ci", "Acid Red 1", dye.ci);
+        assertEquals("mixture", "pure", dye.mixture);
+        assertEquals("cost", 0.08, dye.cost, 0);
+        assertEquals("stock", 250, dye.stock, 0);
+        assertArrayEquals("response", new double[] {1, 0.9, 2, 1.6}, dye.response, 0);
+        assertFalse("default", dye.useasdefault);
+
+        LibraryParser.Record calibration = records.get(3);
+        assertEquals("type", LibraryParser.typecalibration, calibration.type);
+        assertEquals("number", 12, calibration.number);
+        assertEquals("response", 2, calibration.numresponse);
+    }
+
+    @Test
+    public void costAndStockDefaultAndOnlyApplyToDyes() throws IOException {
+        LibraryParser parser = newParser(
+                "dye; number = 1; evendata = 1;\n"
+                + "light; number = 2; cost = 5; stock = 1; evendata = 1;\n");
+        List<LibraryParser.Record> records = parseAll(parser);
+        assertEquals("errors "+ parser.getErrors(), 0, parser.getErrors().size());
+        assertTrue("no cost", Double.isNaN(records.get(0).cost));
+        assertEquals("unlimited stock", Double.POSITIVE_INFINITY, records.get(0).stock, 0);
+        assertTrue("light has no cost", Double.isNaN(records.get(1).cost));
+    }
+
+    @Test
+    public void errorsNameTheirLineAndSkipOnlyTheirRecord() throws IOException {
+        LibraryParser parser = newParser(
+                "bogus; dye; number = 1; evendata = 1;\n"
+                + "dye; number = \"two\"; evendata = 1;\n"
+                + "dye; number = 3;\n"
+                + "\n"
+                + "dye; number = 4; unevendata = 400, 1, 500;\n"
+                + "calibration; number = 1; response = 2, 1, 1, 2;\n"
+                + "calibration; number = 1;\n"
+                + "    unknown = 1;\n"
+                + "dye; number = 5; cost = ; evendata = 1, 2 3;\n"
+                + "dye; number = 6; evendata = 1;\n"
+                + "break;\n"
+                + "dye; number = 7; evendata = 1;\n");
+        List<LibraryParser.Record> records = parseAll(parser);
+        assertEquals("records", 2, records.size());
+        assertEquals("first", 1, records.get(0).number);
+        assertEquals("last before break", 6, records.get(1).number);
+        List<String> errors = parser.getErrors();
+        String[] expected = {
+            "Expecting one of {\"canvas\", \"light\", \"dye\", \"calibration\"} in line 1 in test.txt",
+            "Expecting numerical value in line 2 in test.txt",
+            "Missing spectral data for the dye in line 3 in test.txt",
+            "Unevendata must have even length in line 5 in test.txt",
+            "Response amounts must be positive and increasing in line 6 in test.txt",
+            "Missing response for the calibration in line 7 in test.txt",
+            "Expecting numerical value in line 9 in test.txt",
+            "Expecting \",\" or \";\" in line 9 in test.txt",
+        };
+        assertEquals("errors "+ errors, expected.length, errors.size());
+        for (int t = 0; (t < expected.length); t++) {
+            assertTrue("error "+ t +": "+ errors.get(t), errors.get(t).endsWith(expected[t]));
+        }
+    }
+
+    @Test
+    public void sampleBufferGrowsAndCopiesAreKept() throws IOException {
+        int n = 3000;
+        StringBuilder text = new StringBuilder("dye; number = 1; evendata = ");
+        for (int t = 0; (t < n); t++) text.append((t == 0) ? "" : ", ").append(t);
+        text.append(";\ndye; number = 2; evendata = 9;\n");
+        LibraryParser parser = newParser(text.toString());
+        LibraryParser.Record first = parser.next().copy();
+        LibraryParser.Record second = parser.next();
+        assertEquals("errors "+ parser.getErrors(), 0, parser.getErrors().size());
+        assertEquals("samples", n, first.numsamples);
+        assertEquals("last sample", n - 1, first.samples[n - 1], 0);
+        assertEquals("copy untouched by the next record", 0, first.samples[0], 0);
+        assertEquals("second", 1, second.numsamples);
+        assertEquals("second sample", 9, second.samples[0], 0);
+        assertTrue("buffer kept for reuse", second.samples.length >= n);
+    }
+
+    @Test
+    public void tooManySamplesIsAnError() throws IOException {
+        StringBuilder text = new StringBuilder("dye; number = 1; evendata = 0");
+        for (int t = 1; (t <= LibraryParser.maxnumspectrumsamples); t++) text.append(", 0");
+        text.append(";\ndye; number = 2; evendata = 1;\n");
+        LibraryParser parser = newParser(text.toString());
+        List<LibraryParser.Record> records = parseAll(parser);
+        assertEquals("records", 1, records.size());
+        assertEquals("number", 2, records.get(0).number);
+        assertEquals("errors", 1, parser.getErrors().size());
+        assertTrue(parser.getErrors().get(0), parser.getErrors().get(0).startsWith("More than 65536 values"));
+    }
+
+    @Test
+    public void calibrationReachesItsDye() throws IOException {
+        Library library = new Library();
+        library.parse(new StringReader(
+                "dye; name = \"Red\"; number = 12; cost = 0.5; stock = 10; evendata = 0.5, 0.6;\n"
+                + "calibration; number = 12; response = 1, 1.1;\n"
+                + "calibration; number = 13; response = 1, 1.1;\n"), "test.txt");
+        library.applyCalibrations(library.availabledyes, "test.txt");
+        assertFalse("failed: "+ library.reason, library.failed);
+        Dye dye = (Dye)(library.availabledyes.elementAt(0));
+        assertNotNull("response", dye.response);
+        assertEquals("cost", 0.5, dye.cost, 0);
+        assertEquals("stock", 10, dye.stock, 0);
+        assertEquals("calibrated copy keeps its cost", 0.5, dye.withResponse(dye.response).cost, 0);
+        library.failUncalibrated("test.txt");
+        assertTrue("unknown dye reported", library.failed);
+        assertTrue(library.reason, library.reason.startsWith("No dye 13 "));
+    }
+}
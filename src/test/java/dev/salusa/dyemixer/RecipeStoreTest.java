@@ -0,0 +1,246 @@
+package dev.salusa.dyemixer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * The recipe log and index: records and index entries round-trip, a save cut short is dropped
+ * and a damaged record costs only itself, and an index that doesn't match its log is refused.
+ * A "crash" here closes the log without writing the index, as a killed process would.
+ */
+public class RecipeStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static Recipe newRecipe(String name, int rgb) {
+        Recipe recipe = new Recipe(name, 3);
+        recipe.lightnumber = 7;
+        recipe.canvasnumber = -2;
+        recipe.lightwhite = true;
+        recipe.combinedbright = true;
+        recipe.kubelkamunk = true;
+        recipe.observer1964 = true;
+        recipe.adaptation = 2;
+        recipe.rgb = rgb;
+        for (int t = 0; (t < 3); t++) {
+            recipe.dyenumbers[t] = 1000 + t;
+            recipe.amounts[t] = 0.125*(t + 1);
+            recipe.enables[t] = (t != 1);
+        }
+        return recipe;
+    }
+
+    static void assertSameRecipe(Recipe expected, Recipe actual) {
+        assertNotNull("no recipe "+ expected.name, actual);
+        assertEquals("name", expected.name, actual.name);
+        assertEquals("light", expected.lightnumber, actual.lightnumber);
+        assertEquals("canvas", expected.canvasnumber, actual.canvasnumber);
+        assertEquals("flags", expected.lightwhite + " " + expected.canvaswhite + " " + expected.canvasbright
+                + " " + expected.combinedbright + " " + expected.kubelkamunk + " " + expected.observer1964,
+                actual.lightwhite + " " + actual.canvaswhite + " " + actual.canvasbright
+                + " " + actual.combinedbright + " " + actual.kubelkamunk + " " + actual.observer1964);
+        assertEquals("adaptation", expected.adaptation, actual.adaptation);
+        assertEquals("rgb", expected.rgb, actual.rgb);
+        assertArrayEquals("dyes", expected.dyenumbers, actual.dyenumbers);
+        assertArrayEquals("amounts", expected.amounts, actual.amounts, 0);
+        assertArrayEquals("enables", expected.enables, actual.enables);
+    }
+
+    static void crash(RecipeStore store) throws IOException {
+        store.log.close();
+    }
+
+    @Test
+    public void recipeRoundTrips() throws IOException {
+        Recipe recipe = newRecipe("Ochre \u00e9t\u00e9", 0xc08020);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        recipe.write(new DataOutputStream(bytes));
+        assertSameRecipe(recipe, Recipe.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void storeRoundTripsThroughIndex() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        RecipeStore store = new RecipeStore(dir);
+        store.save(newRecipe("red", 0xff0000));
+        store.save(newRecipe("green", 0x00ff00));
+        store.save(newRecipe("blue", 0x0000ff));
+        store.save(newRecipe("red", 0xf00010));
+        store.close();
+
+        store = new RecipeStore(dir);
+        assertEquals("indexed", 3, store.indexcount);
+        assertTrue("nothing left to scan", store.tail.isEmpty());
+        assertEquals("index size", RecipeStore.indexheadersize + 3*RecipeStore.entrysize, Files.size(store.indexpath));
+        assertSameRecipe(newRecipe("red", 0xf00010), store.get("red"));
+        assertSameRecipe(newRecipe("green", 0x00ff00), store.get("green"));
+        assertNull(store.get("purple"));
+        assertEquals("nearest", "blue", store.findNearest(0x1010e0).name);
+        assertEquals("nearest", "red", store.findNearest(0xe00000).name);
+        // Shadowing an indexed recipe hides its old color
+        store.save(newRecipe("blue", 0x808080));
+        assertEquals("nearest", 0x808080, store.findNearest(0x0000ff).rgb);
+        store.close();
+
+        store = new RecipeStore(dir);
+        assertEquals("indexed", 3, store.indexcount);
+        assertEquals("rgb", 0x808080, store.get("blue").rgb);
+        store.close();
+    }
+
+    @Test
+    public void indexIsWrittenAsANewGeneration() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        RecipeStore store = new RecipeStore(dir);
+        store.save(newRecipe("a", 1));
+        store.close();
+        assertEquals("generation", 1, store.generation);
+        Path first = store.indexpath;
+
+        store = new RecipeStore(dir);
+        store.save(newRecipe("b", 2));
+        store.close();
+        assertEquals("generation", 2, store.generation);
+        assertFalse("old index deleted", Files.exists(first));
+
+        // A leftover older index is ignored and deleted on open
+        Files.copy(store.indexpath, first);
+        store = new RecipeStore(dir);
+        assertEquals("generation", 2, store.generation);
+        assertEquals("indexed", 2, store.indexcount);
+        assertFalse("leftover deleted", Files.exists(first));
+        assertEquals("no failures", 0, store.numoldindexes + store.numfailedindexes);
+        store.close();
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        RecipeStore store = new RecipeStore(dir);
+        store.save(newRecipe("a", 1));
+        store.save(newRecipe("b", 2));
+        long intact = store.loglength;
+        store.save(newRecipe("c", 3));
+        crash(store);
+        try (FileChannel log = FileChannel.open(store.logpath, StandardOpenOption.WRITE)) {
+            log.truncate(Files.size(store.logpath) - 3);
+        }
+
+        store = new RecipeStore(dir);
+        assertEquals("log cut to the last whole record", intact, Files.size(store.logpath));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("b"));
+        assertNull(store.get("c"));
+        store.save(newRecipe("c", 3));
+        store.close();
+        store = new RecipeStore(dir);
+        assertEquals("rgb", 3, store.get("c").rgb);
+        store.close();
+    }
+
+    @Test
+    public void corruptRecordCostsOnlyItself() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        RecipeStore store = new RecipeStore(dir);
+        store.save(newRecipe("a", 1));
+        long b = store.loglength;
+        store.save(newRecipe("b", 2));
+        store.save(newRecipe("c", 3));
+        crash(store);
+        long length = Files.size(store.logpath);
+        try (FileChannel log = FileChannel.open(store.logpath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.allocate(1);
+            log.read(bytes, b + 10);
+            bytes.put(0, (byte)(bytes.get(0) ^ 0x55));
+            bytes.rewind();
+            log.write(bytes, b + 10);
+        }
+
+        store = new RecipeStore(dir);
+        assertEquals("log kept whole", length, Files.size(store.logpath));
+        assertEquals("skipped", 1, store.numskipped);
+        assertNotNull(store.get("a"));
+        assertNull(store.get("b"));
+        assertNotNull(store.get("c"));
+        store.close();
+    }
+
+    @Test
+    public void badLengthStopsSaving() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        RecipeStore store = new RecipeStore(dir);
+        store.save(newRecipe("a", 1));
+        long b = store.loglength;
+        store.save(newRecipe("b", 2));
+        store.save(newRecipe("c", 3));
+        crash(store);
+        long length = Files.size(store.logpath);
+        try (FileChannel log = FileChannel.open(store.logpath, StandardOpenOption.WRITE)) {
+            log.write(ByteBuffer.allocate(4).putInt(0, -5), b);
+        }
+
+        store = new RecipeStore(dir);
+        assertNotNull("damage reported", store.damage);
+        assertNotNull(store.get("a"));
+        try {
+            store.save(newRecipe("d", 4));
+            fail("saved past the damage");
+        } catch (IOException e) {
+            // Expected
+        }
+        store.close();
+        assertEquals("log untouched", length, Files.size(store.logpath));
+    }
+
+    @Test
+    public void staleIndexIsRefused() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        RecipeStore store = new RecipeStore(dir);
+        store.save(newRecipe("old1", 1));
+        store.save(newRecipe("old2", 2));
+        store.close();
+        Path saved = dir.resolve("saved.idx");
+        Files.copy(store.indexpath, saved);
+
+        // A different log that is at least as long as the one the index was written for
+        Files.delete(store.logpath);
+        Files.delete(store.indexpath);
+        store = new RecipeStore(dir);
+        store.save(newRecipe("new1", 1));
+        store.save(newRecipe("new2", 2));
+        store.save(newRecipe("new3", 3));
+        crash(store);
+        Files.copy(saved, store.indexpath, StandardCopyOption.REPLACE_EXISTING);
+
+        store = new RecipeStore(dir);
+        assertNull("index refused", store.index);
+        assertNull(store.get("old1"));
+        assertNotNull(store.get("new1"));
+        assertEquals("scanned", 3, store.tail.size());
+        store.close();
+
+        // An index of another version is refused too
+        try (FileChannel index = FileChannel.open(store.indexpath, StandardOpenOption.WRITE)) {
+            index.write(ByteBuffer.allocate(4).putInt(0, RecipeStore.indexversion - 1), 4);
+        }
+        store = new RecipeStore(dir);
+        assertNull("index refused", store.index);
+        assertNotNull(store.get("new3"));
+        store.close();
+    }
+}